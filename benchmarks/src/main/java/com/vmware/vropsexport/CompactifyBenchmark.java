@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport;
+
+import com.vmware.vropsexport.bench.SyntheticData;
+import com.vmware.vropsexport.exceptions.ExporterException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Collapses a rowset into a single row. Lives in the exporter's own package since compactify isn't
+ * part of the public API.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompactifyBenchmark {
+  @Param({"LATEST", "MEDIAN"})
+  private String alg;
+
+  @Param({"10", "100"})
+  private int metrics;
+
+  @Param({"288"})
+  private int samples;
+
+  private StatsProcessor sp;
+
+  private RowMetadata meta;
+
+  private Rowset rowset;
+
+  @Setup
+  public void setup() throws Exception {
+    final SyntheticData data = new SyntheticData(1, metrics, samples);
+    final Config conf =
+        SyntheticData.parse(data.definition("csv", "compact: true\ncompactifyAlg: " + alg + "\n"));
+    meta = new RowMetadata(conf);
+
+    // Parse without compactification to get the full rowset.
+    rowset = data.rowsets(SyntheticData.parse(data.definition("csv", null)), meta).get(0);
+    sp = new StatsProcessor(conf, meta, null, new LRUCache<>(10), null, false);
+  }
+
+  @Benchmark
+  public Rowset compactify() throws ExporterException {
+    return sp.compactify(rowset, meta);
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport.bench;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal ElasticSearch stand-in that accepts every bulk request. It reads the whole request body,
+ * so the client pays the full cost of sending it.
+ */
+public class ElasticSearchStub implements Closeable {
+  private static final byte[] RESPONSE =
+      "{\"took\":0,\"errors\":false,\"items\":[]}".getBytes(StandardCharsets.UTF_8);
+
+  private final HttpServer server;
+
+  private final AtomicLong bytesReceived = new AtomicLong();
+
+  public ElasticSearchStub() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext(
+        "/",
+        exchange -> {
+          final byte[] buf = new byte[8192];
+          long n = 0;
+          try (final InputStream in = exchange.getRequestBody()) {
+            for (int r = in.read(buf); r != -1; r = in.read(buf)) {
+              n += r;
+            }
+          }
+          bytesReceived.addAndGet(n);
+          exchange.getResponseHeaders().add("Content-Type", "application/json");
+          exchange.sendResponseHeaders(200, RESPONSE.length);
+          try (final OutputStream out = exchange.getResponseBody()) {
+            out.write(RESPONSE);
+          }
+        });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+  }
+
+  public String getUrl() {
+    return "http://localhost:" + server.getAddress().getPort();
+  }
+
+  public long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+  }
+}
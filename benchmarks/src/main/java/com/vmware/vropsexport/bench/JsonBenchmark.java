@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport.bench;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.vmware.vropsexport.json.Json;
+import com.vmware.vropsexport.models.PageOfResources;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the shared Jackson objects in {@link Json} with creating new ones for every response,
+ * the way the exporter used to. The payload sizes are printed during setup, so the cost per MB is
+ * the time per operation divided by the size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonBenchmark {
+  @Param({"10", "100"})
+  private int resources;
+
+  @Param({"false", "true"})
+  private boolean shared;
+
+  private byte[] stats;
+
+  private byte[] page;
+
+  @Setup
+  public void setup() throws IOException {
+    final SyntheticData data = new SyntheticData(resources, 10, 12);
+    stats = data.statsPayload();
+    page = data.resourcesPayload();
+  }
+
+  /** Walks the tokens of a /stats/query response, the way the parser does. */
+  @Benchmark
+  public int parseStats() throws IOException {
+    final JsonFactory jf = shared ? Json.getFactory() : new JsonFactory();
+    int fields = 0;
+    try (final JsonParser p = jf.createParser(new ByteArrayInputStream(stats))) {
+      JsonToken t;
+      while ((t = p.nextToken()) != null) {
+        if (t == JsonToken.FIELD_NAME) {
+          fields += p.getCurrentName().length();
+        }
+      }
+    }
+    return fields;
+  }
+
+  /** Reads a page of resources into the model, the way the client does. */
+  @Benchmark
+  public PageOfResources readResources() throws IOException {
+    final ByteArrayInputStream is = new ByteArrayInputStream(page);
+    if (shared) {
+      return Json.reader(PageOfResources.class).readValue(is);
+    }
+    return new ObjectMapper()
+        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+        .readValue(is, PageOfResources.class);
+  }
+}
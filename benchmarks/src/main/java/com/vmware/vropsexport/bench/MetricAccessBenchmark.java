@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport.bench;
+
+import com.vmware.vropsexport.Row;
+import com.vmware.vropsexport.Rowset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the boxed and primitive ways of reading metrics from a rowset. Run with "-prof gc" to
+ * see the allocation rate of each variant.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricAccessBenchmark {
+  @Param({"288"})
+  private int rows;
+
+  @Param({"10", "100"})
+  private int metrics;
+
+  // Fraction of the slots that hold a value.
+  @Param({"0.9"})
+  private double density;
+
+  private Rowset rowset;
+
+  private Row target;
+
+  @Setup
+  public void setup() {
+    final Random rnd = new Random(42);
+    final long[] ts = new long[rows];
+    for (int i = 0; i < rows; ++i) {
+      ts[i] = 1600000000000L + i * 300000L;
+    }
+    rowset = new Rowset("resource", ts, metrics, 0);
+    for (int i = 0; i < rows; ++i) {
+      for (int m = 0; m < metrics; ++m) {
+        if (rnd.nextDouble() < density) {
+          rowset.setMetric(i, m, rnd.nextDouble() * 1000);
+        }
+      }
+    }
+    target = new Row(0, metrics, 0);
+  }
+
+  @Benchmark
+  public double boxedGet() {
+    double sum = 0;
+    for (final Row row : rowset.getRows()) {
+      for (int m = 0; m < metrics; ++m) {
+        final Double d = row.getMetric(m);
+        if (d != null) {
+          sum += d;
+        }
+      }
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public double primitiveGet() {
+    double sum = 0;
+    for (int i = 0; i < rowset.size(); ++i) {
+      for (int m = 0; m < metrics; ++m) {
+        if (rowset.hasMetric(i, m)) {
+          sum += rowset.getMetricValue(i, m);
+        }
+      }
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public Row boxedCopy() {
+    for (final Row row : rowset.getRows()) {
+      for (int m = 0; m < metrics; ++m) {
+        final Double d = row.getMetric(m);
+        if (d != null) {
+          target.setMetric(m, d);
+        }
+      }
+    }
+    return target;
+  }
+
+  @Benchmark
+  public Row bulkCopy() {
+    for (final Row row : rowset.getRows()) {
+      row.copyDefinedMetricsTo(target);
+    }
+    return target;
+  }
+}
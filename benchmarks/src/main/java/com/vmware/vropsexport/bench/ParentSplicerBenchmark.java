@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport.bench;
+
+import com.vmware.vropsexport.Rowset;
+import com.vmware.vropsexport.processors.ParentSplicer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Splices a parent rowset into a child. The child owns most of the metric columns and the parent
+ * fills in the last few, which is what a "$parent:" field in a definition does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParentSplicerBenchmark {
+  @Param({"20"})
+  private int metrics;
+
+  @Param({"4"})
+  private int parentMetrics;
+
+  @Param({"288"})
+  private int samples;
+
+  private Rowset child;
+
+  private Rowset parent;
+
+  @Setup
+  public void setup() {
+    final Random rnd = new Random(42);
+    final long[] ts = new long[samples];
+    for (int i = 0; i < samples; ++i) {
+      ts[i] = SyntheticData.START + i * SyntheticData.INTERVAL;
+    }
+    child = new Rowset("child", ts, metrics, 0);
+    parent = new Rowset("parent", ts.clone(), metrics, 0);
+    for (int i = 0; i < samples; ++i) {
+      for (int m = 0; m < metrics - parentMetrics; ++m) {
+        child.setMetric(i, m, rnd.nextDouble());
+      }
+      for (int m = metrics - parentMetrics; m < metrics; ++m) {
+        parent.setMetric(i, m, rnd.nextDouble());
+      }
+    }
+  }
+
+  @Benchmark
+  public Rowset splice() {
+    // Splicing the same parent again just overwrites the same slots, so the child can be reused.
+    ParentSplicer.spliceRows(child, parent);
+    return child;
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport.bench;
+
+import com.vmware.vropsexport.Config;
+import com.vmware.vropsexport.Row;
+import com.vmware.vropsexport.RowMetadata;
+import com.vmware.vropsexport.Rowset;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Walks every field of every row, the way the CSV printer used to. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RowIterationBenchmark {
+  @Param({"10", "100"})
+  private int metrics;
+
+  @Param({"288"})
+  private int samples;
+
+  private RowMetadata meta;
+
+  private Rowset rowset;
+
+  @Setup
+  public void setup() throws Exception {
+    final SyntheticData data = new SyntheticData(1, metrics, samples);
+    final Config conf = SyntheticData.parse(data.definition("csv", null));
+    meta = new RowMetadata(conf);
+    final List<Rowset> rowsets = data.rowsets(conf, meta);
+    rowset = rowsets.get(0);
+  }
+
+  @Benchmark
+  public void iterator(final Blackhole bh) {
+    for (final Row row : rowset.getRows()) {
+      final Iterator<Object> itor = row.iterator(meta);
+      while (itor.hasNext()) {
+        bh.consume(itor.next());
+      }
+    }
+  }
+
+  @Benchmark
+  public void primitive(final Blackhole bh) {
+    final int nMetrics = rowset.getNumMetrics();
+    final int nProps = rowset.getNumProps();
+    for (int i = 0; i < rowset.size(); ++i) {
+      for (int p = 0; p < nProps; ++p) {
+        bh.consume(rowset.getProp(i, p));
+      }
+      for (int m = 0; m < nMetrics; ++m) {
+        if (rowset.hasMetric(i, m)) {
+          bh.consume(rowset.getMetricValue(i, m));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport.bench;
+
+import com.vmware.vropsexport.Config;
+import com.vmware.vropsexport.RowMetadata;
+import com.vmware.vropsexport.Rowset;
+import com.vmware.vropsexport.RowsetProcessor;
+import com.vmware.vropsexport.RowsetProcessorFacotry;
+import com.vmware.vropsexport.exceptions.ExporterException;
+import com.vmware.vropsexport.processors.CSVPrinter;
+import com.vmware.vropsexport.processors.ElasticSearchIndexer;
+import com.vmware.vropsexport.processors.JsonPrinter;
+import com.vmware.vropsexport.processors.SQLDumper;
+import com.vmware.vropsexport.processors.WavefrontPusher;
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Pushes a batch of parsed rowsets through each output sink. File based sinks write to a null
+ * stream, SQL goes to an in-memory H2 database and ElasticSearch and Wavefront talk to local stub
+ * servers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SinkBenchmark {
+  private static final String H2_URL = "jdbc:h2:mem:bench;DB_CLOSE_DELAY=-1";
+
+  @Param({
+    "csv",
+    "json-compact",
+    "json-chatty",
+    "json-elastic",
+    "sql",
+    "elasticsearch",
+    "wavefront"
+  })
+  private String sink;
+
+  @Param({"10"})
+  private int resources;
+
+  @Param({"20"})
+  private int metrics;
+
+  @Param({"288"})
+  private int samples;
+
+  private RowMetadata meta;
+
+  private List<Rowset> rowsets;
+
+  private RowsetProcessor processor;
+
+  private Closeable stub;
+
+  private Connection keepAlive;
+
+  @Setup
+  public void setup() throws Exception {
+    final SyntheticData data = new SyntheticData(resources, metrics, samples);
+    final String definition;
+    final RowsetProcessorFacotry factory;
+    switch (sink) {
+      case "csv":
+        definition = data.definition("csv", null);
+        factory = new CSVPrinter.Factory();
+        break;
+      case "json-compact":
+      case "json-chatty":
+      case "json-elastic":
+        definition =
+            data.definition(
+                "json", "jsonConfig:\n  format: " + sink.substring("json-".length()) + "\n");
+        factory = new JsonPrinter.Factory();
+        break;
+      case "sql":
+        // The in-memory database disappears with its last connection, so hold on to one.
+        keepAlive = DriverManager.getConnection(H2_URL);
+        try (final Statement stmt = keepAlive.createStatement()) {
+          stmt.execute(data.createTable());
+        }
+        definition =
+            data.definition(
+                "sql",
+                "sqlConfig:\n"
+                    + "  driver: org.h2.Driver\n"
+                    + "  connectionString: \""
+                    + H2_URL
+                    + "\"\n"
+                    + "  sql: \""
+                    + data.insertStatement()
+                    + "\"\n");
+        factory = new SQLDumper.Factory();
+        break;
+      case "elasticsearch":
+        final ElasticSearchStub es = new ElasticSearchStub();
+        stub = es;
+        definition =
+            data.definition(
+                "elasticsearch",
+                "elasticSearchConfig:\n"
+                    + "  urls:\n"
+                    + "    - "
+                    + es.getUrl()
+                    + "\n"
+                    + "  index: bench\n"
+                    + "  bulkSize: 100\n");
+        factory = new ElasticSearchIndexer.Factory();
+        break;
+      case "wavefront":
+        final WavefrontProxyStub wf = new WavefrontProxyStub();
+        stub = wf;
+        definition =
+            data.definition(
+                "wavefront",
+                "wavefrontConfig:\n"
+                    + "  proxyHost: localhost\n"
+                    + "  proxyPort: "
+                    + wf.getPort()
+                    + "\n");
+        factory = new WavefrontPusher.Factory();
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown sink: " + sink);
+    }
+    final Config conf = SyntheticData.parse(definition);
+    meta = new RowMetadata(conf);
+    rowsets = data.rowsets(conf, meta);
+    processor =
+        factory.makeFromConfig(
+            NullOutputStream.NULL_OUTPUT_STREAM, conf, data.dataProvider(data.statsPayload()));
+    processor.preamble(meta, conf);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    processor.close();
+    if (stub != null) {
+      stub.close();
+    }
+    if (keepAlive != null) {
+      keepAlive.close();
+    }
+  }
+
+  @Benchmark
+  public void process() throws ExporterException {
+    for (final Rowset rs : rowsets) {
+      processor.process(rs, meta);
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport.bench;
+
+import com.vmware.vropsexport.Config;
+import com.vmware.vropsexport.DataProvider;
+import com.vmware.vropsexport.LRUCache;
+import com.vmware.vropsexport.RowMetadata;
+import com.vmware.vropsexport.Rowset;
+import com.vmware.vropsexport.RowsetProcessor;
+import com.vmware.vropsexport.StatsProcessor;
+import com.vmware.vropsexport.exceptions.ExporterException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Parses a synthetic /stats/query payload into rowsets, without sending them anywhere. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StatsProcessorBenchmark {
+  @Param({"10", "100"})
+  private int resources;
+
+  @Param({"10", "50"})
+  private int metrics;
+
+  @Param({"12", "288"})
+  private int samples;
+
+  @Param({"false", "true"})
+  private boolean compact;
+
+  private SyntheticData data;
+
+  private Config conf;
+
+  private RowMetadata meta;
+
+  private DataProvider dp;
+
+  private byte[] payload;
+
+  @Setup
+  public void setup() throws Exception {
+    data = new SyntheticData(resources, metrics, samples);
+    conf = SyntheticData.parse(data.definition("csv", compact ? "compact: true\n" : null));
+    meta = new RowMetadata(conf);
+    payload = data.statsPayload();
+    dp = data.dataProvider(payload);
+  }
+
+  @Benchmark
+  public int process(final Blackhole bh) throws IOException, ExporterException, HttpException {
+    final StatsProcessor sp =
+        new StatsProcessor(conf, meta, dp, new LRUCache<>(1000), null, false);
+    return sp.process(
+        new ByteArrayInputStream(payload),
+        new RowsetProcessor() {
+          @Override
+          public void preamble(final RowMetadata meta, final Config conf) {}
+
+          @Override
+          public void process(final Rowset rowset, final RowMetadata meta) {
+            bh.consume(rowset);
+          }
+
+          @Override
+          public void close() {}
+        },
+        SyntheticData.START,
+        data.getEnd());
+  }
+}
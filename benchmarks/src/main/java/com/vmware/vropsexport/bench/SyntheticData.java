@@ -0,0 +1,278 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport.bench;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.vmware.vropsexport.Config;
+import com.vmware.vropsexport.ConfigLoader;
+import com.vmware.vropsexport.DataProvider;
+import com.vmware.vropsexport.LRUCache;
+import com.vmware.vropsexport.RowMetadata;
+import com.vmware.vropsexport.Rowset;
+import com.vmware.vropsexport.RowsetProcessor;
+import com.vmware.vropsexport.StatsProcessor;
+import com.vmware.vropsexport.exceptions.ExporterException;
+import com.vmware.vropsexport.exceptions.ValidationException;
+import com.vmware.vropsexport.models.NamedResource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.apache.http.HttpException;
+
+/**
+ * Generates definitions and /stats/query payloads of arbitrary size, so the benchmarks don't depend
+ * on a live vR Ops instance. All metrics are named "bench|metricN" and aliased "mN". Every
+ * definition also has a resource id and a guest OS property.
+ */
+public class SyntheticData {
+  public static final long START = 1617321169385L;
+
+  public static final long INTERVAL = 300000L;
+
+  private final int resources;
+
+  private final int metrics;
+
+  private final int samples;
+
+  public SyntheticData(final int resources, final int metrics, final int samples) {
+    this.resources = resources;
+    this.metrics = metrics;
+    this.samples = samples;
+  }
+
+  public long getEnd() {
+    return START + samples * INTERVAL;
+  }
+
+  public static String resourceId(final int n) {
+    return String.format("00000000-0000-0000-0000-%012d", n);
+  }
+
+  public static String metricKey(final int n) {
+    return "bench|metric" + n;
+  }
+
+  /**
+   * Builds a definition file.
+   *
+   * @param outputFormat The output format
+   * @param extra Additional YAML appended to the top level, e.g. a sink configuration section
+   * @return The YAML text
+   */
+  public String definition(final String outputFormat, final String extra) {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("resourceType: VirtualMachine\n");
+    sb.append("rollupType: AVG\n");
+    sb.append("rollupMinutes: 5\n");
+    sb.append("dateFormat: \"yyyy-MM-dd HH:mm:ss\"\n");
+    sb.append("outputFormat: ").append(outputFormat).append('\n');
+    if (extra != null) {
+      sb.append(extra);
+    }
+    sb.append("fields:\n");
+    sb.append("  - alias: resId\n    prop: $resId\n");
+    for (int i = 0; i < metrics; ++i) {
+      sb.append("  - alias: m").append(i).append('\n');
+      sb.append("    metric: ").append(metricKey(i)).append('\n');
+    }
+    sb.append("  - alias: guestOS\n    prop: config|guestFullName\n");
+    return sb.toString();
+  }
+
+  /** A SQL statement that inserts every field of the definition into a table called "metrics". */
+  public String insertStatement() {
+    final StringBuilder cols = new StringBuilder("ts, resName, resId, guestOS");
+    final StringBuilder params = new StringBuilder(":timestamp, :resName, :resId, :guestOS");
+    for (int i = 0; i < metrics; ++i) {
+      cols.append(", m").append(i);
+      params.append(", :m").append(i);
+    }
+    return "MERGE INTO metrics(" + cols + ") KEY(ts, resId) VALUES (" + params + ")";
+  }
+
+  /** DDL for the table targeted by {@link #insertStatement()}. */
+  public String createTable() {
+    final StringBuilder sb =
+        new StringBuilder(
+            "CREATE TABLE IF NOT EXISTS metrics(ts TIMESTAMP, resName VARCHAR(255), "
+                + "resId VARCHAR(255), guestOS VARCHAR(255)");
+    for (int i = 0; i < metrics; ++i) {
+      sb.append(", m").append(i).append(" DOUBLE");
+    }
+    return sb.append(", PRIMARY KEY(ts, resId))").toString();
+  }
+
+  public static Config parse(final String definition) throws ValidationException {
+    return ConfigLoader.parse(new StringReader(definition));
+  }
+
+  /**
+   * Generates a /stats/query response for all resources. Every resource also reports one metric
+   * that isn't in the definition, so the parser has to skip some data, just like in real life.
+   */
+  public byte[] statsPayload() throws IOException {
+    final Random rnd = new Random(4711);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (final JsonGenerator g = new JsonFactory().createGenerator(out, JsonEncoding.UTF8)) {
+      g.writeStartObject();
+      g.writeArrayFieldStart("values");
+      for (int r = 0; r < resources; ++r) {
+        g.writeStartObject();
+        g.writeStringField("resourceId", resourceId(r));
+        g.writeObjectFieldStart("stat-list");
+        g.writeArrayFieldStart("stat");
+        for (int m = 0; m <= metrics; ++m) {
+          g.writeStartObject();
+          g.writeArrayFieldStart("timestamps");
+          for (int s = 0; s < samples; ++s) {
+            // Add some jitter, just like the real thing.
+            g.writeNumber(START + s * INTERVAL + rnd.nextInt(20));
+          }
+          g.writeEndArray();
+          g.writeObjectFieldStart("statKey");
+          g.writeStringField("key", m < metrics ? metricKey(m) : "bench|unused");
+          g.writeEndObject();
+          g.writeObjectFieldStart("intervalUnit");
+          g.writeNumberField("quantifier", 1);
+          g.writeEndObject();
+          g.writeArrayFieldStart("data");
+          for (int s = 0; s < samples; ++s) {
+            g.writeNumber(rnd.nextDouble() * 100);
+          }
+          g.writeEndArray();
+          g.writeEndObject();
+        }
+        g.writeEndArray();
+        g.writeEndObject();
+        g.writeEndObject();
+      }
+      g.writeEndArray();
+      g.writeEndObject();
+    }
+    return out.toByteArray();
+  }
+
+  /** Returns a page of resources, like the ones returned by /resources. */
+  public byte[] resourcesPayload() throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (final JsonGenerator g = new JsonFactory().createGenerator(out, JsonEncoding.UTF8)) {
+      g.writeStartObject();
+      g.writeObjectFieldStart("pageInfo");
+      g.writeNumberField("totalCount", resources);
+      g.writeNumberField("page", 0);
+      g.writeNumberField("pageSize", resources);
+      g.writeEndObject();
+      g.writeArrayFieldStart("resourceList");
+      for (int r = 0; r < resources; ++r) {
+        g.writeStartObject();
+        g.writeStringField("identifier", resourceId(r));
+        g.writeObjectFieldStart("resourceKey");
+        g.writeStringField("name", "vm-" + r);
+        g.writeStringField("adapterKindKey", "VMWARE");
+        g.writeStringField("resourceKindKey", "VirtualMachine");
+        g.writeEndObject();
+        g.writeEndObject();
+      }
+      g.writeEndArray();
+      g.writeEndObject();
+    }
+    return out.toByteArray();
+  }
+
+  public DataProvider dataProvider(final byte[] payload) {
+    return new SyntheticDataProvider(payload);
+  }
+
+  /** Runs the payload through the parser and returns the resulting rowsets. */
+  public List<Rowset> rowsets(final Config conf, final RowMetadata meta)
+      throws IOException, ExporterException, HttpException {
+    final byte[] payload = statsPayload();
+    final List<Rowset> result = new ArrayList<>(resources);
+    final StatsProcessor sp =
+        new StatsProcessor(conf, meta, dataProvider(payload), new LRUCache<>(1000), null, false);
+    sp.process(
+        new ByteArrayInputStream(payload),
+        new RowsetProcessor() {
+          @Override
+          public void preamble(final RowMetadata meta, final Config conf) {}
+
+          @Override
+          public void process(final Rowset rowset, final RowMetadata meta) {
+            result.add(rowset);
+          }
+
+          @Override
+          public void close() {}
+        },
+        START,
+        getEnd());
+    return result;
+  }
+
+  private class SyntheticDataProvider implements DataProvider {
+    private final byte[] payload;
+
+    private SyntheticDataProvider(final byte[] payload) {
+      this.payload = payload;
+    }
+
+    @Override
+    public Map<String, String> fetchProps(final String id) {
+      final Map<String, String> props = new HashMap<>();
+      props.put("config|guestFullName", "Benchmark Linux (64-bit)");
+      props.put("summary|tagJson", "none");
+      return props;
+    }
+
+    @Override
+    public NamedResource getParentOf(final String id, final String parentType) {
+      return null;
+    }
+
+    @Override
+    public InputStream fetchMetricStream(
+        final NamedResource[] resList, final RowMetadata meta, final long begin, final long end) {
+      return new ByteArrayInputStream(payload);
+    }
+
+    @Override
+    public String getResourceName(final String resourceId) {
+      return "vm-" + resourceId.substring(resourceId.length() - 4);
+    }
+
+    @Override
+    public List<String> getStatKeysForResource(final String resourceId) {
+      final List<String> keys = new ArrayList<>(metrics);
+      for (int i = 0; i < metrics; ++i) {
+        keys.add(metricKey(i));
+      }
+      return Collections.unmodifiableList(keys);
+    }
+  }
+}
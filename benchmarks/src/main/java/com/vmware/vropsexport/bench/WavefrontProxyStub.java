@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport.bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Stand-in for a Wavefront proxy. Accepts connections and throws away everything it receives. */
+public class WavefrontProxyStub implements Closeable {
+  private final ServerSocket server;
+
+  private final AtomicLong bytesReceived = new AtomicLong();
+
+  public WavefrontProxyStub() throws IOException {
+    server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    final Thread acceptor = new Thread(this::acceptLoop, "wavefront-stub");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  public int getPort() {
+    return server.getLocalPort();
+  }
+
+  public long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  private void acceptLoop() {
+    while (!server.isClosed()) {
+      try {
+        final Socket s = server.accept();
+        final Thread t = new Thread(() -> drain(s), "wavefront-stub-conn");
+        t.setDaemon(true);
+        t.start();
+      } catch (final IOException e) {
+        // Closed or failed. Either way, we're done.
+        return;
+      }
+    }
+  }
+
+  private void drain(final Socket s) {
+    final byte[] buf = new byte[8192];
+    try (final InputStream in = s.getInputStream()) {
+      for (int n = in.read(buf); n != -1; n = in.read(buf)) {
+        bytesReceived.addAndGet(n);
+      }
+    } catch (final IOException e) {
+      // Connection dropped. Nothing to do.
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.close();
+  }
+}
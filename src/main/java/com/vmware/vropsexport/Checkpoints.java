@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Remembers the timestamp of the last sample exported for each resource, so that the next run of
+ * the same export only has to fetch what's newer.
+ */
+public class Checkpoints {
+  private static final Logger log = LogManager.getLogger(Checkpoints.class);
+
+  /** Returned for resources that haven't been exported before. */
+  public static final long NONE = -1;
+
+  private final Map<String, Long> marks = new ConcurrentHashMap<>();
+
+  /** Returns the timestamp of the last sample exported for a resource, or NONE. */
+  public long get(final String resourceId) {
+    return marks.getOrDefault(resourceId, NONE);
+  }
+
+  /** Records that every sample up to and including the timestamp has been exported. */
+  public void advance(final String resourceId, final long timestamp) {
+    marks.merge(resourceId, timestamp, Math::max);
+  }
+
+  /**
+   * Returns where a query for a group of resources has to start so that none of them misses any new
+   * samples. Never earlier than the given begin.
+   */
+  public long beginFor(final Collection<String> resourceIds, final long begin) {
+    long b = Long.MAX_VALUE;
+    for (final String id : resourceIds) {
+      final long mark = get(id);
+      b = Math.min(b, mark != NONE ? mark + 1 : begin);
+    }
+    return b != Long.MAX_VALUE ? Math.max(begin, b) : begin;
+  }
+
+  public int size() {
+    return marks.size();
+  }
+
+  public void load(final File file) throws IOException {
+    if (!file.exists()) {
+      return;
+    }
+    final Properties props = new Properties();
+    try (final InputStream in = new FileInputStream(file)) {
+      props.load(in);
+    }
+    for (final String id : props.stringPropertyNames()) {
+      try {
+        marks.put(id, Long.parseLong(props.getProperty(id)));
+      } catch (final NumberFormatException e) {
+        log.warn("Ignoring invalid checkpoint for " + id + ": " + props.getProperty(id));
+      }
+    }
+  }
+
+  /**
+   * Saves the checkpoints, leaving out the ones older than the given time. Resources that haven't
+   * been exported since then will start from the beginning of the lookback window anyway.
+   */
+  public void save(final File file, final long oldest, final String comment) throws IOException {
+    final Properties props = new Properties();
+    for (final Map.Entry<String, Long> e : marks.entrySet()) {
+      if (e.getValue() >= oldest) {
+        props.setProperty(e.getKey(), Long.toString(e.getValue()));
+      }
+    }
+
+    // Write to a temporary file first, so that a crash never leaves half the checkpoints behind.
+    final File tmp = new File(file.getPath() + ".tmp");
+    try (final OutputStream out = new FileOutputStream(tmp)) {
+      props.store(out, comment);
+    }
+    Files.move(
+        tmp.toPath(),
+        file.toPath(),
+        StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Decides how many resources to put in each metric query. The size grows by a fixed step after
+ * every response that came back comfortably within the limits and shrinks multiplicatively when a
+ * response was too slow or too big, or when the server dropped the connection. A size that made the
+ * server drop the connection is never tried again during the same run.
+ *
+ * <p>Sizes can be saved to and loaded from a properties file, so the next run can start where this
+ * one left off.
+ */
+public class ChunkSizer {
+  private static final Logger log = LogManager.getLogger(ChunkSizer.class);
+
+  /** Responses slower than this (until the headers arrive) count as too slow. */
+  public static final long DEFAULT_TARGET_MILLIS = 10000;
+
+  /** Responses with more samples than this count as too big. */
+  public static final long DEFAULT_MAX_SAMPLES = 1000000;
+
+  /** Responses with more bytes than this count as too big. */
+  public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+  private static final int ADDITIVE_STEP = 5;
+
+  private static final double SLOW_DECREASE = 0.75;
+
+  private static final double FAILURE_DECREASE = 0.5;
+
+  private final String key;
+
+  private final int maxSize;
+
+  private long targetMillis = DEFAULT_TARGET_MILLIS;
+
+  private long maxSamples = DEFAULT_MAX_SAMPLES;
+
+  private long maxBytes = DEFAULT_MAX_BYTES;
+
+  private int size;
+
+  private int ceiling;
+
+  /**
+   * Creates a chunk sizer.
+   *
+   * @param key Identifies what's being exported when saving and loading sizes
+   * @param initialSize Size to start from if nothing has been loaded
+   * @param maxSize The size will never grow beyond this
+   */
+  public ChunkSizer(final String key, final int initialSize, final int maxSize) {
+    this.key = key;
+    this.maxSize = Math.max(1, maxSize);
+    ceiling = this.maxSize;
+    size = clamp(initialSize);
+  }
+
+  public void setTargetMillis(final long targetMillis) {
+    this.targetMillis = targetMillis;
+  }
+
+  public void setMaxSamples(final long maxSamples) {
+    this.maxSamples = maxSamples;
+  }
+
+  public void setMaxBytes(final long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  public synchronized int getChunkSize() {
+    return size;
+  }
+
+  /**
+   * Reports a response that was received and parsed successfully.
+   *
+   * @param resources Number of resources in the request
+   * @param millis Time until the response headers arrived
+   * @param bytes Size of the response body
+   * @param samples Number of samples in the response
+   */
+  public synchronized void reportSuccess(
+      final int resources, final long millis, final long bytes, final long samples) {
+    if (millis > targetMillis || bytes > maxBytes || samples > maxSamples) {
+      // Several concurrent requests of the same size may come back slow. Basing the new size on
+      // the request rather than on the current size keeps us from shrinking once for each of them.
+      resize(Math.min(size, (int) (resources * SLOW_DECREASE)));
+      return;
+    }
+
+    // Only grow on responses to requests of (roughly) the current size. A small request coming
+    // back fast doesn't tell us anything about bigger ones.
+    if (resources + ADDITIVE_STEP >= size
+        && millis * 2 <= targetMillis
+        && bytes * 2 <= maxBytes
+        && samples * 2 <= maxSamples) {
+      resize(size + ADDITIVE_STEP);
+    }
+  }
+
+  /**
+   * Reports a request that failed because the server dropped the connection or cut the response
+   * short.
+   *
+   * @param resources Number of resources in the request
+   */
+  public synchronized void reportFailure(final int resources) {
+    ceiling = Math.min(ceiling, Math.max(1, resources - 1));
+    resize(Math.min(size, (int) (resources * FAILURE_DECREASE)));
+  }
+
+  /** Loads a previously saved size, if there is one. */
+  public synchronized void load(final File file) throws IOException {
+    if (!file.exists()) {
+      return;
+    }
+    final Properties props = new Properties();
+    try (final InputStream in = new FileInputStream(file)) {
+      props.load(in);
+    }
+    final String s = props.getProperty(key);
+    if (s == null) {
+      return;
+    }
+    try {
+      size = clamp(Integer.parseInt(s));
+      log.debug("Loaded chunk size " + size + " for " + key);
+    } catch (final NumberFormatException e) {
+      log.warn("Ignoring invalid chunk size for " + key + ": " + s);
+    }
+  }
+
+  /** Saves the current size, keeping any sizes saved for other keys. */
+  public synchronized void save(final File file) throws IOException {
+    final Properties props = new Properties();
+    if (file.exists()) {
+      try (final InputStream in = new FileInputStream(file)) {
+        props.load(in);
+      }
+    }
+    props.setProperty(key, Integer.toString(size));
+
+    // Write to a temporary file first, so that a crash never leaves a half written file behind.
+    final File tmp = new File(file.getPath() + ".tmp");
+    try (final OutputStream out = new FileOutputStream(tmp)) {
+      props.store(out, "Resources per metric query");
+    }
+    Files.move(
+        tmp.toPath(),
+        file.toPath(),
+        StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private void resize(final int newSize) {
+    final int s = Math.min(clamp(newSize), ceiling);
+    if (s != size) {
+      log.debug("Chunk size changed from " + size + " to " + s);
+      size = s;
+    }
+  }
+
+  private int clamp(final int s) {
+    return Math.max(1, Math.min(s, maxSize));
+  }
+}
@@ -17,9 +17,8 @@
  */
 package com.vmware.vropsexport;
 
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.vmware.vropsexport.exceptions.ExporterException;
+import com.vmware.vropsexport.json.Json;
 import com.vmware.vropsexport.models.AuthRequest;
 import com.vmware.vropsexport.models.AuthResponse;
 import com.vmware.vropsexport.models.TokenAuthResponse;
@@ -33,8 +32,10 @@ import org.apache.http.client.config.CookieSpecs;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
@@ -42,20 +43,38 @@ import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.ssl.SSLContexts;
+import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLHandshakeException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.UnknownHostException;
 import java.nio.charset.Charset;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 @SuppressWarnings("WeakerAccess")
 public class Client {
@@ -67,22 +86,71 @@ public class Client {
 
   private static final int SOCKET_TIMEOUT_MS = 300000;
 
+  // Log in again this long before the token expires
+  private static final long TOKEN_REFRESH_MARGIN_MS = 600000;
+
+  // Assumed token lifetime when the server doesn't tell us
+  private static final long DEFAULT_TOKEN_LIFETIME_MS = 1800000;
+
+  private static final int DEFAULT_MAX_CONNECTIONS = 20;
+
+  // How long an idle thread for asynchronous requests is kept around
+  private static final long ASYNC_IDLE_SECONDS = 60;
+
+  // How long to leave a node alone after failing to connect to it
+  private static final long NODE_RETRY_MS = 30000;
+
   private final HttpClient client;
 
-  private final String urlBase;
+  private final PoolingHttpClientConnectionManager connectionManager;
 
-  private String authToken;
+  // The nodes of the cluster. Requests go to the one with the fewest requests in flight.
+  private final List<Node> nodes = new ArrayList<>();
 
-  private final boolean dumpRest;
+  // Where to start looking for the least busy node, so that ties are broken round-robin
+  private final AtomicInteger nextNode = new AtomicInteger();
+
+  // Runs the asynchronous requests. It has a thread for every request that may be in flight.
+  private final ThreadPoolExecutor asyncExecutor;
 
-  private String tokenPrefix;
+  // Value of the Authorization header, or null before logging in. It's refreshed under the
+  // client's lock, but async and virtual-thread requests read it without taking the lock.
+  private volatile String authorization;
+
+  private final boolean dumpRest;
 
   private final ExtendableTrustStrategy trustStrategy;
 
+  // Whatever we need to log in again when the token is about to expire
+  private String refreshToken;
+
+  private String username;
+
+  private String password;
+
+  private long tokenExpiry;
+
   public Client(final String urlBase, final KeyStore extendedTrust, final boolean dumpRest)
       throws KeyManagementException, NoSuchAlgorithmException, KeyStoreException, IOException,
           HttpException, ExporterException {
-    this.urlBase = urlBase;
+    this(Collections.singletonList(urlBase), extendedTrust, dumpRest);
+  }
+
+  /**
+   * Creates a client that spreads its requests over the nodes of a cluster. They all share the
+   * same login, so they must belong to the same cluster.
+   *
+   * @param urlBases The URLs of the nodes. The first one identifies the cluster.
+   * @param extendedTrust Certificates to trust beyond the default ones
+   * @param dumpRest Log every request
+   */
+  public Client(final List<String> urlBases, final KeyStore extendedTrust, final boolean dumpRest)
+      throws KeyManagementException, NoSuchAlgorithmException, KeyStoreException, IOException,
+          HttpException, ExporterException {
+    for (final String urlBase : urlBases) {
+      nodes.add(new Node(urlBase));
+    }
+    asyncExecutor = newAsyncExecutor(DEFAULT_MAX_CONNECTIONS * nodes.size());
     this.dumpRest = dumpRest;
     // Configure timeout
     //
@@ -101,35 +169,90 @@ public class Client {
         new SSLConnectionSocketFactory(sslContext, NoopHostnameVerifier.INSTANCE);
     final Registry<ConnectionSocketFactory> socketFactoryRegistry =
         RegistryBuilder.<ConnectionSocketFactory>create().register("https", sslf).build();
-    final PoolingHttpClientConnectionManager cm =
-        new PoolingHttpClientConnectionManager(socketFactoryRegistry);
-    cm.setMaxTotal(20);
-    cm.setDefaultMaxPerRoute(20);
+    connectionManager = new PoolingHttpClientConnectionManager(socketFactoryRegistry);
+    connectionManager.setMaxTotal(DEFAULT_MAX_CONNECTIONS * nodes.size());
+    connectionManager.setDefaultMaxPerRoute(DEFAULT_MAX_CONNECTIONS);
     client =
         HttpClients.custom()
             .setSSLSocketFactory(sslf)
-            .setConnectionManager(cm)
+            .setConnectionManager(connectionManager)
             .setDefaultRequestConfig(requestConfig)
             .setSSLHostnameVerifier(NoopHostnameVerifier.INSTANCE)
             .build();
 
-    try {
-      // Make a dummy API call to make sure we have our certs in order
-      log.debug("Hitting dummy URL to get certs");
-      getStream("/suite-api/api/resources");
-    } catch (final SSLHandshakeException e) {
-      // If we captured a cert, it's recoverable by asking the user to trust it.
-      //
-      final X509Certificate[] cc = trustStrategy.getCapturedCerts();
-      if (cc == null) {
-        throw e;
+    // Make a dummy API call to every node to make sure we have our certs in order
+    log.debug("Hitting dummy URL to get certs");
+    int unreachable = 0;
+    for (final Node node : nodes) {
+      try {
+        final HttpResponse resp =
+            client.execute(new HttpGet(node.urlBase + "/suite-api/api/resources"));
+        try {
+          checkResponse(resp);
+        } finally {
+          EntityUtils.consumeQuietly(resp.getEntity());
+        }
+      } catch (final SSLHandshakeException e) {
+        // If we captured a cert, it's recoverable by asking the user to trust it.
+        //
+        final X509Certificate[] cc = trustStrategy.getCapturedCerts();
+        if (cc == null) {
+          throw e;
+        }
+        throw new RecoverableCertificateException(cc, e);
+      } catch (final HttpException e) {
+        // Ignore all other exceptions. We'll probably get a 401 here.
+      } catch (final ConnectException | ConnectTimeoutException | UnknownHostException e) {
+        // We can do without some of the nodes, but not all of them.
+        if (++unreachable == nodes.size()) {
+          throw e;
+        }
+        log.warn("Cannot connect to " + node.urlBase + ". Leaving it alone for now", e);
+        node.downUntil = System.currentTimeMillis() + NODE_RETRY_MS;
       }
-      throw new RecoverableCertificateException(cc, e);
-    } catch (final HttpException e) {
-      // Ignore all other exceptions. We'll probably get a 401 here.
     }
   }
 
+  /**
+   * Limits the number of requests in flight against each node. Callers beyond the limit wait for
+   * as long as it takes, rather than giving up after the connection request timeout like they would
+   * when waiting for the connection pool. That matters when there are many more callers than
+   * connections, e.g. when running on virtual threads. Requests that were already in flight
+   * without a limit don't count against it.
+   */
+  public void setMaxConcurrentRequests(final int maxRequests) {
+    connectionManager.setMaxTotal(maxRequests * nodes.size());
+    connectionManager.setDefaultMaxPerRoute(maxRequests);
+    for (final Node node : nodes) {
+      node.setLimit(maxRequests);
+    }
+
+    // The core size can't be above the maximum, so the order depends on which way we're going.
+    final int threads = maxRequests * nodes.size();
+    if (threads > asyncExecutor.getMaximumPoolSize()) {
+      asyncExecutor.setMaximumPoolSize(threads);
+      asyncExecutor.setCorePoolSize(threads);
+    } else {
+      asyncExecutor.setCorePoolSize(threads);
+      asyncExecutor.setMaximumPoolSize(threads);
+    }
+  }
+
+  /** Returns the maximum number of requests in flight against each node. */
+  public int getMaxConcurrentRequests() {
+    return connectionManager.getDefaultMaxPerRoute();
+  }
+
+  /** Returns the URL of the first node, which identifies the cluster. */
+  public String getUrlBase() {
+    return nodes.get(0).urlBase;
+  }
+
+  /** Returns the URLs of all the nodes. */
+  public List<String> getUrlBases() {
+    return nodes.stream().map(n -> n.urlBase).collect(Collectors.toList());
+  }
+
   public Client login(final String apiToken) throws HttpException, IOException {
     final HttpPost post =
         new HttpPost(
@@ -142,14 +265,47 @@ public class Client {
     final HttpResponse resp = client.execute(post);
     checkResponse(resp);
     final TokenAuthResponse tokenResp =
-        getObjectMapper().readValue(resp.getEntity().getContent(), TokenAuthResponse.class);
-    authToken = tokenResp.getAccess_token();
-    tokenPrefix = "CSPToken ";
+        Json.reader(TokenAuthResponse.class).readValue(resp.getEntity().getContent());
+    authorization = "CSPToken " + tokenResp.getAccess_token();
+    refreshToken = apiToken;
+    long lifetime = DEFAULT_TOKEN_LIFETIME_MS;
+    try {
+      if (tokenResp.getExpires_in() != null) {
+        lifetime = Long.parseLong(tokenResp.getExpires_in()) * 1000;
+      }
+    } catch (final NumberFormatException e) {
+      // Stick with the default
+    }
+    tokenExpiry = System.currentTimeMillis() + lifetime;
     return this;
   }
 
-  public Client login(String username, final String password)
+  public Client login(final String username, final String password)
       throws HttpException, IOException, RecoverableCertificateException {
+    acquireToken(username, password);
+    this.username = username;
+    this.password = password;
+    return this;
+  }
+
+  /**
+   * Logs in again if the token has expired or is about to. Long running processes should call this
+   * before each batch of work.
+   */
+  public synchronized void refreshLoginIfNeeded() throws HttpException, IOException {
+    if (System.currentTimeMillis() < tokenExpiry - TOKEN_REFRESH_MARGIN_MS) {
+      return;
+    }
+    log.debug("Token is about to expire. Logging in again");
+    if (refreshToken != null) {
+      login(refreshToken);
+    } else if (username != null) {
+      acquireToken(username, password);
+    }
+  }
+
+  private void acquireToken(String username, final String password)
+      throws HttpException, IOException {
 
     // User may be in a non-local auth source.
     //
@@ -168,18 +324,19 @@ public class Client {
     final AuthRequest rq = new AuthRequest(authSource, username, password);
     final AuthResponse response =
         postJsonReturnJson("/suite-api/api/auth/token/acquire", rq, AuthResponse.class);
-    authToken = response.getToken();
-    tokenPrefix = "vRealizeOpsToken ";
-    return this;
+    authorization = "vRealizeOpsToken " + response.getToken();
+    tokenExpiry =
+        response.getValidity() > 0
+            ? response.getValidity()
+            : System.currentTimeMillis() + DEFAULT_TOKEN_LIFETIME_MS;
   }
 
   public <T> T getJson(final String uri, final Class<T> responseClass, final String... queries)
       throws IOException, HttpException {
-    final HttpResponse resp = innerGet(uri, queries);
-    return getObjectMapper().readValue(resp.getEntity().getContent(), responseClass);
+    return Json.reader(responseClass).readValue(innerGet(uri, queries));
   }
 
-  private HttpResponse innerGet(String uri, final String... queries)
+  private InputStream innerGet(String uri, final String... queries)
       throws IOException, HttpException {
     if (queries != null) {
       final StringBuilder sb = new StringBuilder(uri);
@@ -189,42 +346,104 @@ public class Client {
       }
       uri = sb.toString();
     }
-    if (dumpRest) {
-      log.debug("GET " + urlBase + uri);
-    }
-    final HttpGet get = new HttpGet(urlBase + uri);
+    final HttpGet get = new HttpGet();
     get.addHeader("Accept", "application/json");
     get.addHeader("Accept-Encoding", "gzip");
-    if (authToken != null) {
-      get.addHeader("Authorization", tokenPrefix + authToken);
+    final String auth = authorization;
+    if (auth != null) {
+      get.addHeader("Authorization", auth);
     }
-    final HttpResponse resp = client.execute(get);
-    checkResponse(resp);
-    return resp;
+    return execute(get, uri);
   }
 
   public InputStream postJsonReturnStream(final String uri, final Object payload)
       throws IOException, HttpException {
-    final HttpPost post = new HttpPost(urlBase + uri);
-    post.setEntity(new StringEntity(getObjectMapper().writeValueAsString(payload)));
+    final HttpPost post = new HttpPost();
+    post.setEntity(new StringEntity(Json.writer().writeValueAsString(payload)));
     post.addHeader("Accept", "application/json");
     post.addHeader("Content-Type", "application/json");
     post.addHeader("Accept-Encoding", "gzip");
-    if (authToken != null) {
-      post.addHeader("Authorization", tokenPrefix + authToken + "");
+    final String auth = authorization;
+    if (auth != null) {
+      post.addHeader("Authorization", auth);
     }
-    if (dumpRest) {
-      log.debug("POST " + urlBase + uri);
+    return execute(post, uri);
+  }
+
+  /**
+   * Sends a request to the least busy node. If a node can't be reached, it's left alone for a
+   * while and the request goes to another one. Requests that reached a node are never resent, since
+   * the exporter has its own ways of dealing with them failing.
+   */
+  private InputStream execute(final HttpRequestBase request, final String uri)
+      throws IOException, HttpException {
+    final List<Node> tried = new ArrayList<>(1);
+    for (; ; ) {
+      final Node node = pickNode(tried);
+      request.setURI(URI.create(node.urlBase + uri));
+      if (dumpRest) {
+        log.debug(request.getMethod() + " " + request.getURI());
+      }
+      final boolean permit = node.acquire();
+      boolean handedOff = false;
+      try {
+        final HttpResponse resp = client.execute(request);
+        node.downUntil = 0;
+        checkResponse(resp);
+        final InputStream content = resp.getEntity().getContent();
+
+        // With a single node and no limit, there's nothing to keep track of.
+        if (nodes.size() == 1 && !permit) {
+          return content;
+        }
+        handedOff = true;
+        return new NodeReleasingInputStream(content, node, permit);
+      } catch (final ConnectException | ConnectTimeoutException | UnknownHostException e) {
+        node.downUntil = System.currentTimeMillis() + NODE_RETRY_MS;
+        tried.add(node);
+        if (tried.size() == nodes.size()) {
+          throw e;
+        }
+        log.warn("Cannot connect to " + node.urlBase + ". Trying another node", e);
+      } finally {
+        if (!handedOff) {
+          node.release(permit);
+        }
+      }
     }
-    final HttpResponse resp = client.execute(post);
-    checkResponse(resp);
-    return resp.getEntity().getContent();
+  }
+
+  /**
+   * Picks the node with the fewest requests in flight, preferring the ones that haven't failed
+   * recently.
+   */
+  private Node pickNode(final List<Node> exclude) {
+    final long now = System.currentTimeMillis();
+    final int start = Math.floorMod(nextNode.getAndIncrement(), nodes.size());
+    Node best = null;
+    for (int i = 0; i < nodes.size(); ++i) {
+      final Node node = nodes.get((start + i) % nodes.size());
+      if (exclude.contains(node)) {
+        continue;
+      }
+      if (best == null) {
+        best = node;
+        continue;
+      }
+      final boolean up = node.downUntil <= now;
+      final boolean bestUp = best.downUntil <= now;
+      if (up && !bestUp
+          || up == bestUp && node.outstanding.get() < best.outstanding.get()) {
+        best = node;
+      }
+    }
+    return best;
   }
 
   public <T> T postJsonReturnJson(
       final String uri, final Object payload, final Class<T> responseClass)
       throws IOException, HttpException {
-    return getObjectMapper().readValue(postJsonReturnStream(uri, payload), responseClass);
+    return Json.reader(responseClass).readValue(postJsonReturnStream(uri, payload));
   }
 
   public <T> T getJson(final String uri, final List<String> queries, final Class<T> responseClass)
@@ -239,8 +458,102 @@ public class Client {
 
   public InputStream getStream(final String uri, final String... queries)
       throws IOException, HttpException {
-    final HttpResponse resp = innerGet(uri, queries);
-    return resp.getEntity().getContent();
+    return innerGet(uri, queries);
+  }
+
+  /**
+   * Asynchronous version of {@link #getJson(String, Class, String...)}. The future fails with an
+   * {@link IOException} or {@link HttpException} if the request does.
+   */
+  public <T> CompletableFuture<T> getJsonAsync(
+      final String uri, final Class<T> responseClass, final String... queries) {
+    return async(() -> getJson(uri, responseClass, queries));
+  }
+
+  /** Asynchronous version of {@link #getStream(String, String...)}. */
+  public CompletableFuture<InputStream> getStreamAsync(final String uri, final String... queries) {
+    return async(() -> getStream(uri, queries));
+  }
+
+  /** Asynchronous version of {@link #postJsonReturnStream(String, Object)}. */
+  public CompletableFuture<InputStream> postJsonReturnStreamAsync(
+      final String uri, final Object payload) {
+    return async(() -> postJsonReturnStream(uri, payload));
+  }
+
+  /** Asynchronous version of {@link #postJsonReturnJson(String, Object, Class)}. */
+  public <T> CompletableFuture<T> postJsonReturnJsonAsync(
+      final String uri, final Object payload, final Class<T> responseClass) {
+    return async(() -> postJsonReturnJson(uri, payload, responseClass));
+  }
+
+  /**
+   * Waits for an asynchronous request and rethrows whatever made it fail.
+   *
+   * @param future The future returned by one of the asynchronous methods
+   * @return The result of the request
+   */
+  public static <T> T await(final CompletableFuture<T> future) throws IOException, HttpException {
+    try {
+      return future.get();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a request");
+    } catch (final ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof HttpException) {
+        throw (HttpException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  private <T> CompletableFuture<T> async(final Request<T> request) {
+    final CompletableFuture<T> future = new CompletableFuture<>();
+    asyncExecutor.execute(
+        () -> {
+          try {
+            future.complete(request.run());
+          } catch (final Throwable e) {
+            future.completeExceptionally(e);
+          }
+        });
+    return future;
+  }
+
+  /**
+   * Requests beyond the number of connections would only wait for one, so they wait in the queue
+   * instead of holding on to a thread. Idle threads are let go after a while.
+   */
+  private static ThreadPoolExecutor newAsyncExecutor(final int threads) {
+    final ThreadFactory tf;
+    if (VirtualThreads.isAvailable()) {
+      tf = VirtualThreads.factory("http");
+    } else {
+      final AtomicInteger threadNo = new AtomicInteger();
+      tf =
+          r -> {
+            final Thread t = new Thread(r, "http-" + threadNo.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          };
+    }
+    final ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            ASYNC_IDLE_SECONDS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            tf);
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
   }
 
   private String[] packQueries(final List<String> queries) {
@@ -271,7 +584,99 @@ public class Client {
             + response.getStatusLine().getReasonPhrase());
   }
 
-  private ObjectMapper getObjectMapper() {
-    return new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+  @FunctionalInterface
+  private interface Request<T> {
+    T run() throws IOException, HttpException;
+  }
+
+  /** A node of the cluster and the requests it's working on. */
+  private static class Node {
+    private final String urlBase;
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    // Limits the number of requests in flight against the node. Not used while the limit is 0,
+    // since only the connection pool limits them then.
+    private final AdjustableSemaphore permits = new AdjustableSemaphore();
+
+    private volatile int limit;
+
+    // Don't send anything here until then, unless all the other nodes are down too
+    private volatile long downUntil;
+
+    Node(final String urlBase) {
+      this.urlBase = urlBase;
+    }
+
+    /** Counts a request as in flight. Returns true if it took a permit, which must be released. */
+    boolean acquire() throws InterruptedIOException {
+      outstanding.incrementAndGet();
+      if (limit == 0) {
+        return false;
+      }
+      try {
+        permits.acquire();
+      } catch (final InterruptedException e) {
+        outstanding.decrementAndGet();
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for a request permit");
+      }
+      return true;
+    }
+
+    void release(final boolean permit) {
+      outstanding.decrementAndGet();
+      if (permit) {
+        permits.release();
+      }
+    }
+
+    /** Changes the limit. Permits that are held stay valid and count against the new limit. */
+    synchronized void setLimit(final int newLimit) {
+      permits.adjust(newLimit - limit);
+      limit = newLimit;
+    }
+  }
+
+  /** A semaphore whose number of permits can be changed while some of them are held. */
+  private static class AdjustableSemaphore extends Semaphore {
+    AdjustableSemaphore() {
+      super(0);
+    }
+
+    void adjust(final int delta) {
+      if (delta > 0) {
+        release(delta);
+      } else if (delta < 0) {
+        reducePermits(-delta);
+      }
+    }
+  }
+
+  /** Counts a request as in flight until its response has been read and closed. */
+  private static class NodeReleasingInputStream extends FilterInputStream {
+    private final Node node;
+
+    // True if the request took a permit
+    private final boolean permit;
+
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    NodeReleasingInputStream(final InputStream in, final Node node, final boolean permit) {
+      super(in);
+      this.node = node;
+      this.permit = permit;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (released.compareAndSet(false, true)) {
+          node.release(permit);
+        }
+      }
+    }
   }
 }
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Runs exports over and over on a schedule. The client session, exporters, caches and thread pools
+ * stay alive between runs, so each run only pays for fetching the new data.
+ */
+public class Daemon {
+  private static final Logger log = LogManager.getLogger(Daemon.class);
+
+  // How long cached properties, parents and stat keys are trusted before they're fetched again
+  private static final long CACHE_MAX_AGE_MS = 3600000;
+
+  /** An export definition and how often to run it. */
+  public static class Job {
+    private final String name;
+
+    private final Exporter exporter;
+
+    private final Config conf;
+
+    private final long interval;
+
+    private final String output;
+
+    private final String namePattern;
+
+    private final String parentSpec;
+
+    private long nextRun;
+
+    private long lastEnd;
+
+    /**
+     * Creates a job.
+     *
+     * @param name Name of the job, usually the definition file
+     * @param exporter The exporter to run. Should be kept alive and incremental.
+     * @param conf The export definition
+     * @param interval Time between runs in milliseconds. Runs are aligned to multiples of this.
+     * @param output Output file, or null for stdout. Each run gets its own file, with the name of
+     *     the job and the end of the time range added to the name.
+     * @param namePattern Name filter, or null
+     * @param parentSpec Parent filter, or null
+     */
+    public Job(
+        final String name,
+        final Exporter exporter,
+        final Config conf,
+        final long interval,
+        final String output,
+        final String namePattern,
+        final String parentSpec) {
+      this.name = name;
+      this.exporter = exporter;
+      this.conf = conf;
+      this.interval = interval;
+      this.output = output;
+      this.namePattern = namePattern;
+      this.parentSpec = parentSpec;
+    }
+  }
+
+  private final Client client;
+
+  private final long lookback;
+
+  private final List<Job> jobs = new ArrayList<>();
+
+  private volatile boolean stopped;
+
+  private final AtomicLong completedRuns = new AtomicLong();
+
+  private long lastCacheExpiry = System.currentTimeMillis();
+
+  /**
+   * Creates a daemon.
+   *
+   * @param client A logged in client
+   * @param lookback How far back each run looks for samples that haven't been exported yet
+   */
+  public Daemon(final Client client, final long lookback) {
+    this.client = client;
+    this.lookback = lookback;
+  }
+
+  public void addJob(final Job job) {
+    jobs.add(job);
+  }
+
+  /** Runs the jobs until {@link #stop()} is called or the thread is interrupted. */
+  public void run() {
+    final long now = System.currentTimeMillis();
+    for (final Job job : jobs) {
+      job.nextRun = now;
+    }
+    try {
+      while (!stopped) {
+        Job next = null;
+        for (final Job job : jobs) {
+          if (next == null || job.nextRun < next.nextRun) {
+            next = job;
+          }
+        }
+        final long wait = next.nextRun - System.currentTimeMillis();
+        if (wait > 0) {
+          synchronized (this) {
+            if (!stopped) {
+              wait(wait);
+            }
+          }
+          continue;
+        }
+        runJob(next);
+        next.nextRun = nextRun(System.currentTimeMillis(), next.interval);
+        log.info("Next run of " + next.name + " at " + new Date(next.nextRun));
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      for (final Job job : jobs) {
+        job.exporter.close();
+      }
+    }
+  }
+
+  /** Number of exports that have finished successfully. */
+  public long getCompletedRuns() {
+    return completedRuns.get();
+  }
+
+  /** Stops the daemon once the export currently running, if any, is done. */
+  public synchronized void stop() {
+    stopped = true;
+    notifyAll();
+  }
+
+  private void runJob(final Job job) {
+    final long start = System.currentTimeMillis();
+    try {
+      client.refreshLoginIfNeeded();
+      if (start - lastCacheExpiry > CACHE_MAX_AGE_MS) {
+        for (final Job j : jobs) {
+          j.exporter.expireCaches();
+        }
+        lastCacheExpiry = start;
+      }
+
+      // Only ask for complete rollup intervals.
+      final long rollup = Math.max(1, job.conf.getRollupMinutes()) * 60000;
+      final long end = (start / rollup) * rollup;
+      if (end <= job.lastEnd) {
+        log.info("No new rollup interval for " + job.name + " since the last run");
+        return;
+      }
+      final long begin = end - lookback;
+      try (final OutputStream out = openOutput(job, end)) {
+        job.exporter.exportTo(out, begin, end, job.namePattern, job.parentSpec, true);
+      }
+      job.lastEnd = end;
+      completedRuns.incrementAndGet();
+      log.info("Ran " + job.name + " in " + (System.currentTimeMillis() - start) + " ms");
+    } catch (final Exception e) {
+      // Keep going. The next run will pick up whatever this one missed.
+      log.error("Export of " + job.name + " failed", e);
+    }
+  }
+
+  private static OutputStream openOutput(final Job job, final long end) throws Exception {
+    if (job.output == null || !Exporter.isProducingOutput(job.conf)) {
+      return new CloseShieldOutputStream(System.out);
+    }
+    return new FileOutputStream(outputFile(job.output, job.name, end));
+  }
+
+  /** Returns the next multiple of the interval after the given time. */
+  static long nextRun(final long now, final long interval) {
+    return (now / interval + 1) * interval;
+  }
+
+  /**
+   * Adds the job name and time to an output file name, before the extension if there is one. For
+   * example, out.csv becomes out-vms-20210401T1200.csv.
+   */
+  static File outputFile(final String template, final String jobName, final long end) {
+    final File t = new File(template);
+    final String job = new File(jobName).getName().replaceFirst("\\.[^.]*$", "");
+    final String suffix = "-" + job + "-" + new SimpleDateFormat("yyyyMMdd'T'HHmm").format(end);
+    final String name = t.getName();
+    final int dot = name.lastIndexOf('.');
+    return new File(
+        t.getParentFile(),
+        dot > 0 ? name.substring(0, dot) + suffix + name.substring(dot) : name + suffix);
+  }
+}
@@ -17,11 +17,16 @@
  */
 package com.vmware.vropsexport;
 
+import com.fasterxml.jackson.core.JsonParseException;
 import com.vmware.vropsexport.exceptions.ExporterException;
 import com.vmware.vropsexport.models.*;
 import com.vmware.vropsexport.processors.*;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.http.ConnectionClosedException;
 import org.apache.http.HttpException;
+import org.apache.http.MalformedChunkCodingException;
 import org.apache.http.NoHttpResponseException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -35,10 +40,22 @@ import org.yaml.snakeyaml.representer.Representer;
 import java.io.*;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Matcher;
 import java.util.stream.Collectors;
 
@@ -61,6 +78,391 @@ public class Exporter implements DataProvider {
     }
   }
 
+  /** Data loaded in bulk for a chunk, so the parser won't have to look it up one by one. */
+  private static class ChunkPreload {
+    private Map<String, Map<String, String>> props;
+
+    private Map<String, NamedResource> parents;
+
+    private Map<String, Rowset> parentRowsets;
+  }
+
+  /** Collects parent rowsets and caches them for later chunks. */
+  private class ParentCollector implements RowsetProcessor {
+    private final Map<String, Rowset> rowsets = new HashMap<>();
+
+    private final long begin;
+
+    private final long end;
+
+    public ParentCollector(final long begin, final long end) {
+      this.begin = begin;
+      this.end = end;
+    }
+
+    @Override
+    public void preamble(final RowMetadata meta, final Config conf) {
+      // Nothing to do...
+    }
+
+    @Override
+    public void process(final Rowset rowset, final RowMetadata meta) {
+      rowsets.put(rowset.getResourceId(), rowset);
+      rowsetCache.put(StatsProcessor.parentCacheKey(rowset.getResourceId(), begin, end), rowset);
+    }
+
+    @Override
+    public void close() {
+      // Nothing to do
+    }
+  }
+
+  /** Hands finished rowsets over to the sink stage so the parser can move on. */
+  private class SinkStageProcessor implements RowsetProcessor {
+    private final RowsetProcessor sink;
+
+    public SinkStageProcessor(final RowsetProcessor sink) {
+      this.sink = sink;
+    }
+
+    @Override
+    public void preamble(final RowMetadata meta, final Config conf) throws ExporterException {
+      sink.preamble(meta, conf);
+    }
+
+    @Override
+    public void process(final Rowset rowset, final RowMetadata meta) throws ExporterException {
+      // Wait for the sink to catch up if too much is waiting for it already.
+      final long size = rowset.estimateSize();
+      try {
+        memoryBudget.acquire(size);
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ExporterException(e);
+      }
+      try {
+        sinkStage.submit(
+            () -> {
+              try {
+                sink.process(rowset, meta);
+              } finally {
+                memoryBudget.release(size);
+              }
+            });
+      } catch (final RuntimeException e) {
+        memoryBudget.release(size);
+        throw e;
+      }
+    }
+
+    @Override
+    public void close() throws ExporterException {
+      sink.close();
+    }
+  }
+
+  /** Records delivered resources in the journal and commits them every now and then. */
+  private class JournalingProcessor implements RowsetProcessor {
+    private final RowsetProcessor sink;
+
+    private final CountingOutputStream out;
+
+    private final long outputBase;
+
+    // Sink tasks share the lock. A commit takes it exclusively, so that no rowset is half written
+    // while the sink is being flushed.
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public JournalingProcessor(
+        final RowsetProcessor sink, final CountingOutputStream out, final long outputBase) {
+      this.sink = sink;
+      this.out = out;
+      this.outputBase = outputBase;
+    }
+
+    @Override
+    public void preamble(final RowMetadata meta, final Config conf) throws ExporterException {
+      sink.preamble(meta, conf);
+    }
+
+    @Override
+    public void process(final Rowset rowset, final RowMetadata meta) throws ExporterException {
+      if (streaming) {
+        // The lock is held from beginResource() to endResource().
+        sink.process(rowset, meta);
+        return;
+      }
+      lock.readLock().lock();
+      try {
+        sink.process(rowset, meta);
+        journal.delivered(rowset.getResourceId());
+      } finally {
+        lock.readLock().unlock();
+      }
+      commitIfDue();
+    }
+
+    @Override
+    public boolean isStreaming() {
+      return sink.isStreaming();
+    }
+
+    @Override
+    public void beginResource(final String resourceId, final RowMetadata meta)
+        throws ExporterException {
+      // A resource is only half written until its last batch is in, so no commit can happen in
+      // between.
+      lock.readLock().lock();
+      try {
+        sink.beginResource(resourceId, meta);
+      } catch (final ExporterException | RuntimeException e) {
+        lock.readLock().unlock();
+        throw e;
+      }
+    }
+
+    @Override
+    public void endResource(final String resourceId, final RowMetadata meta)
+        throws ExporterException {
+      try {
+        sink.endResource(resourceId, meta);
+        journal.delivered(resourceId);
+      } finally {
+        lock.readLock().unlock();
+      }
+      commitIfDue();
+    }
+
+    @Override
+    public void abortResource(final String resourceId, final RowMetadata meta) {
+      // The resource isn't delivered, but commits may go on.
+      try {
+        sink.abortResource(resourceId, meta);
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    private void commitIfDue() throws ExporterException {
+      if (journal.getPendingCount() >= JOURNAL_COMMIT_INTERVAL) {
+        flush();
+      }
+    }
+
+    @Override
+    public void flush() throws ExporterException {
+      lock.writeLock().lock();
+      try {
+        if (journal.getPendingCount() == 0) {
+          return;
+        }
+        sink.flush();
+        long length = 0;
+        if (out != null) {
+          out.flush();
+          length = outputBase + out.getByteCount();
+        }
+        journal.commit(length);
+      } catch (final IOException e) {
+        throw new ExporterException(e);
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    @Override
+    public void close() throws ExporterException {
+      sink.close();
+    }
+  }
+
+  /**
+   * A chunk whose time range is split into windows that are fetched in parallel. Responses are kept
+   * in temp files until every window is in and are then parsed together, so that each resource
+   * still ends up as a single rowset.
+   */
+  private class WindowedChunk {
+    private final List<NamedResource> resList;
+
+    private final ChunkPreload preload = new ChunkPreload();
+
+    private final RowsetProcessor rsp;
+
+    private final RowMetadata meta;
+
+    private final long begin;
+
+    private final long end;
+
+    private final ProgressMonitor progress;
+
+    // Response files by window. A window the server wouldn't serve in one go has several.
+    private final List<List<File>> windows = new ArrayList<>();
+
+    private final AtomicInteger remaining;
+
+    private final AtomicLong responses = new AtomicLong();
+
+    private final AtomicLong totalLatency = new AtomicLong();
+
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    private volatile boolean failed;
+
+    public WindowedChunk(
+        final List<NamedResource> resList,
+        final RowsetProcessor rsp,
+        final RowMetadata meta,
+        final long begin,
+        final long end,
+        final ProgressMonitor progress) {
+      this.resList = resList;
+      this.rsp = rsp;
+      this.meta = meta;
+      this.begin = begin;
+      this.end = end;
+      this.progress = progress;
+      final int n = (int) ((end - begin + window - 1) / window);
+      for (int i = 0; i < n; ++i) {
+        windows.add(new ArrayList<>());
+      }
+      remaining = new AtomicInteger(n);
+    }
+
+    public int getWindowCount() {
+      return windows.size();
+    }
+
+    public void fetch(final int w) throws Exception {
+      boolean ok = false;
+      try {
+        memoryBudget.awaitAvailable();
+
+        // The preload is only needed by the parser, which doesn't start until every window is in.
+        if (w == 0) {
+          preloadCache(resList);
+          final CompletableFuture<Map<String, Map<String, String>>> props =
+              fetchPropsForChunkAsync(resList, meta);
+          fetchParentsForChunk(resList, meta, begin, end, preload);
+          preload.props = Client.await(props);
+        }
+        final long wBegin = begin + w * window;
+        fetchWindow(wBegin, Math.min(end, wBegin + window - 1), windows.get(w));
+        ok = true;
+      } finally {
+        if (!ok) {
+          failed = true;
+        }
+        if (remaining.decrementAndGet() == 0) {
+          boolean submitted = false;
+          try {
+            if (!failed) {
+              parseStage.submit(this::parse);
+              submitted = true;
+            }
+          } finally {
+            // Once the parser has them, it deletes them when it's done.
+            if (!submitted) {
+              deleteFiles();
+            }
+          }
+        }
+      }
+    }
+
+    private void fetchWindow(final long wBegin, final long wEnd, final List<File> files)
+        throws IOException, HttpException, ExporterException {
+      final long start = System.currentTimeMillis();
+      final File tmpFile = File.createTempFile("vrops-export", ".tmp");
+      try (final InputStream content =
+              fetchMetricStream(resList.toArray(new NamedResource[0]), meta, wBegin, wEnd);
+          final FileOutputStream out = new FileOutputStream(tmpFile)) {
+        totalLatency.addAndGet(System.currentTimeMillis() - start);
+        IOUtils.copy(content, out);
+      } catch (final NoHttpResponseException e) {
+        deleteFile(tmpFile);
+
+        // The response was too big for the server. Since this chunk is split by time anyway, try
+        // two shorter windows rather than fewer resources.
+        final long half = (wEnd - wBegin) / 2;
+        if (half < conf.getRollupMinutes() * 60000L) {
+          throw new ExporterException(e);
+        }
+        log.warn("Server closed connection. Trying shorter window (current=" + half * 2 + " ms)");
+        fetchWindow(wBegin, wBegin + half, files);
+        fetchWindow(wBegin + half + 1, wEnd, files);
+        return;
+      } catch (final IOException | HttpException | RuntimeException e) {
+        deleteFile(tmpFile);
+        throw e;
+      }
+      files.add(tmpFile);
+      responses.incrementAndGet();
+      totalBytes.addAndGet(tmpFile.length());
+    }
+
+    private void parse() throws IOException, HttpException, ExporterException {
+      final List<InputStream> content = new ArrayList<>();
+      try {
+        for (final List<File> files : windows) {
+          for (final File f : files) {
+            content.add(new SelfDeletingFileInputStream(f));
+          }
+        }
+        final long start = System.currentTimeMillis();
+        final StatsProcessor sp = newStatsProcessor(meta, preload, progress);
+        final int processed;
+        try {
+          processed = sp.process(content, toSink(rsp), begin, end);
+        } catch (final IOException e) {
+          if (isTruncatedResponse(e)) {
+            chunkSizer.reportFailure(resList.size());
+          }
+          throw e;
+        }
+        countSkipped(sp);
+
+        // The chunk sizer thinks in terms of single responses.
+        final long n = Math.max(1, responses.get());
+        chunkSizer.reportSuccess(
+            resList.size(), totalLatency.get() / n, totalBytes.get() / n, sp.getSampleCount() / n);
+        if (progress != null) {
+          progress.reportProgress(resList.size() - processed);
+        }
+        if (verbose) {
+          log.debug(
+              "Found data for "
+                  + processed
+                  + " out of "
+                  + resList.size()
+                  + " resources in "
+                  + n
+                  + " windows.");
+          log.debug("Result processing took " + (System.currentTimeMillis() - start) + " ms");
+        }
+      } finally {
+        for (final InputStream is : content) {
+          is.close();
+        }
+        deleteFiles();
+      }
+    }
+
+    private void deleteFiles() {
+      for (final List<File> files : windows) {
+        for (final File f : files) {
+          deleteFile(f);
+        }
+      }
+    }
+
+    private void deleteFile(final File f) {
+      if (f.exists() && !f.delete()) {
+        log.warn("Could not delete " + f);
+      }
+    }
+  }
+
   private static final Logger log = LogManager.getLogger(Exporter.class);
 
   private final LRUCache<String, String> nameCache = new LRUCache<>(100000);
@@ -69,20 +471,80 @@ public class Exporter implements DataProvider {
 
   private final LRUCache<String, NamedResource> parentCache = new LRUCache<>(1000);
 
+  private final LRUCache<String, List<String>> statKeyCache = new LRUCache<>(1000);
+
+  // Stat series the server returned but we don't export, and the response bytes they took up
+  private final AtomicLong skippedSeries = new AtomicLong();
+
+  private final AtomicLong skippedBytes = new AtomicLong();
+
   private final Client client;
 
   private final Config conf;
 
-  private final LRUCache<String, Rowset> rowsetCache = new LRUCache<>(2000);
+  // Parent rowsets vary a lot in size, so we limit the cache by the number of cells it holds rather
+  // than the number of rowsets.
+  private static final long ROWSET_CACHE_CELLS = 5000000;
+
+  private final LRUCache<String, Rowset> rowsetCache =
+      new LRUCache<>(
+          ROWSET_CACHE_CELLS,
+          (k, rs) -> 1 + (long) rs.size() * (rs.getNumMetrics() + rs.getNumProps()));
 
   private static final int MAX_RESPONSE_ROWS =
       100000; // TODO: This is a wild guess. It seems vR Ops barfs on responses that are too long.
 
+  private static final String CHUNK_SIZE_FILE = "chunk-sizes.properties";
+
+  private static final String CHECKPOINT_FILE_PREFIX = "checkpoints-";
+
+  // Number of delivered resources between commits to the journal
+  private static final int JOURNAL_COMMIT_INTERVAL = 1000;
+
   private final boolean verbose;
 
   private final boolean useTempFile;
 
-  private final ThreadPoolExecutor executor;
+  private static final int STAGE_QUEUE_SIZE = 20;
+
+  private static final long STATS_INTERVAL_SECONDS = 10;
+
+  private static final int DEFAULT_PAGE_PREFETCH = 2;
+
+  // By default, a quarter of the heap may be used by rowsets waiting for the sink.
+  private static final int DEFAULT_MEMORY_BUDGET_DIVISOR = 4;
+
+  private final int fetchThreads;
+
+  private int parseThreads;
+
+  private int sinkThreads;
+
+  // Threads finishing parsed resources while the parser goes on, or 0 to finish them on the parser
+  private int postThreads;
+
+  private Stage fetchStage;
+
+  private Stage parseStage;
+
+  private Stage sinkStage;
+
+  private Stage postStage;
+
+  // A response that is parsed straight off the wire holds on to a pooled connection until the
+  // parser is done with it. If too many of them were waiting in the parse queue, the parser
+  // wouldn't get a connection for its property and parent lookups.
+  private Semaphore openResponses;
+
+  // Number of fetches that can be talking to the server at the same time
+  private int fetchConcurrency;
+
+  // Set if fetches run on virtual threads
+  private boolean virtualThreads;
+
+  // Limits the size of the rowsets waiting for the sink
+  private MemoryBudget memoryBudget =
+      new MemoryBudget(Runtime.getRuntime().maxMemory() / DEFAULT_MEMORY_BUDGET_DIVISOR);
 
   private RowsetProcessorFacotry rspFactory;
 
@@ -90,6 +552,46 @@ public class Exporter implements DataProvider {
 
   private final int maxResourceFetch;
 
+  private File stateDir;
+
+  private int pagePrefetch = DEFAULT_PAGE_PREFETCH;
+
+  // Length of the time windows chunks are split into, or 0 to fetch the whole range at once
+  private long window;
+
+  // Maximum number of rows per batch when the sink takes the rows of a resource in batches, or 0 to
+  // always hand over whole rowsets
+  private int rowBatch;
+
+  // Set during an export if rows go straight from the parser to the sink in batches
+  private boolean streaming;
+
+  // Set if the server doesn't support bulk property queries
+  private volatile boolean noBulkProps;
+
+  // Set if the server doesn't support bulk relationship queries
+  private volatile boolean noBulkParents;
+
+  private ChunkSizer chunkSizer;
+
+  // Time to live for each kind of metadata kept between runs, or null if none is kept
+  private Map<MetadataCache.Kind, Long> metadataTtls;
+
+  private MetadataCache metadataCache;
+
+  // Identifies the export when running incrementally, or null if we're not
+  private String checkpointKey;
+
+  private Checkpoints checkpoints;
+
+  // Records progress so that the export can be resumed, or null if it can't be
+  private Journal journal;
+
+  // Keep stages and state between exports rather than setting them up for each one
+  private boolean keepAlive;
+
+  private long sinkFailuresBefore;
+
   private static final Map<String, RowsetProcessorFacotry> rspFactories = new HashMap<>();
 
   static {
@@ -127,15 +629,195 @@ public class Exporter implements DataProvider {
     this.maxRows = maxRows;
     this.maxResourceFetch = maxResourceFetch;
     this.client = client;
+    fetchThreads = threads;
+    parseThreads = Math.min(threads, Runtime.getRuntime().availableProcessors());
+    sinkThreads = threads;
+  }
+
+  public void setParseThreads(final int parseThreads) {
+    this.parseThreads = parseThreads;
+  }
+
+  public void setSinkThreads(final int sinkThreads) {
+    this.sinkThreads = sinkThreads;
+  }
+
+  /**
+   * Finishes each resource on one of this many threads as soon as it has been parsed, rather than
+   * on the parser. Splicing in properties and parents, compactification and the sink then run in
+   * parallel, even when there are few chunks and each response is large.
+   */
+  public void setPostThreads(final int postThreads) {
+    this.postThreads = postThreads;
+  }
+
+  /**
+   * Runs each fetch on a virtual thread of its own. The number of fetch threads can then be much
+   * larger than the connection pool, and the client limits how many requests are in flight.
+   * Requires Java 21 or later.
+   */
+  public void setVirtualThreads(final boolean virtualThreads) {
+    this.virtualThreads = virtualThreads;
+  }
+
+  /** Sets the number of resource pages to fetch ahead of the one being exported. */
+  public void setPagePrefetch(final int pagePrefetch) {
+    this.pagePrefetch = Math.max(1, pagePrefetch);
+  }
+
+  /**
+   * Splits the time range of each chunk into windows of the given length and fetches them in
+   * parallel. Long exports then make many reasonably sized requests rather than a few huge ones.
+   */
+  public void setWindow(final long window) {
+    this.window = window;
+  }
+
+  /**
+   * Hands the rows of each resource to the sink in batches of at most this many rows, if the sink
+   * can take them that way. The parser then calls the sink directly instead of going through the
+   * sink stage, so a resource with a long time range never has to be held in memory as a whole.
+   */
+  public void setRowBatch(final int rowBatch) {
+    this.rowBatch = rowBatch;
+  }
+
+  /**
+   * Sets how many bytes of rowsets may wait for the sink. When they're used up, parsing and
+   * fetching wait for the sink to catch up.
+   */
+  public void setMemoryBudget(final long bytes) {
+    memoryBudget = new MemoryBudget(bytes);
+  }
 
-    executor =
-        new ThreadPoolExecutor(
-            threads,
-            threads,
-            5,
-            TimeUnit.SECONDS,
-            new ArrayBlockingQueue<>(20),
-            new ThreadPoolExecutor.CallerRunsPolicy());
+  /** Sets a directory where state that should survive between runs is kept. */
+  public void setStateDir(final File stateDir) {
+    this.stateDir = stateDir;
+  }
+
+  /**
+   * Keeps resource metadata in the state directory between runs. Kinds of metadata that aren't in
+   * the map get their default time to live.
+   */
+  public void setMetadataTtls(final Map<MetadataCache.Kind, Long> metadataTtls) {
+    this.metadataTtls = metadataTtls;
+  }
+
+  /**
+   * Makes the export incremental. Only samples newer than the ones exported by the previous run
+   * with the same key are exported. Requires a state directory.
+   *
+   * @param checkpointKey Identifies the export, e.g. the path of the definition file
+   */
+  public void setIncremental(final String checkpointKey) {
+    this.checkpointKey = checkpointKey;
+  }
+
+  /**
+   * Records progress in a journal, so that the export can be resumed if it dies. If the journal
+   * comes from an earlier attempt, the resources that attempt delivered are skipped. The output
+   * must be positioned at the length recorded in the journal. The journal is removed once the
+   * export has completed.
+   */
+  public void setJournal(final Journal journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * Keeps thread pools, caches and state between calls to {@link #exportTo}, so that repeated
+   * exports don't have to set them up again. Call {@link #close()} when done. When running
+   * incrementally without a state directory, the checkpoints are only kept in memory.
+   */
+  public void setKeepAlive(final boolean keepAlive) {
+    this.keepAlive = keepAlive;
+  }
+
+  /** Shuts down the thread pools kept alive between exports. */
+  public void close() {
+    if (fetchStage != null) {
+      shutdownStages();
+    }
+  }
+
+  /**
+   * Forgets cached properties, parents and stat keys, so that long running processes eventually
+   * see changes made on the server.
+   */
+  public void expireCaches() {
+    propCache.clear();
+    parentCache.clear();
+    statKeyCache.clear();
+  }
+
+  private void startStages() {
+    if (fetchStage != null) {
+      return;
+    }
+    // The queues between stages are bounded, so a slow parser or sink will eventually block the
+    // stages feeding it rather than letting fetched data pile up in memory.
+    fetchStage =
+        virtualThreads
+            ? new Stage("fetch", fetchThreads, STAGE_QUEUE_SIZE, VirtualThreads.factory("fetch"))
+            : new Stage("fetch", fetchThreads, STAGE_QUEUE_SIZE);
+
+    // Fetch threads beyond the number of requests the client lets through only wait their turn.
+    final int maxRequests = client.getMaxConcurrentRequests();
+    fetchConcurrency = Math.min(fetchThreads, maxRequests * client.getUrlBases().size());
+
+    // Leave enough connections or request permits for the parsers' lookups. The limit is per
+    // node, and the open responses might all be on the same one.
+    openResponses = new Semaphore(Math.min(fetchThreads, Math.max(1, maxRequests - parseThreads)));
+    parseStage = new Stage("parse", parseThreads, STAGE_QUEUE_SIZE);
+    sinkStage = new Stage("sink", sinkThreads, STAGE_QUEUE_SIZE);
+    if (postThreads > 0) {
+      postStage = new Stage("post", postThreads, STAGE_QUEUE_SIZE);
+    }
+  }
+
+  private void shutdownStages() {
+    fetchStage.shutdown();
+    parseStage.shutdown();
+    sinkStage.shutdown();
+    if (postStage != null) {
+      postStage.shutdown();
+      postStage = null;
+    }
+    fetchStage = null;
+    parseStage = null;
+    sinkStage = null;
+  }
+
+  private void countSkipped(final StatsProcessor sp) {
+    skippedSeries.addAndGet(sp.getSkippedSeries());
+    skippedBytes.addAndGet(sp.getSkippedBytes());
+  }
+
+  /** Returns the number of stat series skipped so far because they aren't exported. */
+  public long getSkippedSeries() {
+    return skippedSeries.get();
+  }
+
+  /** Returns the number of response bytes taken up by skipped stat series. */
+  public long getSkippedBytes() {
+    return skippedBytes.get();
+  }
+
+  private void logStatistics() {
+    for (final Stage stage : new Stage[] {fetchStage, parseStage, postStage, sinkStage}) {
+      if (stage != null) {
+        log.debug("Stage " + stage);
+      }
+    }
+    log.debug("Memory budget: " + memoryBudget);
+    log.debug("Name cache: " + nameCache);
+    log.debug("Property cache: " + propCache);
+    log.debug("Parent cache: " + parentCache);
+    log.debug("Stat key cache: " + statKeyCache);
+    log.debug("Rowset cache: " + rowsetCache);
+    log.debug("Skipped series: " + skippedSeries + " (" + skippedBytes + " bytes)");
+    if (metadataCache != null) {
+      log.debug("Metadata cache: " + metadataCache);
+    }
   }
 
   public void exportTo(
@@ -146,134 +828,453 @@ public class Exporter implements DataProvider {
       final String parentSpec,
       final boolean quiet)
       throws IOException, HttpException, ExporterException {
-    Progress progress = null;
-
+    startMetadataCache();
+    startCheckpoints();
     final RowMetadata meta =
         conf.isAllMetrics()
             ? new RowMetadata(
                 conf, getStatKeysForResourceKind(conf.getAdapterKind(), conf.getResourceKind()))
             : new RowMetadata(conf);
-    final RowsetProcessor rsp = rspFactory.makeFromConfig(out, conf, this);
-    rsp.preamble(meta, conf);
-    String parentId = null;
-    if (parentSpec != null) {
-
-      // Lookup parent
-      final Matcher m = Patterns.parentSpecPattern.matcher(parentSpec);
-      if (!m.matches()) {
-        throw new ExporterException(
-            "Not a valid parent spec: "
-                + parentSpec
-                + ". should be on the form ResourceKind:resourceName");
-      }
-      // TODO: No way of specifying adapter type here. Should there be?
-      final List<NamedResource> pResources =
-          fetchResources(m.group(1), null, m.group(2), 0).getResourceList();
-      if (pResources.size() == 0) {
-        throw new ExporterException("Parent not found");
-      }
-      if (pResources.size() > 1) {
-        throw new ExporterException("Parent spec is not unique");
-      }
-      parentId = pResources.get(0).getIdentifier();
-    }
-
-    int page = 0;
-    for (; ; ) {
-      final PageOfResources resPage;
-
-      // Fetch resources
-      if (parentId != null) {
-        final String url = "/suite-api/api/resources/" + parentId + "/relationships";
-        resPage =
-            client.getJson(url, PageOfResources.class, "relationshipType=CHILD", "page=" + page++);
-      } else {
-        resPage =
-            fetchResources(conf.getResourceKind(), conf.getAdapterKind(), namePattern, page++);
-      }
+    final RowsetProcessor rsp;
+    if (journal != null) {
+      // The journal needs to know how much output each commit covers.
+      final CountingOutputStream counter = out != null ? new CountingOutputStream(out) : null;
+      rsp =
+          new JournalingProcessor(
+              rspFactory.makeFromConfig(counter, conf, this), counter, journal.getOutputLength());
+    } else {
+      rsp = rspFactory.makeFromConfig(out, conf, this);
+    }
+
+    // Batches of a resource have to reach the sink in order, so they can't go through the sink
+    // stage. Compacted rowsets need all the rows of a resource at once.
+    streaming = rowBatch > 0 && rsp.isStreaming() && !conf.isCompact();
 
-      final List<NamedResource> resources = resPage.getResourceList();
-      // If we got an empty set back, we ran out of pages.
-      if (resources.size() == 0) {
-        break;
+    // When resuming, the preamble is already in the output.
+    if (journal == null || journal.getOutputLength() == 0) {
+      rsp.preamble(meta, conf);
+    }
+    final String parentId = parentSpec != null ? lookupParent(parentSpec) : null;
+
+    startChunkSizer();
+    ScheduledExecutorService statsReporter = null;
+    boolean done = false;
+    startStages();
+    try {
+      sinkFailuresBefore = sinkStage.getFailed();
+      final long failuresBefore = fetchStage.getFailed() + parseStage.getFailed();
+      if (verbose) {
+        statsReporter =
+            Executors.newSingleThreadScheduledExecutor(
+                r -> {
+                  final Thread t = new Thread(r, "stats");
+                  t.setDaemon(true);
+                  return t;
+                });
+        statsReporter.scheduleAtFixedRate(
+            this::logStatistics,
+            STATS_INTERVAL_SECONDS,
+            STATS_INTERVAL_SECONDS,
+            TimeUnit.SECONDS);
       }
+      submitChunks(rsp, meta, begin, end, namePattern, parentId, quiet);
 
-      // Initialize progress reporting
-      if (!quiet && progress == null) {
-        progress = new Progress(resPage.getPageInfo().getTotalCount());
-        progress.reportProgress(0);
+      // Each stage only receives work from the one before it, so draining them in order
+      // guarantees that everything has made it through the pipeline.
+      fetchStage.drain();
+      parseStage.drain();
+      if (postStage != null) {
+        postStage.drain();
       }
-      int chunkSize = Math.min(MAX_RESPONSE_ROWS, maxRows);
-      if (verbose) {
-        log.debug("Raw chunk size is " + chunkSize + " resources");
+      sinkStage.drain();
+      saveChunkSizer();
+      saveMetadataCache();
+      saveCheckpoints(begin);
+      if (journal != null) {
+        final boolean failed =
+            fetchStage.getFailed() + parseStage.getFailed() > failuresBefore
+                || sinkStage.getFailed() > sinkFailuresBefore;
+        finishJournal(rsp, failed);
+      }
+      out.flush();
+      rsp.close();
+      if (!quiet) {
+        System.err.println("100% done");
+      }
+      done = true;
+    } catch (final InterruptedException e) {
+      // Shouldn't happen...
+      e.printStackTrace();
+    } finally {
+      if (statsReporter != null) {
+        statsReporter.shutdown();
+        logStatistics();
       }
 
-      // We don't want to make the chunks so big that not all threads will have work to do.
-      // Make sure that doesn't happen.
-      chunkSize = Math.min(chunkSize, 1 + (resources.size() / executor.getMaximumPoolSize()));
-      if (verbose) {
-        log.debug("Adjusted chunk size is " + chunkSize + " resources");
+      // A daemon keeps its stages for the next job, unless this one failed. Either way, nothing
+      // may be left running once an export has failed.
+      if (!done || !keepAlive) {
+        shutdownStages();
       }
-      int i = 0;
-      ArrayList<NamedResource> chunk = new ArrayList<>(chunkSize);
-      for (final NamedResource res : resources) {
-        chunk.add(res);
-        if (chunk.size() >= chunkSize || i == resources.size() - 1) {
-
-          // Child relationships may return objects of the wrong type, so we have
-          // to check the type here.
-          final Map<String, Object> rKey = res.getResourceKey();
-          if (!((String) rKey.get("resourceKindKey")).equalsIgnoreCase(conf.getResourceKind())) {
-            continue;
-          }
-          if (conf.getAdapterKind() != null
-              && !((String) rKey.get("adapterKindKey")).equalsIgnoreCase(conf.getAdapterKind())) {
-            continue;
+    }
+  }
+
+  /** Fetches the pages of resources and starts a job for every chunk of them. */
+  private void submitChunks(
+      final RowsetProcessor rsp,
+      final RowMetadata meta,
+      final long begin,
+      final long end,
+      final String namePattern,
+      final String parentId,
+      final boolean quiet)
+      throws IOException, HttpException, ExporterException {
+    Progress progress = null;
+    final ExecutorService pageFetcher =
+        Executors.newFixedThreadPool(
+            pagePrefetch,
+            r -> {
+              final Thread t = new Thread(r, "page-fetch");
+              t.setDaemon(true);
+              return t;
+            });
+    final Deque<Future<PageOfResources>> prefetched = new ArrayDeque<>();
+    try {
+      PageOfResources resPage = fetchResourcePage(parentId, namePattern, 0);
+
+      // If we know how many pages there are, we can fetch several of them in parallel. If not, or
+      // if the last page turns out to be full, we keep fetching until we get an empty one.
+      final PageInfo pageInfo = resPage.getPageInfo();
+      final int pageSize =
+          pageInfo != null && pageInfo.getPageSize() > 0
+              ? pageInfo.getPageSize()
+              : Math.max(1, resPage.getResourceList().size());
+      int lastPage =
+          pageInfo != null && pageInfo.getTotalCount() > 0
+              ? (pageInfo.getTotalCount() - 1) / pageSize
+              : Integer.MAX_VALUE;
+      int page = 0;
+      int nextPage = 1;
+      for (; ; ) {
+        final List<NamedResource> resources = resPage.getResourceList();
+        // If we got an empty set back, we ran out of pages.
+        if (resources.size() == 0) {
+          break;
+        }
+        if (resources.size() >= pageSize) {
+          lastPage = Math.max(lastPage, page + 1);
+        }
+
+        // Keep the next few pages coming while we're working on this one.
+        while (prefetched.size() < pagePrefetch && nextPage <= lastPage) {
+          final int p = nextPage++;
+          prefetched.add(pageFetcher.submit(() -> fetchResourcePage(parentId, namePattern, p)));
+        }
+
+        // Initialize progress reporting
+        if (!quiet && progress == null) {
+          progress = new Progress(resPage.getPageInfo().getTotalCount());
+          progress.reportProgress(0);
+        }
+        int chunkSize = chunkSizer.getChunkSize();
+        if (verbose) {
+          log.debug("Raw chunk size is " + chunkSize + " resources");
+        }
+
+        // We don't want to make the chunks so big that not all concurrent fetches will have work
+        // to do. Make sure that doesn't happen.
+        chunkSize = Math.min(chunkSize, 1 + (resources.size() / fetchConcurrency));
+        if (verbose) {
+          log.debug("Adjusted chunk size is " + chunkSize + " resources");
+        }
+        int i = 0;
+        ArrayList<NamedResource> chunk = new ArrayList<>(chunkSize);
+        for (final NamedResource res : resources) {
+          chunk.add(res);
+          if (chunk.size() >= chunkSize || i == resources.size() - 1) {
+
+            // Child relationships may return objects of the wrong type, so we have
+            // to check the type here.
+            final Map<String, Object> rKey = res.getResourceKey();
+            if (!((String) rKey.get("resourceKindKey")).equalsIgnoreCase(conf.getResourceKind())) {
+              continue;
+            }
+            if (conf.getAdapterKind() != null
+                && !((String) rKey.get("adapterKindKey")).equalsIgnoreCase(conf.getAdapterKind())) {
+              continue;
+            }
+            startChunkJob(chunk, rsp, meta, begin, end, progress);
+            chunk = new ArrayList<>(chunkSize);
           }
-          startChunkJob(chunk, rsp, meta, begin, end, progress);
-          chunk = new ArrayList<>(chunkSize);
+          ++i;
         }
-        ++i;
+        if (prefetched.isEmpty()) {
+          break;
+        }
+        resPage = waitForPage(prefetched.removeFirst());
+        ++page;
+      }
+    } finally {
+      for (final Future<PageOfResources> f : prefetched) {
+        f.cancel(true);
+      }
+      pageFetcher.shutdown();
+    }
+  }
+
+  private void startChunkSizer() {
+    if (chunkSizer != null) {
+      return;
+    }
+    final int maxSize = Math.min(MAX_RESPONSE_ROWS, maxRows);
+    chunkSizer =
+        new ChunkSizer(
+            client.getUrlBase() + "|" + conf.getAdapterKind() + ":" + conf.getResourceKind(),
+            maxSize,
+            maxSize);
+    if (stateDir != null) {
+      try {
+        chunkSizer.load(new File(stateDir, CHUNK_SIZE_FILE));
+      } catch (final IOException e) {
+        log.warn("Could not load chunk sizes. Starting from scratch", e);
       }
     }
-    executor.shutdown();
+  }
+
+  private void saveChunkSizer() {
+    if (stateDir == null) {
+      return;
+    }
     try {
-      // We have no idea how long it's going to take, so pick a ridiculously long timeout.
-      executor.awaitTermination(1, TimeUnit.DAYS);
-    } catch (final InterruptedException e) {
-      // Shouldn't happen...
-      e.printStackTrace();
+      chunkSizer.save(new File(stateDir, CHUNK_SIZE_FILE));
+    } catch (final IOException e) {
+      log.warn("Could not save chunk sizes", e);
+    }
+  }
+
+  private void startMetadataCache() {
+    if (stateDir == null || metadataTtls == null || metadataCache != null) {
+      return;
+    }
+    metadataCache = MetadataCache.load(stateDir, client.getUrlBase());
+    for (final Map.Entry<MetadataCache.Kind, Long> ttl : metadataTtls.entrySet()) {
+      metadataCache.setTtl(ttl.getKey(), ttl.getValue());
+    }
+
+    // Names are cheap to keep in memory, so we might as well have all of them there.
+    metadataCache.getNames().forEach(nameCache::put);
+    if (verbose) {
+      log.debug("Loaded metadata cache: " + metadataCache);
+    }
+  }
+
+  private void saveMetadataCache() {
+    if (metadataCache == null) {
+      return;
+    }
+    try {
+      metadataCache.save();
+    } catch (final IOException e) {
+      log.warn("Could not save metadata cache", e);
+    }
+  }
+
+  private File getCheckpointFile() {
+    final String key = client.getUrlBase() + "|" + checkpointKey;
+    return new File(
+        stateDir, CHECKPOINT_FILE_PREFIX + Integer.toHexString(key.hashCode()) + ".properties");
+  }
+
+  private void startCheckpoints() {
+    if (checkpointKey == null || checkpoints != null || stateDir == null && !keepAlive) {
+      return;
+    }
+    checkpoints = new Checkpoints();
+    if (stateDir == null) {
+      return;
+    }
+    try {
+      checkpoints.load(getCheckpointFile());
+    } catch (final IOException e) {
+      log.warn("Could not load checkpoints. Exporting the whole time range", e);
+    }
+    if (verbose) {
+      log.debug("Loaded " + checkpoints.size() + " checkpoints");
+    }
+  }
+
+  private void saveCheckpoints(final long begin) {
+    if (checkpoints == null) {
       return;
     }
-    out.flush();
-    rsp.close();
-    if (!quiet) {
-      System.err.println("100% done");
+
+    // A failed sink task means that some rowsets never made it to the output, even though their
+    // checkpoints have been moved. Better to export some samples twice than to lose them, so we
+    // start over from what was last saved.
+    if (sinkStage.getFailed() > sinkFailuresBefore) {
+      log.warn("Not saving checkpoints, since some data could not be written");
+      checkpoints = null;
+      return;
+    }
+    if (stateDir == null) {
+      return;
+    }
+    try {
+      checkpoints.save(
+          getCheckpointFile(),
+          begin,
+          "Last exported sample for " + client.getUrlBase() + " " + checkpointKey);
+    } catch (final IOException e) {
+      log.warn("Could not save checkpoints", e);
+    }
+  }
+
+  private void finishJournal(final RowsetProcessor rsp, final boolean failed)
+      throws IOException, ExporterException {
+    rsp.flush();
+    if (failed) {
+      // Whatever didn't make it isn't in the journal, so resuming will try it again.
+      log.warn("Some data could not be exported. Resume the export to try again");
+      journal.close();
+    } else {
+      journal.finish();
     }
+    journal = null;
   }
 
   private void startChunkJob(
+      final List<NamedResource> fullChunk,
+      final RowsetProcessor rsp,
+      final RowMetadata meta,
+      final long fullBegin,
+      final long end,
+      final ProgressMonitor progress) {
+    List<NamedResource> chunk = fullChunk;
+    long begin = fullBegin;
+
+    // Resources delivered by an earlier attempt are done, as are resources that have already been
+    // exported up to the end of the range. The others only need samples from their checkpoint
+    // onwards.
+    if (journal != null || checkpoints != null) {
+      chunk =
+          fullChunk.stream()
+              .filter(r -> journal == null || !journal.isDone(r.getIdentifier()))
+              .filter(r -> checkpoints == null || checkpoints.get(r.getIdentifier()) < end)
+              .collect(Collectors.toList());
+      if (progress != null && chunk.size() < fullChunk.size()) {
+        progress.reportProgress(fullChunk.size() - chunk.size());
+      }
+      if (chunk.isEmpty()) {
+        return;
+      }
+    }
+    if (checkpoints != null) {
+      begin =
+          checkpoints.beginFor(
+              chunk.stream().map(NamedResource::getIdentifier).collect(Collectors.toList()),
+              fullBegin);
+    }
+    submitChunkJob(chunk, rsp, meta, begin, end, progress);
+  }
+
+  private void submitChunkJob(
       final List<NamedResource> chunk,
       final RowsetProcessor rsp,
       final RowMetadata meta,
       final long begin,
       final long end,
       final ProgressMonitor progress) {
-    executor.execute(
+    if (window > 0 && end - begin > window && !conf.getRollupType().equals("LATEST")) {
+      final WindowedChunk wc = new WindowedChunk(chunk, rsp, meta, begin, end, progress);
+      for (int i = 0; i < wc.getWindowCount(); ++i) {
+        final int w = i;
+        fetchStage.submit(() -> wc.fetch(w));
+      }
+      return;
+    }
+    fetchStage.submit(
         () -> {
-          try {
-            preloadCache(chunk);
-            handleResources(chunk, rsp, meta, begin, end, progress);
-          } catch (final Exception e) {
-            log.error("Error while processing resource", e);
-          }
+          memoryBudget.awaitAvailable();
+          preloadCache(chunk);
+          final ChunkPreload preload = new ChunkPreload();
+          final CompletableFuture<Map<String, Map<String, String>>> props =
+              fetchPropsForChunkAsync(chunk, meta);
+          fetchParentsForChunk(chunk, meta, begin, end, preload);
+          preload.props = Client.await(props);
+          fetchChunk(chunk, preload, rsp, meta, begin, end, progress);
         });
   }
 
+  private String lookupParent(final String parentSpec)
+      throws IOException, HttpException, ExporterException {
+    final Matcher m = Patterns.parentSpecPattern.matcher(parentSpec);
+    if (!m.matches()) {
+      throw new ExporterException(
+          "Not a valid parent spec: "
+              + parentSpec
+              + ". should be on the form ResourceKind:resourceName");
+    }
+    // TODO: No way of specifying adapter type here. Should there be?
+    final List<NamedResource> pResources =
+        fetchResources(m.group(1), null, m.group(2), 0).getResourceList();
+    if (pResources.size() == 0) {
+      throw new ExporterException("Parent not found");
+    }
+    if (pResources.size() > 1) {
+      throw new ExporterException("Parent spec is not unique");
+    }
+    return pResources.get(0).getIdentifier();
+  }
+
+  private PageOfResources fetchResourcePage(
+      final String parentId, final String namePattern, final int page)
+      throws IOException, HttpException {
+    if (parentId != null) {
+      final String url = "/suite-api/api/resources/" + parentId + "/relationships";
+      return client.getJson(url, PageOfResources.class, "relationshipType=CHILD", "page=" + page);
+    }
+    return fetchResources(conf.getResourceKind(), conf.getAdapterKind(), namePattern, page);
+  }
+
+  private static PageOfResources waitForPage(final Future<PageOfResources> page)
+      throws IOException, HttpException, ExporterException {
+    try {
+      return page.get();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ExporterException(e);
+    } catch (final ExecutionException e) {
+      rethrowCause(e);
+      throw new ExporterException(e.getCause());
+    }
+  }
+
+  /**
+   * Rethrows the cause of a failed background task or cache load if it's of a kind we normally
+   * pass on. Callers have to deal with anything else.
+   */
+  static void rethrowCause(final ExecutionException e) throws IOException, HttpException {
+    final Throwable cause = e.getCause();
+    if (cause instanceof IOException) {
+      throw (IOException) cause;
+    }
+    if (cause instanceof HttpException) {
+      throw (HttpException) cause;
+    }
+    if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    }
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+  }
+
   private void preloadCache(final List<NamedResource> resources) {
-    synchronized (nameCache) {
-      for (final NamedResource res : resources) {
-        nameCache.put(res.getIdentifier(), (String) res.getResourceKey().get("name"));
+    for (final NamedResource res : resources) {
+      final String name = (String) res.getResourceKey().get("name");
+      nameCache.put(res.getIdentifier(), name);
+      if (metadataCache != null) {
+        metadataCache.getNames().put(res.getIdentifier(), name);
       }
     }
   }
@@ -301,22 +1302,31 @@ public class Exporter implements DataProvider {
 
   @Override
   public String getResourceName(final String resourceId) throws IOException, HttpException {
-    synchronized (nameCache) {
-      final String name = nameCache.get(resourceId);
-      if (name != null) {
-        return name;
+    try {
+      return nameCache.get(resourceId, this::lookupResourceName);
+    } catch (final ExecutionException e) {
+      rethrowCause(e);
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private String lookupResourceName(final String resourceId) throws IOException, HttpException {
+    if (metadataCache != null) {
+      final MetadataCache.Entry<String> e = metadataCache.getNames().get(resourceId);
+      if (e != null) {
+        return e.getValue();
       }
     }
     final long start = System.currentTimeMillis();
     final String url = "/suite-api/api/resources/" + resourceId;
     final NamedResource res = client.getJson(url, NamedResource.class);
-    final String name = (String) res.getResourceKey().get("name");
-    synchronized (nameCache) {
-      nameCache.put(resourceId, name);
-    }
     if (verbose) {
       log.debug("Name cache miss. Lookup took " + (System.currentTimeMillis() - start));
     }
+    final String name = (String) res.getResourceKey().get("name");
+    if (metadataCache != null) {
+      metadataCache.getNames().put(resourceId, name);
+    }
     return name;
   }
 
@@ -324,13 +1334,29 @@ public class Exporter implements DataProvider {
   public InputStream fetchMetricStream(
       final NamedResource[] resList, final RowMetadata meta, final long begin, final long end)
       throws IOException, HttpException {
+    final CompletableFuture<InputStream> future = fetchMetricStreamAsync(resList, meta, begin, end);
+    try {
+      return Client.await(future);
+    } catch (final InterruptedIOException e) {
+      // Nobody is going to read the response, but it still holds on to a connection.
+      future.thenAccept(IOUtils::closeQuietly);
+      throw e;
+    }
+  }
+
+  /**
+   * Starts a metric query. It runs on the client's request threads, of which there is one per
+   * request that may be in flight, rather than on the calling thread.
+   */
+  private CompletableFuture<InputStream> fetchMetricStreamAsync(
+      final NamedResource[] resList, final RowMetadata meta, final long begin, final long end) {
     return conf.getRollupType().equals("LATEST")
         ? fetchLatestMetrics(resList, meta)
         : queryMetrics(resList, meta, begin, end);
   }
 
-  private InputStream fetchLatestMetrics(final NamedResource[] resList, final RowMetadata meta)
-      throws IOException, HttpException {
+  private CompletableFuture<InputStream> fetchLatestMetrics(
+      final NamedResource[] resList, final RowMetadata meta) {
     final List<String> stats = meta.getMetricMap().keySet().stream().collect(Collectors.toList());
     final MetricsRequest q =
         new MetricsRequest(
@@ -343,12 +1369,11 @@ public class Exporter implements DataProvider {
             null,
             null,
             stats);
-    return client.postJsonReturnStream("/suite-api/api/resources/stats/latest/query", q);
+    return client.postJsonReturnStreamAsync("/suite-api/api/resources/stats/latest/query", q);
   }
 
-  private InputStream queryMetrics(
-      final NamedResource[] resList, final RowMetadata meta, final long begin, final long end)
-      throws IOException, HttpException {
+  private CompletableFuture<InputStream> queryMetrics(
+      final NamedResource[] resList, final RowMetadata meta, final long begin, final long end) {
     final List<String> stats = meta.getMetricMap().keySet().stream().collect(Collectors.toList());
     final MetricsRequest q =
         new MetricsRequest(
@@ -362,41 +1387,312 @@ public class Exporter implements DataProvider {
             end,
             stats);
     // log.debug("Metric query: " + new ObjectMapper().writeValueAsString(q));
-    return client.postJsonReturnStream("/suite-api/api/resources/stats/query", q);
+    return client.postJsonReturnStreamAsync("/suite-api/api/resources/stats/query", q);
+  }
+
+  /**
+   * Loads the properties for a whole chunk with a single query, rather than letting the parser look
+   * them up one resource at a time. The query runs in the background, so that other lookups for the
+   * chunk can be made while the server works on it.
+   *
+   * @return Properties by resource id, or null if they should be looked up one by one.
+   */
+  private CompletableFuture<Map<String, Map<String, String>>> fetchPropsForChunkAsync(
+      final List<NamedResource> resList, final RowMetadata meta) {
+    if (noBulkProps || !meta.needsPropertyLoad()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    final List<String> keys = meta.getPropertyKeysToLoad();
+    final String keySignature = metadataCache != null ? propertyKeySignature(keys) : null;
+
+    // Resources that don't have any of the properties still get an entry, so we don't end up
+    // asking for them again.
+    final Map<String, Map<String, String>> result = new HashMap<>(resList.size() * 2);
+    final List<String> ids = new ArrayList<>(resList.size());
+    for (final NamedResource res : resList) {
+      final MetadataCache.Entry<Map<String, String>> e =
+          metadataCache != null
+              ? metadataCache.getProperties().get(res.getIdentifier() + "|" + keySignature)
+              : null;
+      if (e != null) {
+        result.put(res.getIdentifier(), e.getValue());
+      } else {
+        result.put(res.getIdentifier(), new HashMap<>());
+        ids.add(res.getIdentifier());
+      }
+    }
+    if (ids.isEmpty()) {
+      return CompletableFuture.completedFuture(result);
+    }
+    final long start = System.currentTimeMillis();
+    return client
+        .postJsonReturnJsonAsync(
+            "/suite-api/api/resources/properties/latest/query",
+            new PropertiesQueryRequest(ids, keys),
+            PropertiesQueryResponse.class)
+        .handle(
+            (response, e) -> {
+              if (e instanceof HttpException) {
+                log.warn(
+                    "Bulk property query failed. Fetching properties one resource at a time", e);
+                noBulkProps = true;
+                return null;
+              }
+              if (e != null) {
+                throw new CompletionException(e);
+              }
+              if (verbose) {
+                log.debug("Property query took " + (System.currentTimeMillis() - start) + " ms");
+              }
+              return addProps(response, ids, keySignature, result);
+            });
+  }
+
+  private Map<String, Map<String, String>> addProps(
+      final PropertiesQueryResponse response,
+      final List<String> ids,
+      final String keySignature,
+      final Map<String, Map<String, String>> result) {
+    if (response.getValues() != null) {
+      for (final PropertiesQueryResponse.ResourceProperties rp : response.getValues()) {
+        final Map<String, String> props = result.get(rp.getResourceId());
+        if (props == null
+            || rp.getPropertyContents() == null
+            || rp.getPropertyContents().getPropertyContent() == null) {
+          continue;
+        }
+        for (final PropertiesQueryResponse.PropertyContent pc :
+            rp.getPropertyContents().getPropertyContent()) {
+          final String value = latestValue(pc);
+          if (value != null) {
+            props.put(pc.getStatKey(), value);
+          }
+        }
+      }
+    }
+    if (metadataCache != null) {
+      for (final String id : ids) {
+        metadataCache.getProperties().put(id + "|" + keySignature, result.get(id));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Resolves the parents of a whole chunk with a single relationship query and loads the metrics
+   * for the ones we haven't seen before with a single stats query.
+   */
+  private void fetchParentsForChunk(
+      final List<NamedResource> resList,
+      final RowMetadata meta,
+      final long begin,
+      final long end,
+      final ChunkPreload preload)
+      throws IOException, HttpException, ExporterException {
+    final RowMetadata pMeta = meta.forParent();
+    if (noBulkParents || !pMeta.isValid()) {
+      return;
+    }
+    final String parentType = pMeta.getResourceKind();
+
+    // Resources without a parent of the right kind still get an entry, so we don't end up asking
+    // for them again.
+    final Map<String, NamedResource> parents = new HashMap<>(resList.size() * 2);
+    final Map<String, NamedResource> distinct = new HashMap<>();
+    final List<String> ids = new ArrayList<>(resList.size());
+    for (final NamedResource res : resList) {
+      final MetadataCache.Entry<NamedResource> e =
+          metadataCache != null
+              ? metadataCache.getParents().get(res.getIdentifier() + "|" + parentType)
+              : null;
+      if (e != null) {
+        parents.put(res.getIdentifier(), e.getValue());
+        if (e.getValue() != null) {
+          distinct.put(e.getValue().getIdentifier(), e.getValue());
+        }
+      } else {
+        parents.put(res.getIdentifier(), null);
+        ids.add(res.getIdentifier());
+      }
+    }
+    if (!ids.isEmpty() && !queryParents(ids, parentType, parents, distinct)) {
+      return;
+    }
+    preload.parents = parents;
+
+    // Load the parents we don't already have in one go.
+    final List<NamedResource> missing = new ArrayList<>();
+    for (final NamedResource parent : distinct.values()) {
+      if (!rowsetCache.containsKey(
+          StatsProcessor.parentCacheKey(parent.getIdentifier(), begin, end))) {
+        missing.add(parent);
+      }
+    }
+    if (missing.isEmpty()) {
+      return;
+    }
+    final ParentCollector collector = new ParentCollector(begin, end);
+    try {
+      final StatsProcessor sp = new StatsProcessor(conf, pMeta, this, rowsetCache, null, verbose);
+
+      // Don't wait for the properties while holding on to the metrics response. If the client
+      // limits the requests in flight, they might never come.
+      sp.setPreloadedProps(Client.await(fetchPropsForChunkAsync(missing, pMeta)));
+      try (final InputStream is =
+          fetchMetricStream(missing.toArray(new NamedResource[0]), pMeta, begin, end)) {
+        sp.process(is, collector, begin, end);
+      }
+      countSkipped(sp);
+    } catch (final IOException | HttpException e) {
+      // Not fatal. The parser will fetch the missing parents one at a time.
+      log.warn("Could not load parents for chunk", e);
+    }
+    preload.parentRowsets = collector.rowsets;
+  }
+
+  /**
+   * Looks up the parents of the given resources with a single relationship query and adds them to
+   * the maps. Resources without a parent of the right kind are left as they are.
+   *
+   * @return False if the server doesn't support the query
+   */
+  private boolean queryParents(
+      final List<String> ids,
+      final String parentType,
+      final Map<String, NamedResource> parents,
+      final Map<String, NamedResource> distinct)
+      throws IOException {
+    final BulkRelationshipsResponse response;
+    try {
+      final long start = System.currentTimeMillis();
+      response =
+          client.postJsonReturnJson(
+              "/suite-api/api/resources/bulk/relationships",
+              new BulkRelationshipsRequest("PARENT", ids, 1),
+              BulkRelationshipsResponse.class);
+      if (verbose) {
+        log.debug("Parent query took " + (System.currentTimeMillis() - start) + " ms");
+      }
+    } catch (final HttpException e) {
+      log.warn("Bulk relationship query failed. Fetching parents one resource at a time", e);
+      noBulkParents = true;
+      return false;
+    }
+    if (response.getResourcesRelations() != null) {
+      final Set<String> wanted = new HashSet<>(ids);
+      for (final BulkRelationshipsResponse.ResourceRelation rel :
+          response.getResourcesRelations()) {
+        final NamedResource parent = rel.getResource();
+        if (parent == null
+            || rel.getRelatedResources() == null
+            || !parentType.equals(parent.getResourceKey().get("resourceKindKey"))) {
+          continue;
+        }
+        for (final String child : rel.getRelatedResources()) {
+          if (wanted.contains(child)) {
+            parents.put(child, parent);
+            distinct.put(parent.getIdentifier(), parent);
+          }
+        }
+      }
+    }
+    if (metadataCache != null) {
+      for (final String id : ids) {
+        metadataCache.getParents().put(id + "|" + parentType, parents.get(id));
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns a short string identifying a set of property keys, so that properties loaded for one
+   * export definition aren't mistaken for a complete set by another one.
+   */
+  private static String propertyKeySignature(final List<String> keys) {
+    try {
+      final MessageDigest md = MessageDigest.getInstance("SHA-256");
+      for (final String key : new TreeSet<>(keys)) {
+        md.update(key.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+      }
+      final StringBuilder sb = new StringBuilder();
+      for (final byte b : Arrays.copyOf(md.digest(), 8)) {
+        sb.append(String.format("%02x", b));
+      }
+      return sb.toString();
+    } catch (final NoSuchAlgorithmException e) {
+      // Every JVM has SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String latestValue(final PropertiesQueryResponse.PropertyContent pc) {
+    if (pc.getValues() != null && !pc.getValues().isEmpty()) {
+      return pc.getValues().get(pc.getValues().size() - 1);
+    }
+    if (pc.getData() != null && !pc.getData().isEmpty()) {
+      // Format whole numbers the way the single resource property call does.
+      final double d = pc.getData().get(pc.getData().size() - 1);
+      return d == Math.rint(d) && !Double.isInfinite(d)
+          ? Long.toString((long) d)
+          : Double.toString(d);
+    }
+    return null;
   }
 
   @Override
   public Map<String, String> fetchProps(final String id) throws IOException, HttpException {
-    synchronized (propCache) {
-      final Map<String, String> result = propCache.get(id);
-      if (result != null) {
-        return result;
-      }
+    try {
+      return propCache.get(id, this::lookupProps);
+    } catch (final ExecutionException e) {
+      rethrowCause(e);
+      throw new IOException(e.getCause());
     }
+  }
 
+  private Map<String, String> lookupProps(final String id) throws IOException, HttpException {
+    // This call returns all properties, so the entry is good for any export definition.
+    final String key = id + "|*";
+    if (metadataCache != null) {
+      final MetadataCache.Entry<Map<String, String>> e = metadataCache.getProperties().get(key);
+      if (e != null) {
+        return e.getValue();
+      }
+    }
     if (verbose) {
       log.debug("Prop cache miss for id: " + id);
     }
     final String uri = "/suite-api/api/resources/" + id + "/properties";
     final PropertiesResponse props = client.getJson(uri, PropertiesResponse.class);
-    final Map<String, String> response =
+    final Map<String, String> result =
         Arrays.stream(props.getProperty())
             .collect(
                 Collectors.toMap(
                     PropertiesResponse.Property::getName, PropertiesResponse.Property::getValue));
-    synchronized (propCache) {
-      propCache.put(id, response);
+    if (metadataCache != null) {
+      metadataCache.getProperties().put(key, result);
     }
-    return response;
+    return result;
   }
 
   @Override
   public NamedResource getParentOf(final String id, final String parentType)
       throws IOException, HttpException {
-    synchronized (parentCache) {
-      final NamedResource p = parentCache.get(id + parentType);
-      if (p != null) {
-        return p;
+    try {
+      return parentCache.get(id + parentType, k -> lookupParentOf(id, parentType));
+    } catch (final ExecutionException e) {
+      rethrowCause(e);
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private NamedResource lookupParentOf(final String id, final String parentType)
+      throws IOException, HttpException {
+    if (metadataCache != null) {
+      final MetadataCache.Entry<NamedResource> e =
+          metadataCache.getParents().get(id + "|" + parentType);
+      if (e != null) {
+        return e.getValue();
       }
     }
     if (verbose) {
@@ -407,17 +1703,15 @@ public class Exporter implements DataProvider {
             "/suite-api/api/resources/" + id + "/relationships",
             PageOfResources.class,
             "relationshipType=PARENT");
-    final NamedResource res =
+    final NamedResource parent =
         page.getResourceList().stream()
             .filter(r -> r.getResourceKey().get("resourceKindKey").equals(parentType))
             .findFirst()
             .orElse(null);
-    if (res != null) {
-      synchronized (parentCache) {
-        parentCache.put(id + parentType, res);
-      }
+    if (metadataCache != null) {
+      metadataCache.getParents().put(id + "|" + parentType, parent);
     }
-    return res;
+    return parent;
   }
 
   public void printResourceMetadata(final String adapterAndResourceKind, final PrintStream out)
@@ -446,6 +1740,25 @@ public class Exporter implements DataProvider {
 
   public List<String> getStatKeysForResourceKind(
       final String adapterKind, final String resourceKind) throws IOException, HttpException {
+    try {
+      return statKeyCache.get(
+          adapterKind + ":" + resourceKind,
+          k -> lookupStatKeysForResourceKind(adapterKind, resourceKind));
+    } catch (final ExecutionException e) {
+      rethrowCause(e);
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private List<String> lookupStatKeysForResourceKind(
+      final String adapterKind, final String resourceKind) throws IOException, HttpException {
+    final String key = adapterKind + ":" + resourceKind;
+    if (metadataCache != null) {
+      final MetadataCache.Entry<List<String>> e = metadataCache.getStatKeys().get(key);
+      if (e != null) {
+        return e.getValue();
+      }
+    }
     final StatKeysResponse response =
         client.getJson(
             "/suite-api/api/adapterkinds/"
@@ -455,16 +1768,42 @@ public class Exporter implements DataProvider {
                 + "/statkeys",
             StatKeysResponse.class);
 
-    return response.getStatKeys().stream().map(r -> r.getKey()).collect(Collectors.toList());
+    final List<String> keys =
+        response.getStatKeys().stream().map(r -> r.getKey()).collect(Collectors.toList());
+    if (metadataCache != null) {
+      metadataCache.getStatKeys().put(key, keys);
+    }
+    return keys;
   }
 
   @Override
   public List<String> getStatKeysForResource(final String resourceId)
       throws IOException, HttpException {
+    try {
+      return statKeyCache.get(resourceId, this::lookupStatKeysForResource);
+    } catch (final ExecutionException e) {
+      rethrowCause(e);
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private List<String> lookupStatKeysForResource(final String resourceId)
+      throws IOException, HttpException {
+    if (metadataCache != null) {
+      final MetadataCache.Entry<List<String>> e = metadataCache.getStatKeys().get(resourceId);
+      if (e != null) {
+        return e.getValue();
+      }
+    }
     final ResourceStatKeysResponse response =
         client.getJson(
             "/suite-api/api/resources/" + resourceId + "/statkeys", ResourceStatKeysResponse.class);
-    return response.getStatKeys().stream().map(r -> r.get("key")).collect(Collectors.toList());
+    final List<String> keys =
+        response.getStatKeys().stream().map(r -> r.get("key")).collect(Collectors.toList());
+    if (metadataCache != null) {
+      metadataCache.getStatKeys().put(resourceId, keys);
+    }
+    return keys;
   }
 
   public void generateExportDefinition(final String adapterAndResourceKind, final PrintStream out)
@@ -536,22 +1875,34 @@ public class Exporter implements DataProvider {
     }
   }
 
-  private void handleResources(
+  private void fetchChunk(
       final List<NamedResource> resList,
+      final ChunkPreload preload,
       final RowsetProcessor rsp,
       final RowMetadata meta,
       final long begin,
       final long end,
       final ProgressMonitor progress)
-      throws IOException, HttpException, ExporterException {
+      throws IOException, HttpException, ExporterException, InterruptedException {
+    if (!useTempFile) {
+      openResponses.acquire();
+    }
     InputStream content;
+    final CountingInputStream counter;
+    final long latency;
     try {
       final long start = System.currentTimeMillis();
-      content = fetchMetricStream(resList.stream().toArray(NamedResource[]::new), meta, begin, end);
+      counter =
+          new CountingInputStream(
+              fetchMetricStream(resList.stream().toArray(NamedResource[]::new), meta, begin, end));
+      content = counter;
+      latency = System.currentTimeMillis() - start;
       if (verbose) {
-        log.debug("Metric request call took " + (System.currentTimeMillis() - start) + " ms");
+        log.debug("Metric request call took " + latency + " ms");
       }
     } catch (final NoHttpResponseException e) {
+      releaseOpenResponse();
+      chunkSizer.reportFailure(resList.size());
 
       // This seems to happen when we're giving the server too much work to do in one call.
       // Try again, but split the chunk into two and run them separately.
@@ -572,9 +1923,12 @@ public class Exporter implements DataProvider {
       while (i < sz) {
         right.add(resList.get(i++));
       }
-      handleResources(left, rsp, meta, begin, end, progress);
-      handleResources(right, rsp, meta, begin, end, progress);
+      fetchChunk(left, preload, rsp, meta, begin, end, progress);
+      fetchChunk(right, preload, rsp, meta, begin, end, progress);
       return;
+    } catch (final IOException | HttpException | RuntimeException e) {
+      releaseOpenResponse();
+      throw e;
     }
     try {
       if (useTempFile) {
@@ -587,6 +1941,12 @@ public class Exporter implements DataProvider {
             IOUtils.copy(content, out);
           }
 
+        } catch (final IOException e) {
+          // Writing the temp file may fail too, and that's no reason to ask for less.
+          if (isTruncatedResponse(e)) {
+            chunkSizer.reportFailure(resList.size());
+          }
+          throw e;
         } finally {
           content.close();
         }
@@ -595,10 +1955,78 @@ public class Exporter implements DataProvider {
           log.debug("Dumping to temp file took " + (System.currentTimeMillis() - start) + " ms");
         }
       }
+      final InputStream parseContent = content;
+      parseStage.submit(
+          () ->
+              parseChunk(
+                  parseContent,
+                  counter,
+                  latency,
+                  resList,
+                  preload,
+                  rsp,
+                  meta,
+                  begin,
+                  end,
+                  progress));
+      content = null; // The parse stage owns it now
+    } finally {
+      if (content != null) {
+        try {
+          content.close();
+        } finally {
+          releaseOpenResponse();
+        }
+      }
+    }
+  }
+
+  /**
+   * True if the exception means the server cut a metric response short, which is what it does when
+   * a chunk is too much for it. Failing sinks and lookups say nothing about the chunk size. A
+   * lookup can fail with a NoHttpResponseException too, so that one only counts when the metric
+   * query itself is executed.
+   */
+  private static boolean isTruncatedResponse(final IOException e) {
+    return e instanceof ConnectionClosedException
+        || e instanceof MalformedChunkCodingException
+        || e instanceof JsonParseException
+        || e instanceof EOFException;
+  }
+
+  private void releaseOpenResponse() {
+    if (!useTempFile) {
+      openResponses.release();
+    }
+  }
+
+  private void parseChunk(
+      final InputStream content,
+      final CountingInputStream counter,
+      final long latency,
+      final List<NamedResource> resList,
+      final ChunkPreload preload,
+      final RowsetProcessor rsp,
+      final RowMetadata meta,
+      final long begin,
+      final long end,
+      final ProgressMonitor progress)
+      throws IOException, HttpException, ExporterException {
+    try {
       final long start = System.currentTimeMillis();
-      final StatsProcessor sp =
-          new StatsProcessor(conf, meta, this, rowsetCache, progress, verbose);
-      final int processed = sp.process(content, rsp, begin, end);
+      final StatsProcessor sp = newStatsProcessor(meta, preload, progress);
+      final int processed;
+      try {
+        processed = sp.process(content, toSink(rsp), begin, end);
+      } catch (final IOException e) {
+        if (isTruncatedResponse(e)) {
+          chunkSizer.reportFailure(resList.size());
+        }
+        throw e;
+      }
+      countSkipped(sp);
+      chunkSizer.reportSuccess(
+          resList.size(), latency, counter.getByteCount(), sp.getSampleCount());
 
       // Some resources may not have returned metrics and would not have been counted. Update the
       // progress counter
@@ -611,10 +2039,31 @@ public class Exporter implements DataProvider {
         log.debug("Result processing took " + (System.currentTimeMillis() - start) + " ms");
       }
     } finally {
-      content.close();
+      try {
+        content.close();
+      } finally {
+        releaseOpenResponse();
+      }
     }
   }
 
+  /** Returns what the parser should hand its rowsets to on their way to the sink. */
+  private RowsetProcessor toSink(final RowsetProcessor rsp) {
+    return streaming ? rsp : new SinkStageProcessor(rsp);
+  }
+
+  private StatsProcessor newStatsProcessor(
+      final RowMetadata meta, final ChunkPreload preload, final ProgressMonitor progress) {
+    final StatsProcessor sp = new StatsProcessor(conf, meta, this, rowsetCache, progress, verbose);
+    sp.setPreloadedProps(preload.props);
+    sp.setPreloadedParents(preload.parents);
+    sp.setPreloadedParentRowsets(preload.parentRowsets);
+    sp.setCheckpoints(checkpoints);
+    sp.setRowBatch(streaming ? rowBatch : 0);
+    sp.setPostStage(postStage);
+    return sp;
+  }
+
   private static String urlencode(final String s) throws UnsupportedEncodingException {
     return URLEncoder.encode(s, "UTF-8").replace("+", "%20");
   }
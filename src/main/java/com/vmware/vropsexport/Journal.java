@@ -0,0 +1,253 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Records which resources an export has delivered, so that an export that died halfway can be
+ * picked up where it left off. Resources are only recorded at commit points, after the sink has
+ * flushed everything it was given. A commit point also records how much output had been written at
+ * that time, so output written after the last commit can be cut off before resuming.
+ *
+ * <p>The file holds a header line with the time range of the export, followed by one line per
+ * delivered resource and one line per commit point. Resources after the last commit point don't
+ * count.
+ */
+public class Journal {
+  private static final Logger log = LogManager.getLogger(Journal.class);
+
+  private static final String FILE_PREFIX = "journal-";
+
+  private static final String WINDOW = "window";
+
+  private static final String RESOURCE = "r";
+
+  private static final String COMMIT = "c";
+
+  private final File file;
+
+  private final long begin;
+
+  private final long end;
+
+  private final boolean resumed;
+
+  private final Set<String> done;
+
+  private final List<String> pending = new ArrayList<>();
+
+  private long outputLength;
+
+  private FileOutputStream fos;
+
+  private Writer writer;
+
+  private Journal(
+      final File file,
+      final long begin,
+      final long end,
+      final boolean resumed,
+      final Set<String> done,
+      final long outputLength) {
+    this.file = file;
+    this.begin = begin;
+    this.end = end;
+    this.resumed = resumed;
+    this.done = done;
+    this.outputLength = outputLength;
+  }
+
+  /** Returns the journal file for an export. The key identifies the export. */
+  public static File getFile(final File dir, final String key) {
+    return new File(dir, FILE_PREFIX + Integer.toHexString(key.hashCode()) + ".log");
+  }
+
+  /**
+   * Opens a journal. If the file holds the journal of an unfinished export, that export is resumed,
+   * including its time range. Otherwise, a new journal is started for the given time range.
+   */
+  public static Journal open(final File file, final long begin, final long end)
+      throws IOException {
+    Journal j = file.exists() ? load(file) : null;
+    if (j == null) {
+      j = new Journal(file, begin, end, false, new HashSet<>(), 0);
+      j.start(false);
+      j.writeLine(WINDOW + " " + begin + " " + end);
+      j.sync();
+    } else {
+      j.compact();
+      j.start(true);
+    }
+    return j;
+  }
+
+  private static Journal load(final File file) throws IOException {
+    final String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+
+    // A line without a newline was being written as we went down. It's after the last commit.
+    final String[] lines = text.substring(0, text.lastIndexOf('\n') + 1).split("\n");
+    final String[] h = lines[0].split(" ");
+    if (h.length != 3 || !WINDOW.equals(h[0])) {
+      log.warn("Ignoring invalid journal " + file);
+      return null;
+    }
+    final Set<String> done = new HashSet<>();
+    final List<String> uncommitted = new ArrayList<>();
+    long outputLength = 0;
+    try {
+      for (int i = 1; i < lines.length; ++i) {
+        final String line = lines[i];
+        final int p = line.indexOf(' ');
+        if (p == -1) {
+          continue;
+        }
+        final String kind = line.substring(0, p);
+        if (RESOURCE.equals(kind)) {
+          uncommitted.add(line.substring(p + 1));
+        } else if (COMMIT.equals(kind)) {
+          outputLength = Long.parseLong(line.substring(p + 1));
+          done.addAll(uncommitted);
+          uncommitted.clear();
+        }
+      }
+      return new Journal(
+          file, Long.parseLong(h[1]), Long.parseLong(h[2]), true, done, outputLength);
+    } catch (final NumberFormatException e) {
+      log.warn("Ignoring invalid journal " + file);
+      return null;
+    }
+  }
+
+  /**
+   * Rewrites the journal with nothing but what has been committed, so that resources recorded after
+   * the last commit point don't count once this run commits.
+   */
+  private void compact() throws IOException {
+    final File tmp = new File(file.getPath() + ".tmp");
+    fos = new FileOutputStream(tmp);
+    writer = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8));
+    writeLine(WINDOW + " " + begin + " " + end);
+    for (final String id : done) {
+      writeLine(RESOURCE + " " + id);
+    }
+    writeLine(COMMIT + " " + outputLength);
+    sync();
+    writer.close();
+    Files.move(
+        tmp.toPath(),
+        file.toPath(),
+        StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private void start(final boolean append) throws IOException {
+    fos = new FileOutputStream(file, append);
+    writer = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8));
+  }
+
+  public long getBegin() {
+    return begin;
+  }
+
+  public long getEnd() {
+    return end;
+  }
+
+  /** True if this journal belongs to an earlier export that didn't finish. */
+  public boolean isResumed() {
+    return resumed;
+  }
+
+  /** Number of bytes of output written as of the last commit point. */
+  public synchronized long getOutputLength() {
+    return outputLength;
+  }
+
+  /** Number of resources delivered by earlier attempts. */
+  public int getDoneCount() {
+    return done.size();
+  }
+
+  /** True if an earlier attempt delivered the resource. */
+  public boolean isDone(final String resourceId) {
+    return done.contains(resourceId);
+  }
+
+  /** Records that the resource has been handed to the sink. It counts once committed. */
+  public synchronized void delivered(final String resourceId) {
+    pending.add(resourceId);
+  }
+
+  public synchronized int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Commits everything delivered since the last commit point. The caller must make sure that the
+   * sink has flushed it all first.
+   *
+   * @param outputLength Total number of bytes of output written so far
+   */
+  public synchronized void commit(final long outputLength) throws IOException {
+    for (final String id : pending) {
+      writeLine(RESOURCE + " " + id);
+    }
+    writeLine(COMMIT + " " + outputLength);
+    sync();
+    pending.clear();
+    this.outputLength = outputLength;
+  }
+
+  /** Closes the journal and keeps it, so that the export can be resumed. */
+  public synchronized void close() throws IOException {
+    writer.close();
+  }
+
+  /** Closes and removes the journal once the export has completed. */
+  public synchronized void finish() throws IOException {
+    writer.close();
+    if (!file.delete()) {
+      throw new IOException("Could not delete " + file);
+    }
+  }
+
+  private void writeLine(final String line) throws IOException {
+    writer.write(line);
+    writer.write('\n');
+  }
+
+  private void sync() throws IOException {
+    writer.flush();
+    fos.getFD().sync();
+  }
+}
@@ -17,20 +17,238 @@
  */
 package com.vmware.vropsexport;
 
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
 
-public class LRUCache<K, V> extends LinkedHashMap<K, V> {
-  private static final long serialVersionUID = 1689404735863505762L;
-  private final int cacheSize;
+/**
+ * A thread safe LRU cache. Entries are spread over a number of segments, each with its own lock and
+ * its own share of the capacity, so threads looking up different keys rarely wait for each other.
+ * The price is that eviction is least recently used per segment rather than for the whole cache.
+ * Small caches use a single segment and are exact.
+ *
+ * <p>Capacity is either a number of entries or a total weight, where the weight of each entry is
+ * decided by a {@link Weigher}.
+ */
+public class LRUCache<K, V> {
+  public interface Weigher<K, V> {
+    long weigh(K key, V value);
+  }
+
+  public interface Loader<K, V> {
+    V load(K key) throws Exception;
+  }
+
+  private static final int MAX_SEGMENTS = 16;
+
+  // Caches smaller than this per segment don't get split
+  private static final long MIN_SEGMENT_WEIGHT = 64;
+
+  private static class Entry<V> {
+    private final V value;
+
+    private final long weight;
+
+    private Entry(final V value, final long weight) {
+      this.value = value;
+      this.weight = weight;
+    }
+  }
+
+  private static class Segment<K, V> {
+    private final LinkedHashMap<K, Entry<V>> map = new LinkedHashMap<>(16, 0.75F, true);
+
+    private final long maxWeight;
+
+    private final Weigher<K, V> weigher;
+
+    private final LongAdder evictions;
+
+    private long weight;
+
+    private Segment(final long maxWeight, final Weigher<K, V> weigher, final LongAdder evictions) {
+      this.maxWeight = maxWeight;
+      this.weigher = weigher;
+      this.evictions = evictions;
+    }
+
+    private synchronized V get(final K key) {
+      final Entry<V> e = map.get(key);
+      return e != null ? e.value : null;
+    }
+
+    private synchronized boolean containsKey(final K key) {
+      return map.containsKey(key);
+    }
+
+    private synchronized void put(final K key, final V value) {
+      final Entry<V> e = new Entry<>(value, weigher.weigh(key, value));
+      final Entry<V> old = map.put(key, e);
+      weight += e.weight - (old != null ? old.weight : 0);
+
+      // Evict until we're within capacity, but never the entry we just put.
+      final Iterator<Entry<V>> itor = map.values().iterator();
+      while (weight > maxWeight && map.size() > 1) {
+        final Entry<V> eldest = itor.next();
+        itor.remove();
+        weight -= eldest.weight;
+        evictions.increment();
+      }
+    }
+
+    private synchronized void clear() {
+      map.clear();
+      weight = 0;
+    }
+
+    private synchronized int size() {
+      return map.size();
+    }
+
+    private synchronized long weight() {
+      return weight;
+    }
+  }
+
+  private final Segment<K, V>[] segments;
+
+  private final Map<K, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
 
+  private final LongAdder hits = new LongAdder();
+
+  private final LongAdder misses = new LongAdder();
+
+  private final LongAdder evictions = new LongAdder();
+
+  /** Creates a cache holding at most the given number of entries. */
   public LRUCache(final int cacheSize) {
-    super(cacheSize, 0.75F, true);
-    this.cacheSize = cacheSize;
+    this(cacheSize, (k, v) -> 1);
+  }
+
+  /** Creates a cache holding entries up to the given total weight. */
+  public LRUCache(final long maxWeight, final Weigher<K, V> weigher) {
+    int n = 1;
+    while (n < MAX_SEGMENTS && maxWeight / (n * 2) >= MIN_SEGMENT_WEIGHT) {
+      n *= 2;
+    }
+    @SuppressWarnings("unchecked")
+    final Segment<K, V>[] s = new Segment[n];
+    for (int i = 0; i < n; ++i) {
+      // Spread the remainder so the segments add up to exactly the requested weight.
+      s[i] = new Segment<>(maxWeight / n + (i < maxWeight % n ? 1 : 0), weigher, evictions);
+    }
+    segments = s;
+  }
+
+  public V get(final K key) {
+    final V value = segmentFor(key).get(key);
+    if (value != null) {
+      hits.increment();
+    } else {
+      misses.increment();
+    }
+    return value;
+  }
+
+  /**
+   * Returns the value for a key, loading it if it's not in the cache. If several threads ask for
+   * the same missing key at the same time, only one of them loads it and the others wait for the
+   * result. Null values are returned but not cached.
+   *
+   * @param key The key
+   * @param loader Loads the value if it's not cached
+   * @return The value
+   * @throws ExecutionException If the loader failed. The cause is the exception it threw.
+   */
+  public V get(final K key, final Loader<K, V> loader) throws ExecutionException {
+    V value = get(key);
+    if (value != null) {
+      return value;
+    }
+    final CompletableFuture<V> mine = new CompletableFuture<>();
+    final CompletableFuture<V> theirs = loading.putIfAbsent(key, mine);
+    if (theirs != null) {
+      try {
+        return theirs.get();
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ExecutionException(e);
+      }
+    }
+    try {
+      // Someone may have finished loading it between our first look and now.
+      value = segmentFor(key).get(key);
+      if (value == null) {
+        value = loader.load(key);
+        if (value != null) {
+          put(key, value);
+        }
+      }
+      mine.complete(value);
+      return value;
+    } catch (final Exception e) {
+      mine.completeExceptionally(e);
+      throw new ExecutionException(e);
+    } finally {
+      loading.remove(key, mine);
+    }
+  }
+
+  public boolean containsKey(final K key) {
+    return segmentFor(key).containsKey(key);
+  }
+
+  public void put(final K key, final V value) {
+    segmentFor(key).put(key, value);
+  }
+
+  public void clear() {
+    for (final Segment<K, V> s : segments) {
+      s.clear();
+    }
+  }
+
+  public int size() {
+    int n = 0;
+    for (final Segment<K, V> s : segments) {
+      n += s.size();
+    }
+    return n;
+  }
+
+  public long getWeight() {
+    long w = 0;
+    for (final Segment<K, V> s : segments) {
+      w += s.weight();
+    }
+    return w;
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
   }
 
   @Override
-  protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
-    return size() >= cacheSize;
+  public String toString() {
+    return String.format(
+        "size=%d weight=%d hits=%d misses=%d evictions=%d",
+        size(), getWeight(), getHits(), getMisses(), getEvictions());
+  }
+
+  private Segment<K, V> segmentFor(final K key) {
+    final int h = key.hashCode();
+    return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
   }
 }
@@ -39,6 +39,11 @@ import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Scanner;
 
 public class Main {
@@ -58,6 +63,17 @@ public class Main {
 
   private static final int DEFAULT_ROWS_PER_THREAD = 1000;
 
+  private static final int MAX_THREADS = 20;
+
+  private static final int MAX_VIRTUAL_THREADS = 1000;
+
+  private static final int MAX_REQUESTS = 200;
+
+  private static final long DEFAULT_LOOKBACK = 1000L * 60L * 60L * 24L;
+
+  // How long to let a running export finish when the daemon is asked to stop
+  private static final long DAEMON_STOP_TIMEOUT_MS = 60000;
+
   public static void main(final String[] args) throws Exception {
 
     // Parse command line
@@ -171,27 +187,63 @@ public class Main {
         if (startS != null ^ endS != null) {
           throw new ExporterException("Both start and end must be specified");
         }
+        final File stateDir = parseStateDir(commandLine);
+        final Map<MetadataCache.Kind, Long> metadataTtls = parseMetadataTtls(commandLine);
+        if (metadataTtls != null && stateDir == null) {
+          throw new ExporterException("Metadata cache requires a state directory");
+        }
+        final boolean incremental = commandLine.hasOption("incremental");
+        if (incremental && stateDir == null) {
+          throw new ExporterException("Incremental export requires a state directory");
+        }
+        final boolean resume = commandLine.hasOption("resume");
+        if (resume && stateDir == null) {
+          throw new ExporterException("Resuming requires a state directory");
+        }
         final String namePattern = commandLine.getOptionValue('n');
         final String parentSpec = commandLine.getOptionValue('P');
         if (namePattern != null && parentSpec != null) {
           throw new ExporterException("Name filter is not supported with parent is specified");
         }
         boolean quiet = commandLine.hasOption('q');
+        final boolean virtualThreads = commandLine.hasOption("virtual-threads");
+        if (virtualThreads && !VirtualThreads.isAvailable()) {
+          throw new ExporterException("Virtual threads require Java 21 or later");
+        }
+        final int maxThreads = virtualThreads ? MAX_VIRTUAL_THREADS : MAX_THREADS;
         String tmp = commandLine.getOptionValue('t');
         if (tmp != null) {
           try {
             threads = Integer.parseInt(tmp);
-            if (threads < 1 || threads > 20) {
+            if (threads < 1 || threads > maxThreads) {
               throw new ExporterException(
-                  "Number of threads must greater than 0 and smaller than 20");
+                  "Number of threads must be greater than 0 and smaller than " + maxThreads);
             }
           } catch (final NumberFormatException e) {
             throw new ExporterException("Number of threads must be a valid integer");
           }
         }
-        // If maxrows isn't specified, default to threads*1000
+        tmp = commandLine.getOptionValue("max-requests");
+        if (tmp != null) {
+          try {
+            final int maxRequests = Integer.parseInt(tmp);
+            if (maxRequests < 1 || maxRequests > MAX_REQUESTS) {
+              throw new ExporterException(
+                  "Max requests must be greater than 0 and smaller than " + MAX_REQUESTS);
+            }
+            client.setMaxConcurrentRequests(maxRequests);
+          } catch (final NumberFormatException e) {
+            throw new ExporterException("Max requests must be a valid integer");
+          }
+        } else if (virtualThreads) {
+          // Virtual threads outnumber the connections, so they have to queue for them.
+          client.setMaxConcurrentRequests(client.getMaxConcurrentRequests());
+        }
+
+        // If maxrows isn't specified, default to threads*1000. Virtual threads don't make the
+        // pages any bigger, though.
         if (maxRows == 0) {
-          maxRows = threads * DEFAULT_ROWS_PER_THREAD;
+          maxRows = Math.min(threads, MAX_THREADS) * DEFAULT_ROWS_PER_THREAD;
         }
         int maxRes = maxRows; // Always default to maxrows. Going below that wouldn't make sense.
         tmp = commandLine.getOptionValue("resfetch");
@@ -200,13 +252,64 @@ public class Main {
             maxRes = Integer.parseInt(tmp);
             if (maxRes < 1 || maxRes > 50000) {
               throw new ExporterException(
-                  "Resource fetch must greater than 0 and smaller than 50000");
+                  "Resource fetch must be greater than 0 and smaller than 50000");
             }
           } catch (final NumberFormatException e) {
             throw new ExporterException("Resource fetch must be a valid integer");
           }
         }
 
+        // In daemon mode, run each definition on its own schedule until we're stopped.
+        final String daemonSpec = commandLine.getOptionValue("daemon");
+        if (daemonSpec != null) {
+          if (startS != null) {
+            throw new ExporterException("Start and end can't be specified in daemon mode");
+          }
+          if (resume) {
+            throw new ExporterException("Daemon mode can't be resumed");
+          }
+          final long interval = parseLookback(daemonSpec);
+          final Daemon daemon =
+              new Daemon(client, lb != null ? parseLookback(lb) : DEFAULT_LOOKBACK);
+          for (final String def : commandLine.getOptionValues('d')) {
+            final int at = def.lastIndexOf('@');
+            final String file = at != -1 ? def.substring(0, at) : def;
+            final Config conf;
+            try (final Reader fr =
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+              conf = ConfigLoader.parse(fr);
+            }
+            final Exporter exporter =
+                createExporter(client, threads, conf, verbose, useTmpFile, maxRows, maxRes);
+            configureExporter(exporter, commandLine, stateDir, metadataTtls);
+            exporter.setKeepAlive(true);
+            exporter.setIncremental(new File(file).getCanonicalPath());
+            daemon.addJob(
+                new Daemon.Job(
+                    file,
+                    exporter,
+                    conf,
+                    at != -1 ? parseLookback(def.substring(at + 1)) : interval,
+                    output,
+                    namePattern,
+                    parentSpec));
+          }
+          final Thread mainThread = Thread.currentThread();
+          Runtime.getRuntime()
+              .addShutdownHook(
+                  new Thread(
+                      () -> {
+                        daemon.stop();
+                        try {
+                          mainThread.join(DAEMON_STOP_TIMEOUT_MS);
+                        } catch (final InterruptedException e) {
+                          // We're going down anyway
+                        }
+                      }));
+          daemon.run();
+          return;
+        }
+
         // Read definition and run it!
         try (final Reader fr =
             new InputStreamReader(new FileInputStream(defFile), StandardCharsets.UTF_8)) {
@@ -223,7 +326,7 @@ public class Main {
 
           // Deal with start and end dates
           long end = System.currentTimeMillis();
-          final long lbMs = lb != null ? parseLookback(lb) : 1000L * 60L * 60L * 24L;
+          final long lbMs = lb != null ? parseLookback(lb) : DEFAULT_LOOKBACK;
           long begin = end - lbMs;
           if (startS != null) {
             if (conf.getDateFormat() == null) {
@@ -240,10 +343,49 @@ public class Main {
           }
           final Exporter exporter =
               createExporter(client, threads, conf, verbose, useTmpFile, maxRows, maxRes);
+          configureExporter(exporter, commandLine, stateDir, metadataTtls);
+          if (incremental) {
+            exporter.setIncremental(new File(defFile).getCanonicalPath());
+          }
+          Journal journal = null;
+          if (resume) {
+            if (Exporter.isProducingOutput(conf)) {
+              if (output == null) {
+                throw new ExporterException("Resuming requires an output file");
+              }
+              if ("json".equals(conf.getOutputFormat())) {
+                throw new ExporterException("JSON output can't be resumed");
+              }
+            }
+            if ("sql".equals(conf.getOutputFormat())) {
+              // Rows are committed to the database as they are written, so whatever was written
+              // after the last commit point would be inserted a second time.
+              throw new ExporterException("SQL output can't be resumed");
+            }
+            final String key =
+                client.getUrlBase()
+                    + "|"
+                    + new File(defFile).getCanonicalPath()
+                    + "|"
+                    + namePattern
+                    + "|"
+                    + parentSpec;
+            journal = Journal.open(Journal.getFile(stateDir, key), begin, end);
+            if (journal.isResumed()) {
+              // Pick up the time range of the export we're resuming.
+              begin = journal.getBegin();
+              end = journal.getEnd();
+              System.err.println(
+                  "Resuming export. "
+                      + journal.getDoneCount()
+                      + " resources were exported by an earlier attempt");
+            }
+            exporter.setJournal(journal);
+          }
           if (output == null) {
             exporter.exportTo(System.out, begin, end, namePattern, parentSpec, quiet);
           } else {
-            try (final OutputStream out = new FileOutputStream(output)) {
+            try (final OutputStream out = openOutput(output, journal)) {
               exporter.exportTo(out, begin, end, namePattern, parentSpec, quiet);
             }
           }
@@ -260,6 +402,149 @@ public class Main {
     }
   }
 
+  /**
+   * Parses a count option that goes from 1 to 100, or returns 0 if it wasn't given.
+   *
+   * @param what What is being counted, for error messages
+   */
+  private static int parseCount(
+      final CommandLine commandLine, final String option, final String what)
+      throws ExporterException {
+    final String tmp = commandLine.getOptionValue(option);
+    if (tmp == null) {
+      return 0;
+    }
+    try {
+      final int n = Integer.parseInt(tmp);
+      if (n < 1 || n > 100) {
+        throw new ExporterException(
+            "Number of " + what + " must be greater than 0 and smaller than 100");
+      }
+      return n;
+    } catch (final NumberFormatException e) {
+      throw new ExporterException("Number of " + what + " must be a valid integer");
+    }
+  }
+
+  /** Applies the options that tune an exporter rather than decide what it exports. */
+  private static void configureExporter(
+      final Exporter exporter,
+      final CommandLine commandLine,
+      final File stateDir,
+      final Map<MetadataCache.Kind, Long> metadataTtls)
+      throws ExporterException {
+    final int parseThreads = parseCount(commandLine, "parse-threads", "parse threads");
+    if (parseThreads > 0) {
+      exporter.setParseThreads(parseThreads);
+    }
+    final int sinkThreads = parseCount(commandLine, "sink-threads", "sink threads");
+    if (sinkThreads > 0) {
+      exporter.setSinkThreads(sinkThreads);
+    }
+    final int postThreads = parseCount(commandLine, "post-threads", "post threads");
+    if (postThreads > 0) {
+      exporter.setPostThreads(postThreads);
+    }
+    exporter.setVirtualThreads(commandLine.hasOption("virtual-threads"));
+    final int pagePrefetch = parseCount(commandLine, "page-prefetch", "resource pages to prefetch");
+    if (pagePrefetch > 0) {
+      exporter.setPagePrefetch(pagePrefetch);
+    }
+    final String rowBatch = commandLine.getOptionValue("row-batch");
+    if (rowBatch != null) {
+      try {
+        final int n = Integer.parseInt(rowBatch);
+        if (n < 1) {
+          throw new ExporterException("Row batch must be greater than 0");
+        }
+        exporter.setRowBatch(n);
+      } catch (final NumberFormatException e) {
+        throw new ExporterException("Row batch must be a valid integer");
+      }
+    }
+    final String memoryBudget = commandLine.getOptionValue("memory-budget");
+    if (memoryBudget != null) {
+      exporter.setMemoryBudget(parseSize(memoryBudget));
+    }
+    final String window = commandLine.getOptionValue("window");
+    if (window != null) {
+      exporter.setWindow(parseLookback(window));
+    }
+    if (stateDir != null) {
+      exporter.setStateDir(stateDir);
+    }
+    if (metadataTtls != null) {
+      exporter.setMetadataTtls(metadataTtls);
+    }
+  }
+
+  /**
+   * Opens the output file. When resuming, output written after the last commit to the journal is
+   * cut off and the rest is appended to.
+   */
+  private static OutputStream openOutput(final String output, final Journal journal)
+      throws IOException, ExporterException {
+    if (journal == null || !journal.isResumed()) {
+      return new FileOutputStream(output);
+    }
+    final File file = new File(output);
+    final long length = journal.getOutputLength();
+    if (file.length() < length) {
+      throw new ExporterException(
+          "Output file " + output + " is shorter than the journal says. Cannot resume");
+    }
+    try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(length);
+    }
+    return new FileOutputStream(file, true);
+  }
+
+  private static File parseStateDir(final CommandLine commandLine) throws ExporterException {
+    final String tmp = commandLine.getOptionValue("state-dir");
+    if (tmp == null) {
+      return null;
+    }
+    final File dir = new File(tmp);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new ExporterException("Cannot create state directory " + tmp);
+    }
+    return dir;
+  }
+
+  /**
+   * Parses the metadata cache options. The time to live can be given for all kinds of metadata at
+   * once, e.g. "12h", or for each kind, e.g. "names=7d,properties=1h".
+   *
+   * @return Time to live by kind, or null if the cache isn't enabled
+   */
+  private static Map<MetadataCache.Kind, Long> parseMetadataTtls(final CommandLine commandLine)
+      throws ExporterException {
+    final String spec = commandLine.getOptionValue("metadata-ttl");
+    if (spec == null) {
+      return commandLine.hasOption("metadata-cache")
+          ? new EnumMap<>(MetadataCache.Kind.class)
+          : null;
+    }
+    final Map<MetadataCache.Kind, Long> ttls = new EnumMap<>(MetadataCache.Kind.class);
+    for (final String part : spec.split(",")) {
+      final int eq = part.indexOf('=');
+      if (eq == -1) {
+        final long ttl = parseLookback(part.trim());
+        for (final MetadataCache.Kind kind : MetadataCache.Kind.values()) {
+          ttls.put(kind, ttl);
+        }
+        continue;
+      }
+      final String name = part.substring(0, eq).trim().toUpperCase(Locale.ROOT);
+      try {
+        ttls.put(MetadataCache.Kind.valueOf(name), parseLookback(part.substring(eq + 1).trim()));
+      } catch (final IllegalArgumentException e) {
+        throw new ExporterException("Unknown kind of metadata: " + name.toLowerCase(Locale.ROOT));
+      }
+    }
+    return ttls;
+  }
+
   private static Exporter createExporter(
       final Client client,
       final int threads,
@@ -279,7 +564,17 @@ public class Main {
     for (; ; ) {
       final KeyStore ks = CertUtils.loadExtendedTrust(trustStore, trustPass);
       try {
-        return new Client(host, ks, dumpRest);
+        // Several nodes of the same cluster can be given, separated by commas.
+        final List<String> urlBases = new ArrayList<>();
+        for (final String url : host.split(",")) {
+          if (!url.trim().isEmpty()) {
+            urlBases.add(url.trim());
+          }
+        }
+        if (urlBases.isEmpty()) {
+          throw new ExporterException("Host URL must be specified");
+        }
+        return new Client(urlBases, ks, dumpRest);
       } catch (final RecoverableCertificateException e) {
         final boolean retry = promptForTrust(e.getCapturedCerts()[0], trustStore, trustPass);
         if (!retry) {
@@ -321,11 +616,54 @@ public class Main {
     opts.addOption("p", "password", true, "Password");
     opts.addOption("r", "refreshtoken", true, "Refresh token");
     opts.addOption("o", "output", true, "Output file");
-    opts.addOption("H", "host", true, "URL to vRealize Operations Host");
+    opts.addOption(
+        "H",
+        "host",
+        true,
+        "URL to vRealize Operations Host. Separate the URLs of several cluster nodes with commas");
     opts.addOption("q", "quiet", false, "Quiet mode (no progress counter)");
     opts.addOption("i", "ignore-cert", false, "Trust any cert (DEPRECATED!)");
     opts.addOption("F", "list-fields", true, "Print name and keys of all fields to stdout");
     opts.addOption("t", "threads", true, "Number of parallel processing threads (default=10)");
+    opts.addOption(
+        null,
+        "parse-threads",
+        true,
+        "Number of response parsing threads (default=min(threads, CPUs))");
+    opts.addOption(null, "sink-threads", true, "Number of output threads (default=threads)");
+    opts.addOption(
+        null,
+        "post-threads",
+        true,
+        "Number of threads finishing parsed resources while parsing goes on (default=none)");
+    opts.addOption(
+        null,
+        "virtual-threads",
+        false,
+        "Fetch on virtual threads, allowing up to 1000 threads. Requires Java 21 or later");
+    opts.addOption(
+        null,
+        "max-requests",
+        true,
+        "Maximum number of requests in flight against each node (default=20)");
+    opts.addOption(
+        null, "page-prefetch", true, "Number of resource pages to prefetch (default=2)");
+    opts.addOption(
+        null,
+        "memory-budget",
+        true,
+        "Memory for rows waiting to be written, e.g. 512m (default=a quarter of the heap)");
+    opts.addOption(
+        null,
+        "row-batch",
+        true,
+        "Write the rows of a resource in batches of this size as they are parsed (CSV, Wavefront"
+            + " and non-compact JSON)");
+    opts.addOption(
+        null,
+        "window",
+        true,
+        "Split the time range into windows of this length, e.g. 1d, and fetch them in parallel");
     opts.addOption("S", "streaming", false, "True streaming processing. Faster but less reliable");
     opts.addOption("R", "resource-kinds", true, "List resource kinds");
     opts.addOption("A", "adapter-kinds", false, "List adapter kinds");
@@ -336,6 +674,37 @@ public class Main {
     opts.addOption(null, "trustpass", true, "Truststore password (default=changeit)");
     opts.addOption(null, "resfetch", true, "Resource fetch count (default=1000)");
     opts.addOption(null, "dumprest", false, "Dump rest calls to output");
+    opts.addOption(
+        null, "state-dir", true, "Directory for state kept between runs, such as chunk sizes");
+    opts.addOption(
+        null,
+        "daemon",
+        true,
+        "Keep running and export every interval, e.g. 15m. Definitions can have their own interval,"
+            + " e.g. -d vms.yaml@5m");
+    opts.addOption(
+        null,
+        "incremental",
+        false,
+        "Only export samples newer than the ones exported by the previous run. Requires"
+            + " --state-dir");
+    opts.addOption(
+        null,
+        "resume",
+        false,
+        "Journal the export and resume it where it left off if an earlier attempt died. Requires"
+            + " --state-dir");
+    opts.addOption(
+        null,
+        "metadata-cache",
+        false,
+        "Keep resource names, properties, parents and stat keys in the state directory");
+    opts.addOption(
+        null,
+        "metadata-ttl",
+        true,
+        "How long to keep cached metadata, e.g. 12h or names=7d,properties=1h. Implies"
+            + " --metadata-cache");
     opts.addOption(
         null,
         "no-sniextension",
@@ -345,6 +714,34 @@ public class Main {
     return opts;
   }
 
+  /** Parses a size in bytes, optionally with a k, m or g suffix, e.g. 512m. */
+  @SuppressFBWarnings("SF_SWITCH_FALLTHROUGH")
+  private static long parseSize(final String size) throws ExporterException {
+    long scale = 1;
+    String digits = size;
+    switch (Character.toLowerCase(size.charAt(size.length() - 1))) {
+      case 'g':
+        scale *= 1024; // fallthru
+      case 'm':
+        scale *= 1024; // fallthru
+      case 'k':
+        scale *= 1024;
+        digits = size.substring(0, size.length() - 1);
+        break;
+      default:
+        break;
+    }
+    try {
+      final long n = Long.parseLong(digits);
+      if (n < 1) {
+        throw new ExporterException("Size must be greater than 0");
+      }
+      return n * scale;
+    } catch (final NumberFormatException e) {
+      throw new ExporterException("Cannot parse size " + size);
+    }
+  }
+
   @SuppressFBWarnings("SF_SWITCH_FALLTHROUGH")
   private static long parseLookback(final String lb) throws ExporterException {
     long scale = 1;
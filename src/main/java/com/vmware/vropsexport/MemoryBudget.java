@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how much data may be in flight between the parser and the sink. Rowsets take a share of
+ * the budget when they're handed to the sink stage and give it back once the sink is done with
+ * them. When the budget is used up, the parser waits for the sink to catch up, and the fetchers
+ * don't start new requests until there's room again. Heap usage then depends on the budget rather
+ * than on how far the sink has fallen behind.
+ *
+ * <p>A single item bigger than the whole budget is let through when nothing else is in flight, so
+ * the export can't get stuck.
+ */
+public class MemoryBudget {
+  private final long limit;
+
+  private long used;
+
+  private long peak;
+
+  private long waits;
+
+  private long blockedNanos;
+
+  /** @param limit Budget in bytes */
+  public MemoryBudget(final long limit) {
+    this.limit = Math.max(1, limit);
+  }
+
+  /** Takes a share of the budget, waiting until it's available. */
+  public synchronized void acquire(final long bytes) throws InterruptedException {
+    if (used > 0 && used + bytes > limit) {
+      final long start = System.nanoTime();
+      ++waits;
+      while (used > 0 && used + bytes > limit) {
+        wait();
+      }
+      blockedNanos += System.nanoTime() - start;
+    }
+    used += bytes;
+    peak = Math.max(peak, used);
+  }
+
+  /** Gives a share of the budget back. */
+  public synchronized void release(final long bytes) {
+    used -= bytes;
+    notifyAll();
+  }
+
+  /** Waits until some of the budget is free, without taking any of it. */
+  public synchronized void awaitAvailable() throws InterruptedException {
+    if (used >= limit) {
+      final long start = System.nanoTime();
+      ++waits;
+      while (used >= limit) {
+        wait();
+      }
+      blockedNanos += System.nanoTime() - start;
+    }
+  }
+
+  public long getLimit() {
+    return limit;
+  }
+
+  public synchronized long getUsed() {
+    return used;
+  }
+
+  /** The most that has been in use at the same time. */
+  public synchronized long getPeak() {
+    return peak;
+  }
+
+  /** Number of times someone had to wait for the budget. */
+  public synchronized long getWaits() {
+    return waits;
+  }
+
+  /** Total time spent waiting for the budget, in milliseconds. */
+  public synchronized long getBlockedMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(blockedNanos);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(
+        "used=%d peak=%d limit=%d waits=%d blocked=%dms",
+        used, peak, limit, waits, getBlockedMillis());
+  }
+}
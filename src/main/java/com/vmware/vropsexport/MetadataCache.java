@@ -0,0 +1,282 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport;
+
+import com.vmware.vropsexport.json.Json;
+import com.vmware.vropsexport.models.NamedResource;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Resource metadata that is kept on disk between runs, so that repeated exports of the same
+ * resources don't have to look up the same names, properties, parents and stat keys every time.
+ * Each kind of metadata has its own time to live. Expired entries are ignored when looked up and
+ * dropped when the cache is saved.
+ */
+public class MetadataCache {
+  private static final Logger log = LogManager.getLogger(MetadataCache.class);
+
+  public enum Kind {
+    NAMES(24L * 60 * 60 * 1000),
+    PROPERTIES(60L * 60 * 1000),
+    PARENTS(24L * 60 * 60 * 1000),
+    STATKEYS(7L * 24 * 60 * 60 * 1000);
+
+    private final long defaultTtl;
+
+    Kind(final long defaultTtl) {
+      this.defaultTtl = defaultTtl;
+    }
+
+    public long getDefaultTtl() {
+      return defaultTtl;
+    }
+  }
+
+  /** A cached value and the time it was fetched. A null value means the server had nothing. */
+  public static class Entry<T> {
+    private long time;
+
+    private T value;
+
+    public Entry() {
+      // Nothing to do
+    }
+
+    public Entry(final long time, final T value) {
+      this.time = time;
+      this.value = value;
+    }
+
+    public long getTime() {
+      return time;
+    }
+
+    public void setTime(final long time) {
+      this.time = time;
+    }
+
+    public T getValue() {
+      return value;
+    }
+
+    public void setValue(final T value) {
+      this.value = value;
+    }
+  }
+
+  /** One kind of metadata. */
+  public static class Section<T> {
+    private final Map<String, Entry<T>> entries;
+
+    private long ttl;
+
+    private Section(final Map<String, Entry<T>> entries, final long ttl) {
+      this.entries = entries;
+      this.ttl = ttl;
+    }
+
+    /** Returns the entry for a key, or null if there isn't one or it has expired. */
+    public Entry<T> get(final String key) {
+      final Entry<T> e = entries.get(key);
+      return e != null && !isExpired(e, System.currentTimeMillis()) ? e : null;
+    }
+
+    public void put(final String key, final T value) {
+      entries.put(key, new Entry<>(System.currentTimeMillis(), value));
+    }
+
+    /** Calls the consumer for every entry that hasn't expired. */
+    public void forEach(final BiConsumer<String, T> consumer) {
+      final long now = System.currentTimeMillis();
+      entries.forEach(
+          (k, e) -> {
+            if (!isExpired(e, now)) {
+              consumer.accept(k, e.getValue());
+            }
+          });
+    }
+
+    public int size() {
+      return entries.size();
+    }
+
+    private boolean isExpired(final Entry<T> e, final long now) {
+      return now - e.getTime() > ttl;
+    }
+
+    private void prune() {
+      final long now = System.currentTimeMillis();
+      entries.values().removeIf(e -> isExpired(e, now));
+    }
+  }
+
+  /** The file format. */
+  public static class Contents {
+    private Map<String, Entry<String>> names = new ConcurrentHashMap<>();
+
+    private Map<String, Entry<Map<String, String>>> properties = new ConcurrentHashMap<>();
+
+    private Map<String, Entry<NamedResource>> parents = new ConcurrentHashMap<>();
+
+    private Map<String, Entry<List<String>>> statKeys = new ConcurrentHashMap<>();
+
+    public Map<String, Entry<String>> getNames() {
+      return names;
+    }
+
+    public void setNames(final Map<String, Entry<String>> names) {
+      this.names = new ConcurrentHashMap<>(names);
+    }
+
+    public Map<String, Entry<Map<String, String>>> getProperties() {
+      return properties;
+    }
+
+    public void setProperties(final Map<String, Entry<Map<String, String>>> properties) {
+      this.properties = new ConcurrentHashMap<>(properties);
+    }
+
+    public Map<String, Entry<NamedResource>> getParents() {
+      return parents;
+    }
+
+    public void setParents(final Map<String, Entry<NamedResource>> parents) {
+      this.parents = new ConcurrentHashMap<>(parents);
+    }
+
+    public Map<String, Entry<List<String>>> getStatKeys() {
+      return statKeys;
+    }
+
+    public void setStatKeys(final Map<String, Entry<List<String>>> statKeys) {
+      this.statKeys = new ConcurrentHashMap<>(statKeys);
+    }
+  }
+
+  private final File file;
+
+  private final Section<String> names;
+
+  private final Section<Map<String, String>> properties;
+
+  private final Section<NamedResource> parents;
+
+  private final Section<List<String>> statKeys;
+
+  private MetadataCache(final File file, final Contents contents) {
+    this.file = file;
+    names = new Section<>(contents.getNames(), Kind.NAMES.getDefaultTtl());
+    properties = new Section<>(contents.getProperties(), Kind.PROPERTIES.getDefaultTtl());
+    parents = new Section<>(contents.getParents(), Kind.PARENTS.getDefaultTtl());
+    statKeys = new Section<>(contents.getStatKeys(), Kind.STATKEYS.getDefaultTtl());
+  }
+
+  /**
+   * Loads the cache for a host from a directory. A missing or unreadable file gives an empty cache.
+   *
+   * @param dir The directory holding the cache files
+   * @param urlBase The host the metadata belongs to
+   */
+  public static MetadataCache load(final File dir, final String urlBase) {
+    final File file =
+        new File(dir, "metadata-" + urlBase.replaceAll("[^A-Za-z0-9.-]", "_") + ".json");
+    Contents contents = new Contents();
+    if (file.exists()) {
+      try {
+        contents = Json.getMapper().readValue(file, Contents.class);
+      } catch (final IOException e) {
+        log.warn("Could not load metadata cache. Starting from scratch", e);
+      }
+    }
+    return new MetadataCache(file, contents);
+  }
+
+  /** Writes the cache back to disk, leaving out expired entries. */
+  public void save() throws IOException {
+    for (final Section<?> s : new Section<?>[] {names, properties, parents, statKeys}) {
+      s.prune();
+    }
+    final Contents contents = new Contents();
+    contents.names = names.entries;
+    contents.properties = properties.entries;
+    contents.parents = parents.entries;
+    contents.statKeys = statKeys.entries;
+
+    // Write to a temporary file first, so that a crash never leaves a half written cache behind.
+    final File tmp = new File(file.getPath() + ".tmp");
+    Json.getMapper().writeValue(tmp, contents);
+    Files.move(
+        tmp.toPath(),
+        file.toPath(),
+        StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  public void setTtl(final Kind kind, final long ttl) {
+    switch (kind) {
+      case NAMES:
+        names.ttl = ttl;
+        break;
+      case PROPERTIES:
+        properties.ttl = ttl;
+        break;
+      case PARENTS:
+        parents.ttl = ttl;
+        break;
+      case STATKEYS:
+        statKeys.ttl = ttl;
+        break;
+    }
+  }
+
+  /** Resource names by resource id. */
+  public Section<String> getNames() {
+    return names;
+  }
+
+  /** Properties by resource id and the set of keys that were asked for. */
+  public Section<Map<String, String>> getProperties() {
+    return properties;
+  }
+
+  /** Parents by resource id and parent resource kind. */
+  public Section<NamedResource> getParents() {
+    return parents;
+  }
+
+  /** Stat keys by resource kind or resource id. */
+  public Section<List<String>> getStatKeys() {
+    return statKeys;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "names=%d properties=%d parents=%d statKeys=%d",
+        names.size(), properties.size(), parents.size(), statKeys.size());
+  }
+}
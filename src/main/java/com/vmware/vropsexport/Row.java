@@ -17,46 +17,59 @@
  */
 package com.vmware.vropsexport;
 
-import java.util.BitSet;
 import java.util.NoSuchElementException;
 
+/** A view of a single row in a {@link Rowset}. */
 @SuppressWarnings("WeakerAccess")
 public class Row {
-  private final long timestamp;
+  private final Rowset rowset;
 
-  private final BitSet definedMetrics;
-
-  private final double[] metrics;
-
-  private final String[] props;
+  private final int index;
 
   public Row(final long timestamp, final int nMetrics, final int nProps) {
-    super();
-    this.timestamp = timestamp;
-    metrics = new double[nMetrics];
-    props = new String[nProps];
-    definedMetrics = new BitSet(nMetrics);
+    this(new Rowset(null, new long[] {timestamp}, nMetrics, nProps), 0);
+  }
+
+  Row(final Rowset rowset, final int index) {
+    this.rowset = rowset;
+    this.index = index;
   }
 
   public long getTimestamp() {
-    return timestamp;
+    return rowset.getTimestamp(index);
   }
 
   public Double getMetric(final int i) {
-    return definedMetrics.get(i) ? metrics[i] : null;
+    return rowset.getMetric(index, i);
+  }
+
+  public boolean hasMetric(final int i) {
+    return rowset.hasMetric(index, i);
+  }
+
+  /**
+   * Returns a metric value without boxing it. The result is only meaningful if {@link
+   * #hasMetric(int)} returns true.
+   */
+  public double getMetricValue(final int i) {
+    return rowset.getMetricValue(index, i);
+  }
+
+  /** Copies every defined metric in this row to the target row, leaving the others untouched. */
+  public void copyDefinedMetricsTo(final Row target) {
+    rowset.copyDefinedMetrics(index, target.rowset, target.index);
   }
 
   public String getProp(final int i) {
-    return props[i];
+    return rowset.getProp(index, i);
   }
 
   public void setMetric(final int i, final double m) {
-    metrics[i] = m;
-    definedMetrics.set(i);
+    rowset.setMetric(index, i, m);
   }
 
   public void setProp(final int i, final String prop) {
-    props[i] = prop;
+    rowset.setProp(index, i, prop);
   }
 
   public java.util.Iterator<Object> iterator(final RowMetadata meta) {
@@ -64,11 +77,11 @@ public class Row {
   }
 
   public int getNumProps() {
-    return props.length;
+    return rowset.getNumProps();
   }
 
   public int getNumMetrics() {
-    return metrics.length;
+    return rowset.getNumMetrics();
   }
 
   private class Iterator implements java.util.Iterator<Object> {
@@ -78,13 +91,17 @@ public class Row {
 
     private final RowMetadata meta;
 
+    private final int nProps = getNumProps();
+
+    private final int nMetrics = getNumMetrics();
+
     public Iterator(final RowMetadata meta) {
       this.meta = meta;
     }
 
     @Override
     public boolean hasNext() {
-      return pc < props.length || mc < metrics.length;
+      return pc < nProps || mc < nMetrics;
     }
 
     @Override
@@ -92,7 +109,7 @@ public class Row {
       if (!hasNext()) {
         throw new NoSuchElementException();
       }
-      if (pc < props.length && meta.getPropInsertionPoints()[pc] == mc) {
+      if (pc < nProps && meta.getPropInsertionPoints()[pc] == mc) {
         return getProp(pc++);
       }
       return getMetric(mc++);
@@ -102,19 +119,14 @@ public class Row {
   public void merge(final Row r) {
     // Merge metrics
     //
-    for (int i = 0; i < r.getNumMetrics(); ++i) {
-      final Double d = r.getMetric(i);
-      if (d != null) {
-        setMetric(i, d); // Don't be tempted to just set metrics[i]! Won't update the bitmap.
-      }
-    }
+    r.copyDefinedMetricsTo(this);
 
     // Merge properties
     //
     for (int i = 0; i < r.getNumProps(); ++i) {
       final String p = r.getProp(i);
       if (p != null) {
-        props[i] = p;
+        setProp(i, p);
       }
     }
   }
@@ -25,6 +25,12 @@ import java.util.Map;
 import java.util.regex.Matcher;
 
 public class RowMetadata {
+  /** The property holding all tags as a JSON array. */
+  public static final String TAG_PROPERTY = "summary|tagJson";
+
+  // Marks child fields that don't come from the parent in parent metadata.
+  private static final String PLACEHOLDER_PREFIX = "_placeholder_";
+
   private final String resourceKind;
 
   private final String adapterKind;
@@ -43,6 +49,9 @@ public class RowMetadata {
 
   private final int[] propInsertionPoints;
 
+  // Built on first use, once the metrics are known
+  private volatile StatKeyIndex statKeyIndex;
+
   public RowMetadata(final Config conf, final List<String> metricNames) throws ExporterException {
     resourceKind = conf.getResourceKind();
     adapterKind = conf.getAdapterKind();
@@ -106,7 +115,7 @@ public class RowMetadata {
         }
         propMap.put(m.group(2), e.getValue());
       } else {
-        propMap.put("_placeholder_" + p, e.getValue());
+        propMap.put(PLACEHOLDER_PREFIX + p, e.getValue());
       }
     }
     for (final Map.Entry<String, Integer> e : child.metricMap.entrySet()) {
@@ -147,6 +156,16 @@ public class RowMetadata {
     return metricMap.getOrDefault(metric, -1);
   }
 
+  /** Returns an index for looking up metrics while parsing. */
+  public StatKeyIndex getStatKeyIndex() {
+    StatKeyIndex index = statKeyIndex;
+    if (index == null) {
+      index = new StatKeyIndex(metricMap);
+      statKeyIndex = index;
+    }
+    return index;
+  }
+
   public int getPropertyIndex(final String property) {
     return propMap.getOrDefault(property, -1);
   }
@@ -188,15 +207,30 @@ public class RowMetadata {
   }
 
   public boolean needsPropertyLoad() {
-    if (!hasProperties()) {
-      return false;
-    }
+    return hasProperties() && !getPropertyKeysToLoad().isEmpty();
+  }
+
+  /**
+   * Returns the keys of the properties that have to be loaded from the resource itself. Tags are
+   * all found in the same property, and parent properties are loaded from the parent.
+   */
+  public List<String> getPropertyKeysToLoad() {
+    final List<String> keys = new ArrayList<>();
+    boolean tags = false;
     for (final String key : propMap.keySet()) {
-      if (!(key.equals("$resId") || key.equals("$resName"))) {
-        return true;
+      if (key.startsWith(Config.Field.TAG_PROP_PREFIX)) {
+        tags = true;
+      } else if (!(key.equals("$resId")
+          || key.equals("$resName")
+          || key.startsWith(PLACEHOLDER_PREFIX)
+          || Patterns.parentPattern.matcher(key).matches())) {
+        keys.add(key);
       }
     }
-    return false;
+    if (tags) {
+      keys.add(TAG_PROPERTY);
+    }
+    return keys;
   }
 
   public boolean isValid() {
@@ -17,24 +17,231 @@
  */
 package com.vmware.vropsexport;
 
-import java.util.TreeMap;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.RandomAccess;
 
+/**
+ * All the samples for a single resource, stored column by column. Timestamps are kept in a sorted
+ * array, each metric gets its own array of doubles with a bitmap telling which slots are defined,
+ * and properties are dictionary encoded, since they are almost always the same for every row.
+ * {@link Row} objects are just lightweight views into this structure.
+ */
 public class Rowset {
+  private static class PropertyColumn {
+    private final List<String> dictionary = new ArrayList<>(1);
+
+    // Codes are 1-based indexes into the dictionary. Zero means null. As long as every row holds
+    // the same value, we don't need the per-row codes at all.
+    private int[] codes;
+
+    private int fill;
+
+    private int encode(final String value) {
+      if (value == null) {
+        return 0;
+      }
+      final int p = dictionary.indexOf(value);
+      if (p != -1) {
+        return p + 1;
+      }
+      dictionary.add(value);
+      return dictionary.size();
+    }
+
+    private String get(final int row) {
+      final int code = codes != null ? codes[row] : fill;
+      return code != 0 ? dictionary.get(code - 1) : null;
+    }
+
+    private void set(final int row, final String value, final int size) {
+      final int code = encode(value);
+      if (codes == null) {
+        if (code == fill) {
+          return;
+        }
+        codes = new int[size];
+        Arrays.fill(codes, fill);
+      }
+      codes[row] = code;
+    }
+
+    private void setAll(final String value) {
+      codes = null;
+      fill = encode(value);
+    }
+  }
+
+  private class RowList extends AbstractList<Row> implements RandomAccess {
+    @Override
+    public Row get(final int index) {
+      if (index < 0 || index >= timestamps.length) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + timestamps.length);
+      }
+      return new Row(Rowset.this, index);
+    }
+
+    @Override
+    public int size() {
+      return timestamps.length;
+    }
+  }
+
+  // Rough size of an object header and the reference pointing to it
+  private static final int OBJECT_OVERHEAD = 24;
+
   private final String resourceId;
 
-  private final TreeMap<Long, Row> rows;
+  private final long[] timestamps;
+
+  private final double[][] metrics;
 
-  public Rowset(final String resourceId, final TreeMap<Long, Row> rows) {
-    super();
+  private final BitSet[] definedMetrics;
+
+  private final PropertyColumn[] props;
+
+  /**
+   * Creates an empty rowset with one row per timestamp.
+   *
+   * @param resourceId The resource the data belongs to
+   * @param timestamps Row timestamps. Must be sorted in ascending order.
+   * @param nMetrics Number of metric columns
+   * @param nProps Number of property columns
+   */
+  public Rowset(
+      final String resourceId, final long[] timestamps, final int nMetrics, final int nProps) {
     this.resourceId = resourceId;
-    this.rows = rows;
+    this.timestamps = timestamps;
+    metrics = new double[nMetrics][];
+    definedMetrics = new BitSet[nMetrics];
+    props = new PropertyColumn[nProps];
+  }
+
+  /** Roughly how many bytes of heap the rowset takes up. */
+  public long estimateSize() {
+    long size = OBJECT_OVERHEAD + 8L * timestamps.length;
+    for (final double[] m : metrics) {
+      if (m != null) {
+        size += 2 * OBJECT_OVERHEAD + 8L * m.length + m.length / 8;
+      }
+    }
+    for (final PropertyColumn p : props) {
+      if (p != null) {
+        size += 2 * OBJECT_OVERHEAD + (p.codes != null ? 4L * p.codes.length : 0);
+      }
+    }
+    return size;
   }
 
   public String getResourceId() {
     return resourceId;
   }
 
-  public TreeMap<Long, Row> getRows() {
-    return rows;
+  public int size() {
+    return timestamps.length;
+  }
+
+  public boolean isEmpty() {
+    return timestamps.length == 0;
+  }
+
+  public List<Row> getRows() {
+    return new RowList();
+  }
+
+  public Row getRow(final int row) {
+    return new Row(this, row);
+  }
+
+  /**
+   * Finds the row for a timestamp.
+   *
+   * @param timestamp The timestamp to look for
+   * @return The row index or -1 if there's no row for the timestamp
+   */
+  public int indexOf(final long timestamp) {
+    final int p = Arrays.binarySearch(timestamps, timestamp);
+    return p >= 0 ? p : -1;
+  }
+
+  public long getTimestamp(final int row) {
+    return timestamps[row];
+  }
+
+  public long getFirstTimestamp() {
+    return timestamps[0];
+  }
+
+  public long getLastTimestamp() {
+    return timestamps[timestamps.length - 1];
+  }
+
+  public int getNumMetrics() {
+    return metrics.length;
+  }
+
+  public int getNumProps() {
+    return props.length;
+  }
+
+  public Double getMetric(final int row, final int metric) {
+    return hasMetric(row, metric) ? metrics[metric][row] : null;
+  }
+
+  public boolean hasMetric(final int row, final int metric) {
+    return definedMetrics[metric] != null && definedMetrics[metric].get(row);
+  }
+
+  /**
+   * Returns a metric value without boxing it. The result is only meaningful if {@link
+   * #hasMetric(int, int)} returns true for the same slot.
+   */
+  public double getMetricValue(final int row, final int metric) {
+    return metrics[metric] != null ? metrics[metric][row] : Double.NaN;
+  }
+
+  /**
+   * Copies every defined metric in a row to a row in another rowset with the same metric layout.
+   * Undefined metrics are left untouched in the target.
+   */
+  public void copyDefinedMetrics(final int row, final Rowset target, final int targetRow) {
+    for (int i = 0; i < metrics.length; ++i) {
+      if (hasMetric(row, i)) {
+        target.setMetric(targetRow, i, metrics[i][row]);
+      }
+    }
+  }
+
+  public void setMetric(final int row, final int metric, final double value) {
+    if (metrics[metric] == null) {
+      // Columns are allocated on first use, so metrics without data cost (almost) nothing.
+      metrics[metric] = new double[timestamps.length];
+      definedMetrics[metric] = new BitSet(timestamps.length);
+    }
+    metrics[metric][row] = value;
+    definedMetrics[metric].set(row);
+  }
+
+  public String getProp(final int row, final int prop) {
+    return props[prop] != null ? props[prop].get(row) : null;
+  }
+
+  public void setProp(final int row, final int prop, final String value) {
+    getPropertyColumn(prop).set(row, value, timestamps.length);
+  }
+
+  /** Sets a property to the same value on every row. */
+  public void setPropForAllRows(final int prop, final String value) {
+    getPropertyColumn(prop).setAll(value);
+  }
+
+  private PropertyColumn getPropertyColumn(final int prop) {
+    if (props[prop] == null) {
+      props[prop] = new PropertyColumn();
+    }
+    return props[prop];
   }
 }
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects metric series for a resource and turns them into a {@link Rowset}. Since every series
+ * carries its own timestamps, we can't lay out the columns until we've seen all of them.
+ */
+public class RowsetBuilder {
+  private static class Series {
+    private final int metricIdx;
+
+    private final long[] timestamps;
+
+    private final double[] values;
+
+    private final int n;
+
+    private Series(
+        final int metricIdx, final long[] timestamps, final double[] values, final int n) {
+      this.metricIdx = metricIdx;
+      this.timestamps = timestamps;
+      this.values = values;
+      this.n = n;
+    }
+  }
+
+  private final String resourceId;
+
+  private final RowMetadata meta;
+
+  private final int nMetrics;
+
+  private final int nProps;
+
+  private final List<Series> series = new ArrayList<>();
+
+  private int totalSamples;
+
+  private long minTimestamp = Long.MIN_VALUE;
+
+  // Set as long as every series has its timestamps in ascending order
+  private boolean sorted = true;
+
+  // State of nextBatch(). Row timestamps, the next row to hand out and how far into each series
+  // we've got.
+  private long[] rowTimestamps;
+
+  private int nextRow;
+
+  private int[] cursors;
+
+  // Row of each timestamp of the last timestamp array we looked up, or -1 if it's too old. Series
+  // usually share their timestamps with the one before them, and then their samples go straight
+  // into the rows without searching for them.
+  private long[] slotTimestamps;
+
+  private int[] slots;
+
+  private int slotCount;
+
+  public RowsetBuilder(final String resourceId, final RowMetadata meta) {
+    this.resourceId = resourceId;
+    this.meta = meta;
+    nMetrics = meta.getMetricMap().size();
+    nProps = meta.getPropMap().size();
+  }
+
+  public String getResourceId() {
+    return resourceId;
+  }
+
+  public RowMetadata getMetadata() {
+    return meta;
+  }
+
+  /** Drops samples older than the given timestamp. */
+  public void setMinTimestamp(final long minTimestamp) {
+    this.minTimestamp = minTimestamp;
+  }
+
+  /**
+   * Adds a series of samples. The arrays are kept by reference until {@link #build()} is called.
+   *
+   * @param metricIdx Index of the metric column
+   * @param timestamps Sample timestamps
+   * @param values Sample values
+   * @param n Number of valid entries in the arrays
+   */
+  public void addSeries(
+      final int metricIdx, final long[] timestamps, final double[] values, final int n) {
+    // No need to check the order of timestamps we've already seen.
+    final Series prev = series.isEmpty() ? null : series.get(series.size() - 1);
+    final int from = prev != null && prev.timestamps == timestamps ? Math.min(prev.n, n) : 1;
+    series.add(new Series(metricIdx, timestamps, values, n));
+    totalSamples += n;
+    for (int i = Math.max(1, from); i < n && sorted; ++i) {
+      sorted = timestamps[i] >= timestamps[i - 1];
+    }
+  }
+
+  public Rowset build() {
+    final long[] rowTimestamps = mergeTimestamps();
+    final Rowset rs = new Rowset(resourceId, rowTimestamps, nMetrics, nProps);
+
+    // Fill in the metric columns. Later samples for the same slot overwrite earlier ones.
+    slotTimestamps = null;
+    for (final Series s : series) {
+      final int[] rows = slotsOf(s, rowTimestamps);
+      for (int i = 0; i < s.n; ++i) {
+        if (rows[i] >= 0) {
+          rs.setMetric(rows[i], s.metricIdx, s.values[i]);
+        }
+      }
+    }
+    return rs;
+  }
+
+  /**
+   * Builds the next batch of rows, in timestamp order. Only the timestamps of all rows are held at
+   * once, so the caller can hand a long series over a piece at a time without building one big
+   * rowset. If the samples of some series aren't in timestamp order, everything comes in one
+   * batch.
+   *
+   * @param maxRows Maximum number of rows in the batch
+   * @return The batch, or null if all rows have been handed out
+   */
+  public Rowset nextBatch(final int maxRows) {
+    if (rowTimestamps == null) {
+      rowTimestamps = mergeTimestamps();
+      cursors = new int[series.size()];
+      slotTimestamps = null;
+    }
+    if (nextRow >= rowTimestamps.length) {
+      return null;
+    }
+    final int to =
+        sorted ? Math.min(rowTimestamps.length, nextRow + maxRows) : rowTimestamps.length;
+    final Rowset rs =
+        new Rowset(resourceId, Arrays.copyOfRange(rowTimestamps, nextRow, to), nMetrics, nProps);
+    final long last = rowTimestamps[to - 1];
+    for (int k = 0; k < series.size(); ++k) {
+      final Series s = series.get(k);
+      if (cursors[k] >= s.n) {
+        continue;
+      }
+      final int[] rows = slotsOf(s, rowTimestamps);
+      int i = cursors[k];
+      for (; i < s.n && (s.timestamps[i] <= last || !sorted); ++i) {
+        if (rows[i] >= 0) {
+          rs.setMetric(rows[i] - nextRow, s.metricIdx, s.values[i]);
+        }
+      }
+      cursors[k] = i;
+    }
+    nextRow = to;
+    return rs;
+  }
+
+  /**
+   * Returns the row of each timestamp of a series, or -1 for timestamps before the minimum. The
+   * rows are only looked up again when the series doesn't share its timestamps with the last one.
+   */
+  private int[] slotsOf(final Series s, final long[] rowTimestamps) {
+    if (s.timestamps != slotTimestamps || s.n > slotCount) {
+      if (slots == null || slots.length < s.n) {
+        slots = new int[s.n];
+      }
+      for (int i = 0; i < s.n; ++i) {
+        final long ts = s.timestamps[i];
+        slots[i] = ts >= minTimestamp ? Arrays.binarySearch(rowTimestamps, ts) : -1;
+      }
+      slotTimestamps = s.timestamps;
+      slotCount = s.n;
+    }
+    return slots;
+  }
+
+  /** Returns the sorted union of all series timestamps from the minimum timestamp onwards. */
+  private long[] mergeTimestamps() {
+    // Build the timestamp column from the union of all series timestamps. Series usually share
+    // their timestamp array with the one before them, and then there's no need to copy it again.
+    int size = 0;
+    for (int k = 0; k < series.size(); ++k) {
+      if (isNewTimestamps(k)) {
+        size += series.get(k).n;
+      }
+    }
+    final long[] all = new long[size];
+    int p = 0;
+    for (int k = 0; k < series.size(); ++k) {
+      if (isNewTimestamps(k)) {
+        final Series s = series.get(k);
+        System.arraycopy(s.timestamps, 0, all, p, s.n);
+        p += s.n;
+      }
+    }
+    Arrays.sort(all);
+    int nRows = 0;
+    for (int i = 0; i < all.length; ++i) {
+      if ((i == 0 || all[i] != all[i - 1]) && all[i] >= minTimestamp) {
+        all[nRows++] = all[i];
+      }
+    }
+    return nRows == all.length ? all : Arrays.copyOf(all, nRows);
+  }
+
+  private boolean isNewTimestamps(final int k) {
+    final Series s = series.get(k);
+    return k == 0 || s.timestamps != series.get(k - 1).timestamps || s.n > series.get(k - 1).n;
+  }
+}
@@ -24,5 +24,42 @@ public interface RowsetProcessor {
 
   void process(Rowset rowset, RowMetadata meta) throws ExporterException;
 
+  /**
+   * Makes sure everything processed so far has been delivered, e.g. written out or sent. Called at
+   * commit points of a resumable export.
+   */
+  default void flush() throws ExporterException {
+    // Nothing to do
+  }
+
   void close() throws ExporterException;
+
+  /**
+   * Returns true if the processor can take the rows of a resource in several batches instead of a
+   * single rowset. Batches come in timestamp order between {@link #beginResource} and {@link
+   * #endResource}, but batches of different resources may be interleaved.
+   */
+  default boolean isStreaming() {
+    return false;
+  }
+
+  /** Called before the first batch of a resource, if rows are handed over in batches. */
+  default void beginResource(final String resourceId, final RowMetadata meta)
+      throws ExporterException {
+    // Nothing to do
+  }
+
+  /** Called after the last batch of a resource, if rows are handed over in batches. */
+  default void endResource(final String resourceId, final RowMetadata meta)
+      throws ExporterException {
+    // Nothing to do
+  }
+
+  /**
+   * Called instead of {@link #endResource} if handing over the batches of a resource failed after
+   * {@link #beginResource} was called.
+   */
+  default void abortResource(final String resourceId, final RowMetadata meta) {
+    // Nothing to do
+  }
 }
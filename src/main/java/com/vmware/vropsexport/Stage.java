@@ -0,0 +1,203 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * One stage of the export pipeline: a fixed set of worker threads fed by a bounded queue. When the
+ * queue is full, {@link #submit(Task)} blocks the caller until there's room, which is what keeps a
+ * fast upstream stage from running away from a slow downstream one.
+ */
+public class Stage {
+  public interface Task {
+    void run() throws Exception;
+  }
+
+  private static final Logger log = LogManager.getLogger(Stage.class);
+
+  private final String name;
+
+  private final ThreadPoolExecutor executor;
+
+  private final AtomicLong completed = new AtomicLong();
+
+  private final AtomicLong failed = new AtomicLong();
+
+  private final AtomicLong busyNanos = new AtomicLong();
+
+  private final AtomicLong started = new AtomicLong();
+
+  private int inFlight = 0;
+
+  public Stage(final String name, final int threads, final int queueSize) {
+    this(name, threads, queueSize, daemonThreads(name));
+  }
+
+  /**
+   * Creates a stage running on threads from the given factory, e.g. virtual threads.
+   *
+   * @param name Name of the stage
+   * @param threads Number of worker threads
+   * @param queueSize Number of tasks that can wait for a worker
+   * @param tf Creates the worker threads
+   */
+  public Stage(final String name, final int threads, final int queueSize, final ThreadFactory tf) {
+    this.name = name;
+    executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            5,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueSize),
+            tf,
+            (r, e) -> {
+              // Block until there's room in the queue rather than running the task on the
+              // submitting thread.
+              if (e.isShutdown()) {
+                throw new RejectedExecutionException("Stage " + name + " is shut down");
+              }
+              try {
+                e.getQueue().put(r);
+              } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(ex);
+              }
+            });
+  }
+
+  private static ThreadFactory daemonThreads(final String name) {
+    final AtomicInteger threadNo = new AtomicInteger();
+    return r -> {
+      final Thread t = new Thread(r, name + "-" + threadNo.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+  }
+
+  public void submit(final Task task) {
+    synchronized (this) {
+      ++inFlight;
+    }
+    started.compareAndSet(0, System.nanoTime());
+    try {
+      executor.execute(
+          () -> {
+            final long start = System.nanoTime();
+            try {
+              task.run();
+            } catch (final Exception e) {
+              failed.incrementAndGet();
+              log.error("Error in " + name + " stage", e);
+            } finally {
+              busyNanos.addAndGet(System.nanoTime() - start);
+              completed.incrementAndGet();
+              taskDone();
+            }
+          });
+    } catch (final RejectedExecutionException e) {
+      taskDone();
+      throw e;
+    }
+  }
+
+  private synchronized void taskDone() {
+    if (--inFlight == 0) {
+      notifyAll();
+    }
+  }
+
+  /** Waits until every task submitted so far, and every task they submitted, has finished. */
+  public synchronized void drain() throws InterruptedException {
+    while (inFlight > 0) {
+      wait();
+    }
+  }
+
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getThreads() {
+    return executor.getMaximumPoolSize();
+  }
+
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  public int getActive() {
+    return executor.getActiveCount();
+  }
+
+  public long getCompleted() {
+    return completed.get();
+  }
+
+  /** Number of tasks that ended with an exception. */
+  public long getFailed() {
+    return failed.get();
+  }
+
+  /** Tasks completed per second since the first task was submitted. */
+  public double getThroughput() {
+    final long t0 = started.get();
+    if (t0 == 0) {
+      return 0;
+    }
+    final double secs = (System.nanoTime() - t0) / 1e9;
+    return secs > 0 ? completed.get() / secs : 0;
+  }
+
+  /** Fraction of the available worker time spent running tasks. */
+  public double getUtilization() {
+    final long t0 = started.get();
+    if (t0 == 0) {
+      return 0;
+    }
+    final long elapsed = (System.nanoTime() - t0) * getThreads();
+    return elapsed > 0 ? Math.min(1.0, (double) busyNanos.get() / elapsed) : 0;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%s: threads=%d active=%d queued=%d completed=%d failed=%d (%.1f/s, %.0f%% busy)",
+        name,
+        getThreads(),
+        getActive(),
+        getQueueDepth(),
+        getCompleted(),
+        getFailed(),
+        getThroughput(),
+        getUtilization() * 100);
+  }
+}
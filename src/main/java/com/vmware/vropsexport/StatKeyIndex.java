@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport;
+
+import java.util.Map;
+
+/**
+ * Maps stat keys to metric indexes. Keys can be looked up straight from the parser's character
+ * buffer, so that no String has to be created for every series in a response.
+ */
+public class StatKeyIndex {
+  private final char[][] keys;
+
+  private final int[] indexes;
+
+  private final int mask;
+
+  // Stat key by metric index
+  private final String[] names;
+
+  public StatKeyIndex(final Map<String, Integer> metricMap) {
+    int size = 2;
+    while (size < metricMap.size() * 2) {
+      size <<= 1;
+    }
+    keys = new char[size][];
+    indexes = new int[size];
+    mask = size - 1;
+    int maxIndex = -1;
+    for (final Map.Entry<String, Integer> e : metricMap.entrySet()) {
+      final char[] key = e.getKey().toCharArray();
+      int slot = hash(key, 0, key.length) & mask;
+      while (keys[slot] != null) {
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = key;
+      indexes[slot] = e.getValue();
+      maxIndex = Math.max(maxIndex, e.getValue());
+    }
+    names = new String[maxIndex + 1];
+    for (final Map.Entry<String, Integer> e : metricMap.entrySet()) {
+      names[e.getValue()] = e.getKey();
+    }
+  }
+
+  /**
+   * Looks up a stat key held in a character buffer.
+   *
+   * @return The metric index, or -1 if the key isn't wanted
+   */
+  public int lookup(final char[] buf, final int offset, final int length) {
+    int slot = hash(buf, offset, length) & mask;
+    for (char[] key; (key = keys[slot]) != null; slot = (slot + 1) & mask) {
+      if (matches(key, buf, offset, length)) {
+        return indexes[slot];
+      }
+    }
+    return -1;
+  }
+
+  public int lookup(final String statKey) {
+    return lookup(statKey.toCharArray(), 0, statKey.length());
+  }
+
+  /** Returns the stat key of a metric index. */
+  public String getKey(final int metricIndex) {
+    return names[metricIndex];
+  }
+
+  private static boolean matches(
+      final char[] key, final char[] buf, final int offset, final int length) {
+    if (key.length != length) {
+      return false;
+    }
+    for (int i = 0; i < length; ++i) {
+      if (key[i] != buf[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int hash(final char[] buf, final int offset, final int length) {
+    int h = 0;
+    for (int i = offset; i < offset + length; ++i) {
+      h = 31 * h + buf[i];
+    }
+    return h ^ (h >>> 16);
+  }
+}
@@ -17,19 +17,20 @@
  */
 package com.vmware.vropsexport;
 
-import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.vmware.vropsexport.exceptions.ExporterException;
+import com.vmware.vropsexport.json.Json;
 import com.vmware.vropsexport.models.NamedResource;
 import com.vmware.vropsexport.processors.ParentSplicer;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
 import org.apache.http.HttpException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -41,8 +42,32 @@ public class StatsProcessor {
     public void reportProgress(final int n) {}
   }
 
+  private static class ParentCapture implements RowsetProcessor {
+    private Rowset rowset;
+
+    @Override
+    public void preamble(final RowMetadata meta, final Config conf) {
+      // Nothing to do...
+    }
+
+    @Override
+    public void process(final Rowset rowset, final RowMetadata meta) {
+      this.rowset = rowset;
+    }
+
+    @Override
+    public void close() {
+      // Nothing to do
+    }
+  }
+
   private static final Logger log = LogManager.getLogger(StatsProcessor.class);
 
+  private static final int INITIAL_SERIES_SIZE = 64;
+
+  // Metric index of a series whose key hasn't been seen yet
+  private static final int NO_METRIC = -2;
+
   private final Config conf;
 
   private final RowMetadata rowMetadata;
@@ -55,6 +80,35 @@ public class StatsProcessor {
 
   private final ProgressMonitor pm;
 
+  private long samples;
+
+  // Series that were skipped because they aren't exported, and the bytes they took up
+  private long skippedSeries;
+
+  private long skippedBytes;
+
+  private Map<String, Map<String, String>> preloadedProps;
+
+  private Map<String, NamedResource> preloadedParents;
+
+  private Map<String, Rowset> preloadedParentRowsets;
+
+  private Checkpoints checkpoints;
+
+  private int rowBatch;
+
+  // Runs the post-processing of each resource, or null to do it on the parsing thread
+  private Stage postStage;
+
+  // Timestamps of the series being parsed. Only copied if they differ from the previous series.
+  private long[] timestampBuffer = new long[INITIAL_SERIES_SIZE];
+
+  // Text of timestamps that came before the key of their series, and where each one ends. A
+  // timestamp in milliseconds takes 13 characters.
+  private char[] timestampText = new char[INITIAL_SERIES_SIZE * 13];
+
+  private int[] timestampEnds = new int[INITIAL_SERIES_SIZE];
+
   public StatsProcessor(
       final Config conf,
       final RowMetadata rowMetadata,
@@ -70,240 +124,648 @@ public class StatsProcessor {
     this.pm = pm;
   }
 
+  /**
+   * Sets properties that have already been loaded for some or all of the resources. Resources not
+   * found here get their properties from the data provider.
+   */
+  public void setPreloadedProps(final Map<String, Map<String, String>> preloadedProps) {
+    this.preloadedProps = preloadedProps;
+  }
+
+  /**
+   * Sets parents that have already been resolved. A resource mapped to null is known to have no
+   * parent. Resources not found here get their parent from the data provider.
+   */
+  public void setPreloadedParents(final Map<String, NamedResource> preloadedParents) {
+    this.preloadedParents = preloadedParents;
+  }
+
+  /** Sets parent rowsets that have already been loaded, keyed by parent id. */
+  public void setPreloadedParentRowsets(final Map<String, Rowset> preloadedParentRowsets) {
+    this.preloadedParentRowsets = preloadedParentRowsets;
+  }
+
+  /**
+   * Only passes on samples newer than the checkpoint of each resource and moves the checkpoints
+   * forward as rowsets are handed over.
+   */
+  public void setCheckpoints(final Checkpoints checkpoints) {
+    this.checkpoints = checkpoints;
+  }
+
+  /**
+   * Hands the rows of each resource over in batches of at most this many rows if the processor
+   * can take them that way. Zero means a single rowset per resource.
+   */
+  public void setRowBatch(final int rowBatch) {
+    this.rowBatch = rowBatch;
+  }
+
+  /**
+   * Hands each resource to the stage for splicing, compactification and delivery as soon as it has
+   * been parsed, so that the parser can go on with the next one. All of a resource is handled by
+   * the same task, so its rows still reach the processor in order. The processor must be able to
+   * take resources from several threads at once.
+   */
+  public void setPostStage(final Stage postStage) {
+    this.postStage = postStage;
+  }
+
+  /** Returns the key parent rowsets are cached under. */
+  public static String parentCacheKey(final String parentId, final long begin, final long end) {
+    return parentId + "|" + begin + "|" + end;
+  }
+
   public int process(
       final InputStream is, final RowsetProcessor proc, final long begin, final long end)
       throws ExporterException, IOException, HttpException {
-    RowMetadata meta = rowMetadata;
-    final JsonParser p = new JsonFactory().createParser(is);
+    final JsonParser p = Json.getFactory().createParser(is);
     int processedObjects = 0;
 
     // Process values { [ ...
     //
-    expect(p, JsonToken.START_OBJECT);
-    expect(p, "values");
-    expect(p, JsonToken.START_ARRAY);
-    while (p.nextToken() != JsonToken.END_ARRAY) {
-      expectCurrent(p, JsonToken.START_OBJECT);
-      expect(p, "resourceId");
-      final String resourceId = p.nextTextValue();
-
-      // Looking for all metrics? We need to create metadata for each resource, since instance
-      // metrics may very.
-      if (conf.isAllMetrics()) {
-        meta = new RowMetadata(conf, dataProvider.getStatKeysForResource(resourceId));
+    final PostTasks tasks = new PostTasks(proc, begin, end);
+    try {
+      expect(p, JsonToken.START_OBJECT);
+      expect(p, "values");
+      expect(p, JsonToken.START_ARRAY);
+      while (p.nextToken() != JsonToken.END_ARRAY) {
+        tasks.finish(parseResource(p, null));
+        ++processedObjects;
       }
+      expect(p, JsonToken.END_OBJECT);
+    } catch (final Exception e) {
+      tasks.drainAfter(e);
+      throw e;
+    }
+    tasks.await();
+    return processedObjects;
+  }
 
-      // Process stat-list { stat [ ...
-      expect(p, "stat-list");
+  /**
+   * Processes responses that cover consecutive parts of the time range for the same resources. The
+   * samples of each resource are merged in timestamp order, so every resource still ends up as a
+   * single rowset.
+   */
+  public int process(
+      final List<InputStream> windows, final RowsetProcessor proc, final long begin, final long end)
+      throws ExporterException, IOException, HttpException {
+    final Map<String, RowsetBuilder> builders = new LinkedHashMap<>();
+    for (final InputStream is : windows) {
+      final JsonParser p = Json.getFactory().createParser(is);
       expect(p, JsonToken.START_OBJECT);
-      expect(p, "stat");
+      expect(p, "values");
       expect(p, JsonToken.START_ARRAY);
-      TreeMap<Long, Row> rows = new TreeMap<>();
       while (p.nextToken() != JsonToken.END_ARRAY) {
+        parseResource(p, builders);
+      }
+      expect(p, JsonToken.END_OBJECT);
+    }
+    final PostTasks tasks = new PostTasks(proc, begin, end);
+    try {
+      for (final RowsetBuilder builder : builders.values()) {
+        tasks.finish(builder);
+      }
+    } catch (final Exception e) {
+      tasks.drainAfter(e);
+      throw e;
+    }
+    tasks.await();
+    return builders.size();
+  }
 
-        // Process timestamps[ ...
-        expectCurrent(p, JsonToken.START_OBJECT);
-        expect(p, "timestamps");
-        expect(p, JsonToken.START_ARRAY);
-        final List<Long> timestamps = new ArrayList<>();
-        while (p.nextToken() != JsonToken.END_ARRAY) {
-          long ts = p.getLongValue();
-
-          // Align timestamp if needed
-          final int align = conf.getAlign() * 1000;
-          if (align != 0) {
-            ts = ((ts + align / 2) / align) * align;
+  /**
+   * Parses the samples of one resource.
+   *
+   * @param builders Builders to add the samples to by resource id, or null to start a new one
+   * @return The builder the samples were added to
+   */
+  private RowsetBuilder parseResource(final JsonParser p, final Map<String, RowsetBuilder> builders)
+      throws ExporterException, IOException, HttpException {
+    expectCurrent(p, JsonToken.START_OBJECT);
+    expect(p, "resourceId");
+    final String resourceId = p.nextTextValue();
+    RowsetBuilder builder = builders != null ? builders.get(resourceId) : null;
+    if (builder == null) {
+      // Looking for all metrics? We need to create metadata for each resource, since instance
+      // metrics may very.
+      final RowMetadata meta =
+          conf.isAllMetrics()
+              ? new RowMetadata(conf, dataProvider.getStatKeysForResource(resourceId))
+              : rowMetadata;
+      builder = new RowsetBuilder(resourceId, meta);
+      final long mark = checkpoints != null ? checkpoints.get(resourceId) : Checkpoints.NONE;
+      if (mark != Checkpoints.NONE) {
+        builder.setMinTimestamp(mark + 1);
+      }
+      if (builders != null) {
+        builders.put(resourceId, builder);
+      }
+    }
+    final RowMetadata meta = builder.getMetadata();
+    final StatKeyIndex statKeys = meta.getStatKeyIndex();
+    final int align = conf.getAlign() * 1000;
+
+    // Process stat-list { stat [ ...
+    expect(p, "stat-list");
+    expect(p, JsonToken.START_OBJECT);
+    expect(p, "stat");
+    expect(p, JsonToken.START_ARRAY);
+    long[] prevTimestamps = null;
+    int prevN = 0;
+    while (p.nextToken() != JsonToken.END_ARRAY) {
+      expectCurrent(p, JsonToken.START_OBJECT);
+      final long seriesStart = p.getTokenLocation().getByteOffset();
+
+      // The members of a series may come in any order. Timestamps that come before the key are only
+      // copied as text, so that a series we don't export costs no number parsing.
+      int metricIdx = NO_METRIC;
+      int nTimestamps = -1;
+      boolean timestampsAsText = false;
+      while (p.nextToken() != JsonToken.END_OBJECT) {
+        final String field = p.getCurrentName();
+        p.nextToken();
+        if ("statKey".equals(field)) {
+          metricIdx = lookupStatKey(p, statKeys);
+          if (metricIdx == -1) {
+            while (p.nextToken() != JsonToken.END_OBJECT) {
+              p.nextToken();
+              p.skipChildren();
+            }
+            break;
+          }
+        } else if ("timestamps".equals(field)) {
+          expectCurrent(p, JsonToken.START_ARRAY);
+          timestampsAsText = metricIdx == NO_METRIC;
+          nTimestamps = timestampsAsText ? copyTimestamps(p) : readTimestamps(p, align);
+        } else if ("data".equals(field)) {
+          if (metricIdx == NO_METRIC || nTimestamps == -1) {
+            throw new ExporterException("Expected statKey and timestamps before data");
+          }
+          expectCurrent(p, JsonToken.START_ARRAY);
+          if (timestampsAsText) {
+            parseTimestamps(nTimestamps, align);
           }
-          timestamps.add(ts);
-        }
-        expect(p, "statKey");
-        expect(p, JsonToken.START_OBJECT);
-        expect(p, "key");
-        final String statKey = p.nextTextValue();
-        expect(p, JsonToken.END_OBJECT);
-
-        // Keep skipping members until we've found the data node
-        while (!expectMaybe(p, "data")) {
-          skipMember(p, null);
-        }
 
-        // Process data[ ...
-        expect(p, JsonToken.START_ARRAY);
-        final int metricIdx = meta.getMetricIndex(statKey);
-        int i = 0;
-        while (p.nextToken() != JsonToken.END_ARRAY) {
-          final double d = p.getDoubleValue();
-          if (metricIdx != -1) {
-            if (i >= timestamps.size()) {
+          // Most series of a resource have the same timestamps. Keep only one copy of them.
+          final long[] buf = timestampBuffer;
+          final long[] timestamps;
+          if (prevTimestamps != null && sameTimestamps(buf, prevTimestamps, nTimestamps, prevN)) {
+            timestamps = prevTimestamps;
+          } else {
+            timestamps = Arrays.copyOf(buf, nTimestamps);
+            prevTimestamps = timestamps;
+            prevN = nTimestamps;
+          }
+
+          // Process data[ ...
+          final double[] values = new double[nTimestamps];
+          int i = 0;
+          while (p.nextToken() != JsonToken.END_ARRAY) {
+            if (i >= nTimestamps) {
               log.warn(
                   "More data than timestamps (index="
                       + i
                       + ") for metric "
-                      + statKey
+                      + statKeys.getKey(metricIdx)
                       + " on "
                       + meta.getResourceKind()
                       + " id: "
                       + resourceId);
               continue; // Skip this sample!
             }
-            final long ts = timestamps.get(i++);
-            final RowMetadata m = meta;
-            final Row r = rows.computeIfAbsent(ts, k -> m.newRow(ts));
-            r.setMetric(metricIdx, d);
+            values[i++] = p.getDoubleValue();
           }
+          builder.addSeries(metricIdx, timestamps, values, i);
+          samples += i;
+        } else {
+          p.skipChildren();
         }
-        expect(p, JsonToken.END_OBJECT);
       }
+      if (metricIdx == NO_METRIC) {
+        throw new ExporterException("Expected field name statKey in series");
+      }
+      if (metricIdx == -1) {
+        ++skippedSeries;
+        skippedBytes += p.getCurrentLocation().getByteOffset() - seriesStart;
+      }
+    }
 
-      // End of stat-list and values object
-      expect(p, JsonToken.END_OBJECT);
-      expect(p, JsonToken.END_OBJECT);
-      Rowset rs = new Rowset(resourceId, rows);
-      rows = null; // Make the GC release this a bit earlier
-
-      // Splice in properties
-      if (dataProvider != null) {
-        if (meta.hasProperties()) {
-          // Put in resource id if requested.
-          final int idIdx = meta.getPropertyIndex("$resId");
-          if (idIdx != -1) {
-            for (final Row row : rs.getRows().values()) {
-              row.setProp(idIdx, resourceId);
-            }
-          }
+    // End of stat-list and values object
+    expect(p, JsonToken.END_OBJECT);
+    expect(p, JsonToken.END_OBJECT);
+    return builder;
+  }
 
-          // Put in name if requested
-          final int nameIdx = meta.getPropertyIndex("$resName");
-          if (nameIdx != -1) {
-            final String name = dataProvider.getResourceName(resourceId);
-            for (final Row row : rs.getRows().values()) {
-              row.setProp(nameIdx, name);
-            }
-          }
+  /**
+   * Finishes the resources of one response, either right away or on the post stage. Any failure
+   * is thrown from {@link #await()}, once every resource handed over has been dealt with.
+   */
+  private class PostTasks {
+    private final RowsetProcessor proc;
 
-          // Splice in properties
-          if (meta.needsPropertyLoad()) {
-            final Map<String, String> props = dataProvider.fetchProps(resourceId);
-            for (final Map.Entry<String, String> e : props.entrySet()) {
-              final int idx = meta.getPropertyIndex(e.getKey());
-              if (idx != -1) {
-                for (final Row row : rs.getRows().values()) {
-                  row.setProp(idx, e.getValue());
-                }
-              }
-            }
-            // Splice in tags
-            String tags = props.get("summary|tagJson");
-            if (tags != null && !"none".equals(tags)) {
-              ObjectMapper om = new ObjectMapper();
-              List<Map<String, String>> parsed = om.readValue(tags, List.class);
-              for (Map<String, String> tag : parsed) {
-                int idx = meta.getTagIndex(tag.get("category"));
-                if (idx != -1) {
-                  String tagValue = tag.get("name");
-                  for (final Row row : rs.getRows().values()) {
-                    row.setProp(idx, tagValue);
+    private final long begin;
+
+    private final long end;
+
+    private int pending;
+
+    private Exception failure;
+
+    PostTasks(final RowsetProcessor proc, final long begin, final long end) {
+      this.proc = proc;
+      this.begin = begin;
+      this.end = end;
+    }
+
+    void finish(final RowsetBuilder builder) throws ExporterException, IOException, HttpException {
+      if (postStage == null) {
+        finishResource(builder, proc, begin, end);
+        return;
+      }
+      synchronized (this) {
+        // No point in parsing any further if we can't deliver.
+        if (failure != null) {
+          rethrow();
+        }
+        ++pending;
+      }
+      try {
+        postStage.submit(
+            () -> {
+              try {
+                finishResource(builder, proc, begin, end);
+              } catch (final Exception e) {
+                synchronized (this) {
+                  if (failure == null) {
+                    failure = e;
                   }
                 }
+              } finally {
+                done();
               }
-            }
-          }
-        }
+            });
+      } catch (final RuntimeException e) {
+        done();
+        throw e;
+      }
+    }
 
-        // Splice in data from parent
-        final RowMetadata pMeta = meta.forParent();
-        if (pMeta.isValid()) {
-          final long now = System.currentTimeMillis();
-          final NamedResource parent =
-              dataProvider.getParentOf(resourceId, pMeta.getResourceKind());
-          if (parent != null) {
-            final Rowset cached;
-            final String cacheKey = parent.getIdentifier() + "|" + begin + "|" + end;
-            synchronized (rowsetCache) {
-              cached = rowsetCache.get(cacheKey);
-            }
-            // Try cache first! Chances are we've seen this parent many times.
-            if (cached != null) {
-              if (verbose) {
-                log.debug(
-                    "Cache hit for parent " + cacheKey + " " + parent.getResourceKey().get("name"));
-              }
-              ParentSplicer.spliceRows(rs, cached);
-            } else {
-              // Not in cache. Fetch it the hard (and slow) way!
-              if (verbose) {
-                log.debug(
-                    "Cache miss for parent "
-                        + cacheKey
-                        + " "
-                        + parent.getResourceKey().get("name"));
-              }
-              final StatsProcessor parentProcessor =
-                  new StatsProcessor(
-                      conf, pMeta, dataProvider, rowsetCache, new NullProgress(), verbose);
-              try (final InputStream pIs =
-                  dataProvider.fetchMetricStream(new NamedResource[] {parent}, pMeta, begin, end)) {
-                parentProcessor.process(
-                    pIs, new ParentSplicer(rs, rowsetCache, cacheKey), begin, end);
-              }
-            }
-          }
-          if (verbose) {
-            log.debug("Parent processing took " + (System.currentTimeMillis() - now));
-          }
+    private synchronized void done() {
+      if (--pending == 0) {
+        notifyAll();
+      }
+    }
+
+    synchronized void await() throws ExporterException, IOException, HttpException {
+      drain();
+      if (failure != null) {
+        rethrow();
+      }
+    }
+
+    /** Waits for the resources already handed over. */
+    synchronized void drain() throws InterruptedIOException {
+      try {
+        while (pending > 0) {
+          wait();
         }
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while finishing resources");
       }
-      if (verbose) {
-        log.debug(
-            "Processed "
-                + rs.getRows().size()
-                + " rows. Memory used: "
-                + Runtime.getRuntime().totalMemory()
-                + " max="
-                + Runtime.getRuntime().maxMemory());
+    }
+
+    /** Waits for the resources already handed over before a failure is passed on. */
+    void drainAfter(final Exception cause) {
+      try {
+        drain();
+      } catch (final InterruptedIOException e) {
+        cause.addSuppressed(e);
+      }
+    }
+
+    private void rethrow() throws ExporterException, IOException, HttpException {
+      if (failure instanceof ExporterException) {
+        throw (ExporterException) failure;
+      }
+      if (failure instanceof IOException) {
+        throw (IOException) failure;
+      }
+      if (failure instanceof HttpException) {
+        throw (HttpException) failure;
+      }
+      if (failure instanceof RuntimeException) {
+        throw (RuntimeException) failure;
+      }
+      throw new ExporterException(failure);
+    }
+  }
+
+  /** Builds the rowset of a resource, splices in properties and parent data and hands it over. */
+  private void finishResource(
+      final RowsetBuilder builder, final RowsetProcessor proc, final long begin, final long end)
+      throws ExporterException, IOException, HttpException {
+    final String resourceId = builder.getResourceId();
+    final RowMetadata meta = builder.getMetadata();
+    final String[] props = resolveProps(resourceId, meta);
+    final Rowset parentRs = resolveParentRowset(resourceId, meta, begin, end);
+    long lastTimestamp = Checkpoints.NONE;
+    int rows = 0;
+    if (rowBatch > 0 && proc.isStreaming() && !conf.isCompact()) {
+      // Hand the rows over a batch at a time rather than building one big rowset.
+      proc.beginResource(resourceId, meta);
+      boolean ending = false;
+      try {
+        Rowset batch;
+        while ((batch = builder.nextBatch(rowBatch)) != null) {
+          decorate(batch, props, parentRs);
+          lastTimestamp = batch.getLastTimestamp();
+          rows += batch.size();
+          proc.process(batch, meta);
+        }
+        ending = true;
+        proc.endResource(resourceId, meta);
+      } finally {
+        // endResource() cleans up after itself if it fails.
+        if (!ending) {
+          proc.abortResource(resourceId, meta);
+        }
       }
+    } else {
+      Rowset rs = builder.build();
+      decorate(rs, props, parentRs);
+      lastTimestamp = rs.isEmpty() ? Checkpoints.NONE : rs.getLastTimestamp();
+      rows = rs.size();
 
       // Compactify if needed
       if (conf.isCompact()) {
         rs = compactify(rs, meta);
       }
       proc.process(rs, meta);
-      ++processedObjects;
-      if (pm != null) {
-        pm.reportProgress(1);
+    }
+    if (verbose) {
+      log.debug(
+          "Processed "
+              + rows
+              + " rows. Memory used: "
+              + Runtime.getRuntime().totalMemory()
+              + " max="
+              + Runtime.getRuntime().maxMemory());
+    }
+    if (checkpoints != null && lastTimestamp != Checkpoints.NONE) {
+      checkpoints.advance(resourceId, lastTimestamp);
+    }
+    if (pm != null) {
+      pm.reportProgress(1);
+    }
+  }
+
+  private static void decorate(final Rowset rs, final String[] props, final Rowset parentRs) {
+    for (int i = 0; i < props.length; ++i) {
+      if (props[i] != null) {
+        rs.setPropForAllRows(i, props[i]);
       }
     }
+    if (parentRs != null) {
+      ParentSplicer.spliceRows(rs, parentRs);
+    }
+  }
+
+  /** Works out the value of each property column of a resource. Null means no value. */
+  private String[] resolveProps(final String resourceId, final RowMetadata meta)
+      throws ExporterException, IOException, HttpException {
+    final String[] values = new String[meta.getPropMap().size()];
+    if (dataProvider == null || !meta.hasProperties()) {
+      return values;
+    }
+    // Put in resource id if requested.
+    final int idIdx = meta.getPropertyIndex("$resId");
+    if (idIdx != -1) {
+      values[idIdx] = resourceId;
+    }
+
+    // Put in name if requested
+    final int nameIdx = meta.getPropertyIndex("$resName");
+    if (nameIdx != -1) {
+      values[nameIdx] = dataProvider.getResourceName(resourceId);
+    }
+
+    // Splice in properties
+    if (meta.needsPropertyLoad()) {
+      Map<String, String> props = preloadedProps != null ? preloadedProps.get(resourceId) : null;
+      if (props == null) {
+        props = dataProvider.fetchProps(resourceId);
+      }
+      for (final Map.Entry<String, String> e : props.entrySet()) {
+        final int idx = meta.getPropertyIndex(e.getKey());
+        if (idx != -1) {
+          values[idx] = e.getValue();
+        }
+      }
+      // Splice in tags
+      String tags = props.get(RowMetadata.TAG_PROPERTY);
+      if (tags != null && !"none".equals(tags)) {
+        List<Map<String, String>> parsed = Json.reader(List.class).readValue(tags);
+        for (Map<String, String> tag : parsed) {
+          int idx = meta.getTagIndex(tag.get("category"));
+          if (idx != -1) {
+            values[idx] = tag.get("name");
+          }
+        }
+      }
+    }
+    return values;
+  }
+
+  /** Finds the rowset of the parent to splice in, if any. */
+  private Rowset resolveParentRowset(
+      final String resourceId, final RowMetadata meta, final long begin, final long end)
+      throws ExporterException, IOException, HttpException {
+    final RowMetadata pMeta = meta.forParent();
+    if (dataProvider == null || !pMeta.isValid()) {
+      return null;
+    }
+    final long now = System.currentTimeMillis();
+    final NamedResource parent =
+        preloadedParents != null && preloadedParents.containsKey(resourceId)
+            ? preloadedParents.get(resourceId)
+            : dataProvider.getParentOf(resourceId, pMeta.getResourceKind());
+    Rowset parentRs = null;
+    if (parent != null) {
+      parentRs =
+          preloadedParentRowsets != null
+              ? preloadedParentRowsets.get(parent.getIdentifier())
+              : null;
+      if (parentRs == null) {
+        // Try cache first! Chances are we've seen this parent many times. If another thread
+        // is already fetching it, we wait for that instead of fetching it again.
+        try {
+          parentRs =
+              rowsetCache.get(
+                  parentCacheKey(parent.getIdentifier(), begin, end),
+                  k -> loadParent(parent, pMeta, begin, end));
+        } catch (final ExecutionException e) {
+          Exporter.rethrowCause(e);
+          if (e.getCause() instanceof ExporterException) {
+            throw (ExporterException) e.getCause();
+          }
+          throw new ExporterException(e.getCause());
+        }
+      }
+    }
+    if (verbose) {
+      log.debug("Parent processing took " + (System.currentTimeMillis() - now));
+    }
+    return parentRs;
+  }
+
+  /** Fetches a parent the hard (and slow) way. */
+  private Rowset loadParent(
+      final NamedResource parent, final RowMetadata pMeta, final long begin, final long end)
+      throws ExporterException, IOException, HttpException {
+    if (verbose) {
+      log.debug(
+          "Cache miss for parent "
+              + parent.getIdentifier()
+              + " "
+              + parent.getResourceKey().get("name"));
+    }
+    final StatsProcessor parentProcessor =
+        new StatsProcessor(conf, pMeta, dataProvider, rowsetCache, new NullProgress(), verbose);
+    final ParentCapture capture = new ParentCapture();
+    try (final InputStream pIs =
+        dataProvider.fetchMetricStream(new NamedResource[] {parent}, pMeta, begin, end)) {
+      parentProcessor.process(pIs, capture, begin, end);
+    }
+    return capture.rowset;
+  }
+
+  private static boolean sameTimestamps(
+      final long[] a, final long[] b, final int n, final int bn) {
+    if (n > bn) {
+      return false;
+    }
+    for (int i = 0; i < n; ++i) {
+      if (a[i] != b[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns the index of the key of a statKey object, or -1 if it isn't exported. */
+  private int lookupStatKey(final JsonParser p, final StatKeyIndex statKeys)
+      throws ExporterException, IOException {
+    expectCurrent(p, JsonToken.START_OBJECT);
+    expect(p, "key");
+
+    // Match the key without turning it into a String.
+    final int idx =
+        p.nextToken() == JsonToken.VALUE_STRING
+            ? statKeys.lookup(p.getTextCharacters(), p.getTextOffset(), p.getTextLength())
+            : -1;
     expect(p, JsonToken.END_OBJECT);
-    return processedObjects;
+    return idx;
+  }
+
+  /** Reads a timestamps array into the timestamp buffer and returns the number of timestamps. */
+  private int readTimestamps(final JsonParser p, final int align) throws IOException {
+    long[] buf = timestampBuffer;
+    int n = 0;
+    while (p.nextToken() != JsonToken.END_ARRAY) {
+      if (n == buf.length) {
+        buf = Arrays.copyOf(buf, buf.length * 2);
+        timestampBuffer = buf;
+      }
+      buf[n++] = alignTimestamp(p.getLongValue(), align);
+    }
+    return n;
+  }
+
+  /**
+   * Copies the text of a timestamps array without parsing it, for when we don't know yet whether
+   * the series is exported. Returns the number of timestamps.
+   */
+  private int copyTimestamps(final JsonParser p) throws ExporterException, IOException {
+    char[] text = timestampText;
+    int[] ends = timestampEnds;
+    int len = 0;
+    int n = 0;
+    while (p.nextToken() != JsonToken.END_ARRAY) {
+      expectCurrent(p, JsonToken.VALUE_NUMBER_INT);
+      final int l = p.getTextLength();
+      if (len + l > text.length) {
+        text = Arrays.copyOf(text, Math.max(text.length * 2, len + l));
+        timestampText = text;
+      }
+      if (n == ends.length) {
+        ends = Arrays.copyOf(ends, ends.length * 2);
+        timestampEnds = ends;
+      }
+      System.arraycopy(p.getTextCharacters(), p.getTextOffset(), text, len, l);
+      len += l;
+      ends[n++] = len;
+    }
+    return n;
+  }
+
+  /** Parses timestamps copied by {@link #copyTimestamps} into the timestamp buffer. */
+  private void parseTimestamps(final int n, final int align) {
+    if (timestampBuffer.length < n) {
+      timestampBuffer = new long[Math.max(timestampBuffer.length * 2, n)];
+    }
+    final char[] text = timestampText;
+    int start = 0;
+    for (int i = 0; i < n; ++i) {
+      final int end = timestampEnds[i];
+      final boolean negative = text[start] == '-';
+      long ts = 0;
+      for (int j = negative ? start + 1 : start; j < end; ++j) {
+        ts = ts * 10 + (text[j] - '0');
+      }
+      timestampBuffer[i] = alignTimestamp(negative ? -ts : ts, align);
+      start = end;
+    }
   }
 
-  private Rowset compactify(final Rowset rs, final RowMetadata meta) throws ExporterException {
+  private static long alignTimestamp(final long ts, final int align) {
+    return align != 0 ? ((ts + align / 2) / align) * align : ts;
+  }
+
+  /** Returns the number of samples processed so far. */
+  public long getSampleCount() {
+    return samples;
+  }
+
+  /** Returns the number of series skipped so far because they aren't exported. */
+  public long getSkippedSeries() {
+    return skippedSeries;
+  }
+
+  /** Returns the number of response bytes taken up by skipped series. */
+  public long getSkippedBytes() {
+    return skippedBytes;
+  }
+
+  Rowset compactify(final Rowset rs, final RowMetadata meta) throws ExporterException {
     // No need to process empty rowsets
-    if (rs.getRows().size() == 0) {
+    if (rs.isEmpty()) {
       return rs;
     }
 
     // Calculate range according to compactification algorithm.
     final long startTime = System.currentTimeMillis();
-    final TreeMap<Long, Row> rows = rs.getRows();
     final long start;
     final long end;
     final long ts;
     final String alg = conf.getCompactifyAlg();
     if (alg == null || alg.equalsIgnoreCase("LATEST")) { // "LATEST" is the default
-      end = rows.lastKey();
+      end = rs.getLastTimestamp();
       start = end - conf.getRollupMinutes() * 60000;
       ts = end;
     } else if (alg.equalsIgnoreCase("MEDIAN")) {
-      long median = 0;
-      final long half = rows.size() / 2;
-      int i = 0;
-      for (final long t : rows.keySet()) {
-        median = t;
-        if (i++ > half) {
-          break;
-        }
-      }
+      final long median = rs.getTimestamp(Math.min(rs.size() / 2 + 1, rs.size() - 1));
       start = median - conf.getRollupMinutes() * 30000;
       end = median + conf.getRollupMinutes() * 30000;
       ts = median;
@@ -316,23 +778,23 @@ public class StatsProcessor {
     }
 
     // Compactify everything that fits within the timerange into a single row
-    final Row target = meta.newRow(ts);
-    for (final Row r : rows.values()) {
+    final Rowset result =
+        new Rowset(rs.getResourceId(), new long[] {ts}, rs.getNumMetrics(), rs.getNumProps());
+    final Row target = result.getRow(0);
+    for (final Row r : rs.getRows()) {
       if (r.getTimestamp() <= end && r.getTimestamp() >= start) {
         target.merge(r);
       }
     }
-    final TreeMap<Long, Row> result = new TreeMap<>();
-    result.put(ts, target);
     if (verbose) {
       log.debug(
           "Compactifying "
-              + rs.getRows().size()
+              + rs.size()
               + " rows took "
               + (System.currentTimeMillis() - startTime)
               + " ms");
     }
-    return new Rowset(rs.getResourceId(), result);
+    return result;
   }
 
   private void expect(final JsonParser p, final JsonToken token)
@@ -343,9 +805,7 @@ public class StatsProcessor {
     }
   }
 
-  private void expectCurrent(
-      final JsonParser p, @SuppressWarnings("SameParameterValue") final JsonToken token)
-      throws ExporterException {
+  private void expectCurrent(final JsonParser p, final JsonToken token) throws ExporterException {
     final JsonToken t = p.currentToken();
     if (t != token) {
       throw new ExporterException("Expected token " + token.asString() + ", got " + t.asString());
@@ -364,48 +824,4 @@ public class StatsProcessor {
     p.nextToken();
     return fieldname == null || fieldname.equals(p.getCurrentName());
   }
-
-  private boolean expectCurrentMaybe(final JsonParser p, final String fieldname)
-      throws IOException {
-    return fieldname.equals(p.getCurrentName());
-  }
-
-  private boolean skipMemberMaybe(final JsonParser p, final String fieldName)
-      throws ExporterException, IOException {
-    if (fieldName != null && !expectCurrentMaybe(p, fieldName)) {
-      return false;
-    }
-    expect(p, fieldName); // Advance past the field name
-    final JsonToken t = p.currentToken();
-    if (t == JsonToken.START_ARRAY) {
-      skipComplex(p, 0, 1);
-    } else if (t == JsonToken.START_OBJECT) {
-      skipComplex(p, 1, 0);
-    }
-    return true;
-  }
-
-  private void skipMember(
-      final JsonParser p, @SuppressWarnings("SameParameterValue") final String fieldName)
-      throws ExporterException, IOException {
-    if (!skipMemberMaybe(p, fieldName)) {
-      throw new ExporterException(
-          "Expected field name " + fieldName + ", got " + p.getCurrentName());
-    }
-  }
-
-  private void skipComplex(final JsonParser p, int structLevel, int arrayLevel) throws IOException {
-    while (structLevel > 0 || arrayLevel > 0) {
-      final JsonToken t = p.nextToken();
-      if (t == JsonToken.START_ARRAY) {
-        ++arrayLevel;
-      } else if (t == JsonToken.END_ARRAY) {
-        --arrayLevel;
-      } else if (t == JsonToken.START_OBJECT) {
-        ++structLevel;
-      } else if (t == JsonToken.END_OBJECT) {
-        --structLevel;
-      }
-    }
-  }
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads on Java 21 and later. The code is built for Java 8, so the virtual thread
+ * API can only be reached through reflection.
+ */
+public class VirtualThreads {
+  private static final ThreadFactory unnamed = lookupFactory(null);
+
+  private VirtualThreads() {
+    // Nothing to do
+  }
+
+  /** True if the JVM supports virtual threads. */
+  public static boolean isAvailable() {
+    return unnamed != null;
+  }
+
+  /**
+   * Returns a factory for virtual threads named prefix-1, prefix-2 and so on.
+   *
+   * @throws UnsupportedOperationException if the JVM doesn't support virtual threads
+   */
+  public static ThreadFactory factory(final String prefix) {
+    final ThreadFactory tf = lookupFactory(prefix + "-");
+    if (tf == null) {
+      throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+    }
+    return tf;
+  }
+
+  private static ThreadFactory lookupFactory(final String prefix) {
+    try {
+      // Thread.ofVirtual().name(prefix, 1).factory()
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      if (prefix != null) {
+        final Method name = builderClass.getMethod("name", String.class, long.class);
+        builder = name.invoke(builder, prefix, 1L);
+      }
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (final ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport.json;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Jackson objects shared by everything that reads or writes JSON. They're thread safe, and keeping
+ * them around lets Jackson reuse its serializers, deserializers and canonicalized field names
+ * rather than building them again for every response.
+ */
+public class Json {
+  private static final JsonFactory factory =
+      new JsonFactory()
+          .enable(JsonFactory.Feature.CANONICALIZE_FIELD_NAMES)
+          .enable(JsonFactory.Feature.INTERN_FIELD_NAMES);
+
+  private static final ObjectMapper mapper =
+      new ObjectMapper(factory).configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+  private static final ObjectWriter writer = mapper.writer();
+
+  private static final Map<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+
+  private Json() {
+    // Nothing to do
+  }
+
+  /** Returns the factory for parsers and generators. Don't reconfigure it. */
+  public static JsonFactory getFactory() {
+    return factory;
+  }
+
+  /** Returns the mapper. Don't reconfigure it. */
+  public static ObjectMapper getMapper() {
+    return mapper;
+  }
+
+  /** Returns a reader for the given class. Unknown properties are ignored. */
+  public static ObjectReader reader(final Class<?> cls) {
+    return readers.computeIfAbsent(cls, mapper::readerFor);
+  }
+
+  public static ObjectWriter writer() {
+    return writer;
+  }
+}
@@ -26,7 +26,6 @@ import com.vmware.vropsexport.exceptions.ExporterException;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.util.Date;
-import java.util.Map;
 import org.apache.http.HttpException;
 
 public class JsonProducer {
@@ -71,8 +70,8 @@ public class JsonProducer {
     generator.writeStringField("resourceName", dp.getResourceName(rowset.getResourceId()));
 
     // Properties
-    if (!rowset.getRows().isEmpty()) {
-      final Row firstRow = rowset.getRows().firstEntry().getValue();
+    if (!rowset.isEmpty()) {
+      final Row firstRow = rowset.getRow(0);
       generator.writeArrayFieldStart("properties");
       for (final String propertyName : meta.getPropMap().keySet()) {
         final int propIndex = meta.getPropertyIndex(propertyName);
@@ -95,14 +94,13 @@ public class JsonProducer {
       final int metricIndex = meta.getMetricIndex(metricName);
       generator.writeStringField("name", meta.getAliasForMetric(metricName));
       generator.writeArrayFieldStart("samples");
-      for (final Map.Entry<Long, Row> row : rowset.getRows().entrySet()) {
-        final Double v = row.getValue().getMetric(metricIndex);
-        if (v == null) {
+      for (int i = 0; i < rowset.size(); ++i) {
+        if (!rowset.hasMetric(i, metricIndex)) {
           continue;
         }
         generator.writeStartObject();
-        generator.writeStringField("t", toDate(row.getKey()));
-        generator.writeNumberField("v", v);
+        generator.writeStringField("t", toDate(rowset.getTimestamp(i)));
+        generator.writeNumberField("v", rowset.getMetricValue(i, metricIndex));
         generator.writeEndObject();
       }
       generator.writeEndArray();
@@ -114,18 +112,17 @@ public class JsonProducer {
 
   public void produceChatty(final Rowset rowset, final RowMetadata meta)
       throws IOException, HttpException {
-    for (final Map.Entry<Long, Row> row : rowset.getRows().entrySet()) {
+    for (int i = 0; i < rowset.size(); ++i) {
       for (final String metricName : meta.getMetricMap().keySet()) {
         final int metricIndex = meta.getMetricIndex(metricName);
-        final Double v = row.getValue().getMetric(metricIndex);
-        if (v == null) {
+        if (!rowset.hasMetric(i, metricIndex)) {
           continue;
         }
         generator.writeStartObject();
-        generator.writeStringField("t", toDate(row.getKey()));
+        generator.writeStringField("t", toDate(rowset.getTimestamp(i)));
         generator.writeStringField("resourceName", dp.getResourceName(rowset.getResourceId()));
         generator.writeStringField("metric", meta.getAliasForMetric(metricName));
-        generator.writeNumberField("v", v);
+        generator.writeNumberField("v", rowset.getMetricValue(i, metricIndex));
         generator.writeEndObject();
       }
     }
@@ -133,8 +130,8 @@ public class JsonProducer {
 
   public void produceElastic(final Rowset rowset, final RowMetadata meta)
       throws IOException, HttpException {
-    for (final Map.Entry<Long, Row> row : rowset.getRows().entrySet()) {
-      produceSingleElastic(row.getValue(), row.getKey(), rowset.getResourceId(), meta);
+    for (final Row row : rowset.getRows()) {
+      produceSingleElastic(row, row.getTimestamp(), rowset.getResourceId(), meta);
     }
   }
 
@@ -146,11 +143,11 @@ public class JsonProducer {
     generator.writeStringField("t", toDate(timestamp));
     for (final String metricName : meta.getMetricMap().keySet()) {
       final int metricIndex = meta.getMetricIndex(metricName);
-      final Double v = row.getMetric(metricIndex);
-      if (v == null) {
+      if (!row.hasMetric(metricIndex)) {
         continue;
       }
-      generator.writeNumberField(meta.getAliasForMetric(metricName), v);
+      generator.writeNumberField(
+          meta.getAliasForMetric(metricName), row.getMetricValue(metricIndex));
     }
     generator.writeEndObject();
   }
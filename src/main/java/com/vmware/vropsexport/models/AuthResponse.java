@@ -20,6 +20,8 @@ package com.vmware.vropsexport.models;
 public class AuthResponse {
   private String token;
 
+  private long validity;
+
   public String getToken() {
     return token;
   }
@@ -27,4 +29,13 @@ public class AuthResponse {
   public void setToken(final String token) {
     this.token = token;
   }
+
+  /** Time when the token expires, in milliseconds since the epoch. Zero if not known. */
+  public long getValidity() {
+    return validity;
+  }
+
+  public void setValidity(final long validity) {
+    this.validity = validity;
+  }
 }
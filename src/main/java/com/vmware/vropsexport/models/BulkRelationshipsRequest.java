@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport.models;
+
+import java.util.List;
+
+public class BulkRelationshipsRequest {
+  private final String relationshipType;
+
+  private final List<String> resourceIds;
+
+  private final int hierarchyDepth;
+
+  public BulkRelationshipsRequest(
+      final String relationshipType, final List<String> resourceIds, final int hierarchyDepth) {
+    this.relationshipType = relationshipType;
+    this.resourceIds = resourceIds;
+    this.hierarchyDepth = hierarchyDepth;
+  }
+
+  public String getRelationshipType() {
+    return relationshipType;
+  }
+
+  public List<String> getResourceIds() {
+    return resourceIds;
+  }
+
+  public int getHierarchyDepth() {
+    return hierarchyDepth;
+  }
+}
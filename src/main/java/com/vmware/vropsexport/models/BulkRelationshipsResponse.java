@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport.models;
+
+import java.util.List;
+
+public class BulkRelationshipsResponse {
+  /** A related resource and the ids of the requested resources it's related to. */
+  public static class ResourceRelation {
+    private NamedResource resource;
+
+    private List<String> relatedResources;
+
+    private String relationshipType;
+
+    public NamedResource getResource() {
+      return resource;
+    }
+
+    public void setResource(final NamedResource resource) {
+      this.resource = resource;
+    }
+
+    public List<String> getRelatedResources() {
+      return relatedResources;
+    }
+
+    public void setRelatedResources(final List<String> relatedResources) {
+      this.relatedResources = relatedResources;
+    }
+
+    public String getRelationshipType() {
+      return relationshipType;
+    }
+
+    public void setRelationshipType(final String relationshipType) {
+      this.relationshipType = relationshipType;
+    }
+  }
+
+  private List<ResourceRelation> resourcesRelations;
+
+  public List<ResourceRelation> getResourcesRelations() {
+    return resourcesRelations;
+  }
+
+  public void setResourcesRelations(final List<ResourceRelation> resourcesRelations) {
+    this.resourcesRelations = resourcesRelations;
+  }
+}
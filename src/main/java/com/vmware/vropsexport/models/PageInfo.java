@@ -20,6 +20,10 @@ package com.vmware.vropsexport.models;
 public class PageInfo {
   private int totalCount;
 
+  private int page;
+
+  private int pageSize;
+
   public int getTotalCount() {
     return totalCount;
   }
@@ -27,4 +31,20 @@ public class PageInfo {
   public void setTotalCount(final int totalCount) {
     this.totalCount = totalCount;
   }
+
+  public int getPage() {
+    return page;
+  }
+
+  public void setPage(final int page) {
+    this.page = page;
+  }
+
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  public void setPageSize(final int pageSize) {
+    this.pageSize = pageSize;
+  }
 }
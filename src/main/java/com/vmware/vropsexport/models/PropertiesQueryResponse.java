@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport.models;
+
+import com.fasterxml.jackson.annotation.JsonAlias;
+import java.util.List;
+
+public class PropertiesQueryResponse {
+  public static class PropertyContent {
+    private String statKey;
+
+    private List<String> values;
+
+    // Numeric properties come back as data rather than values
+    private List<Double> data;
+
+    public String getStatKey() {
+      return statKey;
+    }
+
+    public void setStatKey(final String statKey) {
+      this.statKey = statKey;
+    }
+
+    public List<String> getValues() {
+      return values;
+    }
+
+    public void setValues(final List<String> values) {
+      this.values = values;
+    }
+
+    public List<Double> getData() {
+      return data;
+    }
+
+    public void setData(final List<Double> data) {
+      this.data = data;
+    }
+  }
+
+  public static class PropertyContents {
+    @JsonAlias({"property-content"})
+    private List<PropertyContent> propertyContent;
+
+    public List<PropertyContent> getPropertyContent() {
+      return propertyContent;
+    }
+
+    public void setPropertyContent(final List<PropertyContent> propertyContent) {
+      this.propertyContent = propertyContent;
+    }
+  }
+
+  public static class ResourceProperties {
+    private String resourceId;
+
+    @JsonAlias({"property-contents"})
+    private PropertyContents propertyContents;
+
+    public String getResourceId() {
+      return resourceId;
+    }
+
+    public void setResourceId(final String resourceId) {
+      this.resourceId = resourceId;
+    }
+
+    public PropertyContents getPropertyContents() {
+      return propertyContents;
+    }
+
+    public void setPropertyContents(final PropertyContents propertyContents) {
+      this.propertyContents = propertyContents;
+    }
+  }
+
+  private List<ResourceProperties> values;
+
+  public List<ResourceProperties> getValues() {
+    return values;
+  }
+
+  public void setValues(final List<ResourceProperties> values) {
+    this.values = values;
+  }
+}
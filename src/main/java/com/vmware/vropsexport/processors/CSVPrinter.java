@@ -34,7 +34,6 @@ import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Iterator;
 import org.apache.http.HttpException;
 
 @SuppressWarnings("WeakerAccess")
@@ -79,6 +78,22 @@ public class CSVPrinter implements RowsetProcessor {
     this.csvConfig = csvConfig != null ? csvConfig : new CSVConfig();
   }
 
+  @Override
+  public void flush() throws ExporterException {
+    try {
+      synchronized (bw) {
+        bw.flush();
+      }
+    } catch (final IOException e) {
+      throw new ExporterException(e);
+    }
+  }
+
+  @Override
+  public boolean isStreaming() {
+    return true;
+  }
+
   @Override
   public void close() {
     // Nothing to do
@@ -110,7 +125,7 @@ public class CSVPrinter implements RowsetProcessor {
   public void process(final Rowset rowset, final RowMetadata meta) throws ExporterException {
     try {
       synchronized (bw) {
-        for (final Row row : rowset.getRows().values()) {
+        for (final Row row : rowset.getRows()) {
           final long t = row.getTimestamp();
           if (df != null) {
             bw.write("\"" + df.format(new Date(t)) + "\"");
@@ -121,13 +136,19 @@ public class CSVPrinter implements RowsetProcessor {
           bw.write("\"");
           bw.write(dp.getResourceName(rowset.getResourceId()));
           bw.write("\"");
-          final Iterator<Object> itor = row.iterator(meta);
-          while (itor.hasNext()) {
-            final Object o = itor.next();
-            bw.write(csvConfig.getDelimiter());
-            bw.write("\"");
-            bw.write(o != null ? o.toString() : "");
-            bw.write('"');
+          // Same field order as Row.iterator(), but without boxing the metrics.
+          final int[] insertionPoints = meta.getPropInsertionPoints();
+          final int nProps = row.getNumProps();
+          final int nMetrics = row.getNumMetrics();
+          int pc = 0;
+          for (int mc = 0; mc <= nMetrics; ++mc) {
+            while (pc < nProps && insertionPoints[pc] == mc) {
+              final String p = row.getProp(pc++);
+              writeField(p != null ? p : "");
+            }
+            if (mc < nMetrics) {
+              writeField(row.hasMetric(mc) ? Double.toString(row.getMetricValue(mc)) : "");
+            }
           }
           bw.newLine();
           bw.flush();
@@ -137,4 +158,11 @@ public class CSVPrinter implements RowsetProcessor {
       throw new ExporterException(e);
     }
   }
+
+  private void writeField(final String s) throws IOException {
+    bw.write(csvConfig.getDelimiter());
+    bw.write("\"");
+    bw.write(s);
+    bw.write('"');
+  }
 }
@@ -18,7 +18,6 @@
 package com.vmware.vropsexport.processors;
 
 import com.fasterxml.jackson.core.JsonEncoding;
-import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.vmware.vropsexport.Config;
 import com.vmware.vropsexport.DataProvider;
@@ -29,6 +28,7 @@ import com.vmware.vropsexport.RowsetProcessor;
 import com.vmware.vropsexport.RowsetProcessorFacotry;
 import com.vmware.vropsexport.elasticsearch.ElasticSearchConfig;
 import com.vmware.vropsexport.exceptions.ExporterException;
+import com.vmware.vropsexport.json.Json;
 import com.vmware.vropsexport.json.JsonProducer;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -36,13 +36,8 @@ import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.SocketTimeoutException;
 import java.text.DateFormat;
-import java.util.Collection;
 import java.util.List;
-import java.util.Map;
-import java.util.UUID;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
 import org.apache.http.ConnectionClosedException;
 import org.apache.http.Header;
 import org.apache.http.HttpException;
@@ -131,13 +126,9 @@ public class ElasticSearchIndexer implements RowsetProcessor {
   @Override
   public void process(final Rowset rowset, final RowMetadata meta) throws ExporterException {
     try {
-      final AtomicInteger counter = new AtomicInteger();
-      final Collection<List<Map.Entry<Long, Row>>> chunks =
-          rowset.getRows().entrySet().stream()
-              .collect(Collectors.groupingBy(x -> counter.getAndIncrement() / bulkSize))
-              .values();
-      for (final List<Map.Entry<Long, Row>> chunk : chunks) {
-        handleChunk(chunk, rowset, meta);
+      final List<Row> rows = rowset.getRows();
+      for (int i = 0; i < rows.size(); i += bulkSize) {
+        handleChunk(rows.subList(i, Math.min(i + bulkSize, rows.size())), rowset, meta);
       }
     } catch (final IOException | HttpException | InterruptedException e) {
       throw new ExporterException(e);
@@ -145,25 +136,28 @@ public class ElasticSearchIndexer implements RowsetProcessor {
   }
 
   private void handleChunk(
-      final List<Map.Entry<Long, Row>> rows, final Rowset rowset, final RowMetadata meta)
+      final List<Row> rows, final Rowset rowset, final RowMetadata meta)
       throws IOException, HttpException, InterruptedException, ExporterException {
     final ByteArrayOutputStream out = new ByteArrayOutputStream();
-    final JsonFactory jf = new JsonFactory();
-    final JsonGenerator generator = jf.createGenerator(out, JsonEncoding.UTF8);
+    final JsonGenerator generator = Json.getFactory().createGenerator(out, JsonEncoding.UTF8);
     final JsonProducer producer = new JsonProducer(generator, dataProvider, dateFormat);
-    for (final Map.Entry<Long, Row> row : rows) {
+    final String fields = fieldSetId(meta);
+    for (final Row row : rows) {
       generator.writeStartObject();
       generator.writeObjectFieldStart("index");
       generator.writeStringField("_index", index);
       if (type != null) {
         generator.writeStringField("_type", type);
       }
-      generator.writeStringField("_id", UUID.randomUUID().toString());
+      // Derive the id from the sample, so that delivering it again overwrites it. Definitions that
+      // export other fields of the same resources into the same index get documents of their own.
+      generator.writeStringField(
+          "_id", rowset.getResourceId() + "-" + row.getTimestamp() + "-" + fields);
       generator.writeEndObject();
       generator.writeEndObject();
       generator.flush();
       out.write('\n');
-      producer.produceSingleElastic(row.getValue(), row.getKey(), rowset.getResourceId(), meta);
+      producer.produceSingleElastic(row, row.getTimestamp(), rowset.getResourceId(), meta);
       generator.flush();
       out.write('\n');
     }
@@ -242,6 +236,12 @@ public class ElasticSearchIndexer implements RowsetProcessor {
     }
   }
 
+  /** Identifies the set of fields a document holds. Doesn't depend on the order of the fields. */
+  private static String fieldSetId(final RowMetadata meta) {
+    return Integer.toHexString(
+        meta.getMetricMap().keySet().hashCode() * 31 + meta.getPropMap().keySet().hashCode());
+  }
+
   @Override
   public void close() throws ExporterException {
     try {
@@ -18,7 +18,6 @@
 package com.vmware.vropsexport.processors;
 
 import com.fasterxml.jackson.core.JsonEncoding;
-import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.vmware.vropsexport.Config;
 import com.vmware.vropsexport.DataProvider;
@@ -28,6 +27,7 @@ import com.vmware.vropsexport.RowsetProcessor;
 import com.vmware.vropsexport.RowsetProcessorFacotry;
 import com.vmware.vropsexport.exceptions.ExporterException;
 import com.vmware.vropsexport.json.JsonConfig;
+import com.vmware.vropsexport.json.Json;
 import com.vmware.vropsexport.json.JsonProducer;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -69,8 +69,7 @@ public class JsonPrinter implements RowsetProcessor {
       throws ExporterException {
     try {
       this.format = format;
-      final JsonFactory jf = new JsonFactory();
-      generator = jf.createGenerator(out, JsonEncoding.UTF8);
+      generator = Json.getFactory().createGenerator(out, JsonEncoding.UTF8);
       produder = new JsonProducer(generator, dp, dateFormat);
     } catch (final IOException e) {
       throw new ExporterException(e);
@@ -92,6 +91,11 @@ public class JsonPrinter implements RowsetProcessor {
     produder.produce(rowset, meta, format);
   }
 
+  @Override
+  public boolean isStreaming() {
+    return format != JsonConfig.JsonFormat.compact;
+  }
+
   @Override
   public void close() throws ExporterException {
     try {
@@ -19,7 +19,6 @@ package com.vmware.vropsexport.processors;
 
 import com.vmware.vropsexport.Config;
 import com.vmware.vropsexport.LRUCache;
-import com.vmware.vropsexport.Row;
 import com.vmware.vropsexport.RowMetadata;
 import com.vmware.vropsexport.Rowset;
 import com.vmware.vropsexport.RowsetProcessor;
@@ -49,9 +48,7 @@ public class ParentSplicer implements RowsetProcessor {
   @Override
   public void process(final Rowset rowset, final RowMetadata meta) throws ExporterException {
     spliceRows(childRowset, rowset);
-    synchronized (rowsetCache) {
-      rowsetCache.put(cacheKey, rowset);
-    }
+    rowsetCache.put(cacheKey, rowset);
   }
 
   @Override
@@ -60,19 +57,14 @@ public class ParentSplicer implements RowsetProcessor {
   }
 
   public static void spliceRows(final Rowset child, final Rowset parent) {
-    for (final Row pRow : parent.getRows().values()) {
-      final Row cRow = child.getRows().get(pRow.getTimestamp());
-      if (cRow != null) {
-        for (int j = 0; j < pRow.getNumMetrics(); ++j) {
-          final Double d = pRow.getMetric(j);
-          if (d != null) {
-            cRow.setMetric(j, d);
-          }
-        }
-        for (int j = 0; j < pRow.getNumProps(); ++j) {
-          final String s = pRow.getProp(j);
+    for (int i = 0; i < parent.size(); ++i) {
+      final int c = child.indexOf(parent.getTimestamp(i));
+      if (c != -1) {
+        parent.copyDefinedMetrics(i, child, c);
+        for (int j = 0; j < parent.getNumProps(); ++j) {
+          final String s = parent.getProp(i, j);
           if (s != null) {
-            cRow.setProp(j, s);
+            child.setProp(c, j, s);
           }
         }
       }
@@ -31,6 +31,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.util.HashMap;
 import java.util.Map;
 import javax.sql.DataSource;
@@ -155,7 +156,7 @@ public class SQLDumper implements RowsetProcessor {
       try (final Connection conn = ds.getConnection()) {
         stmt = new NamedParameterStatement(conn, sql);
         int rowsInBatch = 0;
-        for (final Row row : rowset.getRows().values()) {
+        for (final Row row : rowset.getRows()) {
           for (final String fld : stmt.getParameterNames()) {
             // Deal with special cases
             //
@@ -168,7 +169,11 @@ public class SQLDumper implements RowsetProcessor {
               //
               int p = meta.getMetricIndexByAlias(fld);
               if (p != -1) {
-                stmt.setObject(fld, row.getMetric(p));
+                if (row.hasMetric(p)) {
+                  stmt.setDouble(fld, row.getMetricValue(p));
+                } else {
+                  stmt.setNull(fld, Types.DOUBLE);
+                }
               } else {
                 // Not a metric, so it must be a property then.
                 //
@@ -76,28 +76,34 @@ public class WavefrontPusher implements RowsetProcessor {
   @Override
   public void process(final Rowset rowset, final RowMetadata meta) throws ExporterException {
     try {
-      for (final Row r : rowset.getRows().values()) {
+      final String resourceName = dp.getResourceName(rowset.getResourceId());
+      for (final Row r : rowset.getRows()) {
         final long ts = r.getTimestamp();
-        final String resourceName = dp.getResourceName(rowset.getResourceId());
+
+        // The point tags are the same for every metric in the row, so build them once.
+        final Map<String, String> tags = new HashMap<>(meta.getPropMap().size());
+        for (final Map.Entry<String, Integer> prop : meta.getPropMap().entrySet()) {
+          final Integer p = prop.getValue();
+          if (p == null) {
+            continue;
+          }
+          tags.put(meta.getAliasForProp(prop.getKey()), r.getProp(p));
+        }
         for (final Map.Entry<String, Integer> metric : meta.getMetricMap().entrySet()) {
 
           // Build string on the format <metricName> <metricValue> [<timestamp>] source=<source>
           // [pointTags]
           //
-          final Double d = r.getMetric(metric.getValue());
-          if (d == null) {
+          final int idx = metric.getValue();
+          if (!r.hasMetric(idx)) {
             continue;
           }
-          final Map<String, String> tags = new HashMap<>(meta.getPropMap().size());
-          for (final Map.Entry<String, Integer> prop : meta.getPropMap().entrySet()) {
-            final Integer p = prop.getValue();
-            if (p == null) {
-              continue;
-            }
-            tags.put(meta.getAliasForProp(prop.getKey()), r.getProp(p));
-          }
           sender.sendMetric(
-              meta.getAliasForMetric(metric.getKey()), d, ts / 1000, resourceName, tags);
+              meta.getAliasForMetric(metric.getKey()),
+              r.getMetricValue(idx),
+              ts / 1000,
+              resourceName,
+              tags);
         }
       }
     } catch (final IOException | HttpException e) {
@@ -105,6 +111,20 @@ public class WavefrontPusher implements RowsetProcessor {
     }
   }
 
+  @Override
+  public void flush() throws ExporterException {
+    try {
+      sender.flush();
+    } catch (final IOException e) {
+      throw new ExporterException(e);
+    }
+  }
+
+  @Override
+  public boolean isStreaming() {
+    return true;
+  }
+
   @Override
   public void close() throws ExporterException {
     try {
@@ -233,6 +233,38 @@ public class NamedParameterStatement {
     }
   }
 
+  /**
+   * Sets a parameter.
+   *
+   * @param name parameter name
+   * @param value parameter value
+   * @throws SQLException if an error occurred
+   * @throws IllegalArgumentException if the parameter does not exist
+   * @see PreparedStatement#setDouble(int, double)
+   */
+  public void setDouble(final String name, final double value) throws SQLException {
+    final int[] indexes = getIndexes(name);
+    for (final int index : indexes) {
+      statement.setDouble(index, value);
+    }
+  }
+
+  /**
+   * Sets a parameter to SQL NULL.
+   *
+   * @param name parameter name
+   * @param sqlType the SQL type code defined in java.sql.Types
+   * @throws SQLException if an error occurred
+   * @throws IllegalArgumentException if the parameter does not exist
+   * @see PreparedStatement#setNull(int, int)
+   */
+  public void setNull(final String name, final int sqlType) throws SQLException {
+    final int[] indexes = getIndexes(name);
+    for (final int index : indexes) {
+      statement.setNull(index, sqlType);
+    }
+  }
+
   /**
    * Sets a parameter.
    *
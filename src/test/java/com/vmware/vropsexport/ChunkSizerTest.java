@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ChunkSizerTest {
+  @Test
+  public void testGrowsOnFastResponses() {
+    final ChunkSizer cs = new ChunkSizer("test", 10, 1000);
+    for (int i = 0; i < 10; ++i) {
+      cs.reportSuccess(cs.getChunkSize(), 100, 1000, 1000);
+    }
+    Assert.assertEquals(60, cs.getChunkSize());
+
+    // Small requests don't tell us anything about bigger ones.
+    cs.reportSuccess(10, 100, 1000, 1000);
+    Assert.assertEquals(60, cs.getChunkSize());
+  }
+
+  @Test
+  public void testShrinksOnSlowOrBigResponses() {
+    final ChunkSizer cs = new ChunkSizer("test", 100, 1000);
+    cs.reportSuccess(100, ChunkSizer.DEFAULT_TARGET_MILLIS + 1, 1000, 1000);
+    Assert.assertEquals(75, cs.getChunkSize());
+
+    // A second slow response to a request made before we shrank shouldn't shrink us again.
+    cs.reportSuccess(100, ChunkSizer.DEFAULT_TARGET_MILLIS + 1, 1000, 1000);
+    Assert.assertEquals(75, cs.getChunkSize());
+
+    cs.reportSuccess(75, 100, 1000, ChunkSizer.DEFAULT_MAX_SAMPLES + 1);
+    Assert.assertEquals(56, cs.getChunkSize());
+
+    // Within limits, but without enough headroom to grow.
+    cs.reportSuccess(56, ChunkSizer.DEFAULT_TARGET_MILLIS - 1, 1000, 1000);
+    Assert.assertEquals(56, cs.getChunkSize());
+  }
+
+  @Test
+  public void testNeverRetriesFailedSize() {
+    final ChunkSizer cs = new ChunkSizer("test", 100, 1000);
+    cs.reportFailure(100);
+    Assert.assertEquals(50, cs.getChunkSize());
+    for (int i = 0; i < 100; ++i) {
+      cs.reportSuccess(cs.getChunkSize(), 100, 1000, 1000);
+    }
+    Assert.assertEquals(99, cs.getChunkSize());
+  }
+
+  @Test
+  public void testNeverBelowOneOrAboveMax() {
+    final ChunkSizer cs = new ChunkSizer("test", 2000, 1000);
+    Assert.assertEquals(1000, cs.getChunkSize());
+    for (int i = 0; i < 20; ++i) {
+      cs.reportFailure(cs.getChunkSize());
+    }
+    Assert.assertEquals(1, cs.getChunkSize());
+  }
+
+  @Test
+  public void testSaveAndLoad() throws IOException {
+    final File file = File.createTempFile("chunk-sizes", ".properties");
+    try {
+      final ChunkSizer vms = new ChunkSizer("vms", 100, 1000);
+      vms.reportFailure(100);
+      vms.save(file);
+      final ChunkSizer hosts = new ChunkSizer("hosts", 100, 1000);
+      hosts.reportSuccess(100, 100, 1000, 1000);
+      hosts.save(file);
+
+      final ChunkSizer vms2 = new ChunkSizer("vms", 100, 1000);
+      vms2.load(file);
+      Assert.assertEquals(50, vms2.getChunkSize());
+      final ChunkSizer hosts2 = new ChunkSizer("hosts", 100, 1000);
+      hosts2.load(file);
+      Assert.assertEquals(105, hosts2.getChunkSize());
+      final ChunkSizer other = new ChunkSizer("other", 100, 1000);
+      other.load(file);
+      Assert.assertEquals(100, other.getChunkSize());
+    } finally {
+      Assert.assertTrue(file.delete());
+    }
+  }
+}
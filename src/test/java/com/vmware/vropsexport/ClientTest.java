@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport;
+
+import com.vmware.vropsexport.models.PageOfResources;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.http.HttpException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Exercises the REST client against a {@link MockSuiteApi}. */
+public class ClientTest {
+  private static final String RESOURCES = "/suite-api/api/resources";
+
+  private MockSuiteApi api;
+
+  @Before
+  public void startup() throws Exception {
+    api = new MockSuiteApi(20, 10, 10, 8);
+  }
+
+  @After
+  public void shutdown() {
+    api.close();
+  }
+
+  @Test
+  public void testLimitsRequestsInFlight() throws Exception {
+    final Client client = newClient(api.getUrl());
+    client.setMaxConcurrentRequests(2);
+    final InputStream first = client.getStream(RESOURCES);
+    final InputStream second = client.getStream(RESOURCES);
+    assertWaits(client, first);
+    second.close();
+  }
+
+  @Test
+  public void testLowersLimitWithRequestsInFlight() throws Exception {
+    final Client client = newClient(api.getUrl());
+    client.setMaxConcurrentRequests(2);
+    final InputStream first = client.getStream(RESOURCES);
+    final InputStream second = client.getStream(RESOURCES);
+    client.setMaxConcurrentRequests(1);
+
+    // The second stream alone uses up the new limit.
+    first.close();
+    assertWaits(client, second);
+  }
+
+  @Test
+  public void testLimitsRequestsPerNode() throws Exception {
+    try (final MockSuiteApi other = new MockSuiteApi(20, 10, 10, 8)) {
+      final Client client = newClient(api.getUrl(), other.getUrl());
+      Assert.assertEquals(20, client.getMaxConcurrentRequests());
+      client.setMaxConcurrentRequests(1);
+
+      // Setting the limit to what it already is mustn't change it.
+      client.setMaxConcurrentRequests(client.getMaxConcurrentRequests());
+      Assert.assertEquals(1, client.getMaxConcurrentRequests());
+
+      // One request in flight on each node uses up all the permits.
+      final long before = api.getRequests();
+      final long otherBefore = other.getRequests();
+      final InputStream first = client.getStream(RESOURCES);
+      final InputStream second = client.getStream(RESOURCES);
+      Assert.assertEquals(before + 1, api.getRequests());
+      Assert.assertEquals(otherBefore + 1, other.getRequests());
+      assertWaits(client, first, second);
+    }
+  }
+
+  @Test
+  public void testAsyncRequests() throws Exception {
+    final Client client = newClient(api.getUrl());
+    final CompletableFuture<PageOfResources> vms =
+        client.getJsonAsync(RESOURCES, PageOfResources.class, "resourceKind=VirtualMachine");
+    final CompletableFuture<PageOfResources> hosts =
+        client.getJsonAsync(RESOURCES, PageOfResources.class, "resourceKind=HostSystem");
+    Assert.assertEquals(20, Client.await(vms).getResourceList().size());
+    Assert.assertEquals(2, Client.await(hosts).getResourceList().size());
+    try {
+      Client.await(client.getJsonAsync("/suite-api/api/nonexistent", PageOfResources.class));
+      Assert.fail("Expected an exception");
+    } catch (final HttpException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testQueuesAsyncRequestsBeyondLimit() throws Exception {
+    final Client client = newClient(api.getUrl());
+    client.setMaxConcurrentRequests(2);
+    api.setLatency(20);
+    final List<CompletableFuture<PageOfResources>> futures = new ArrayList<>();
+    for (int i = 0; i < 20; ++i) {
+      futures.add(
+          client.getJsonAsync(RESOURCES, PageOfResources.class, "resourceKind=VirtualMachine"));
+    }
+    for (final CompletableFuture<PageOfResources> f : futures) {
+      Assert.assertEquals(20, Client.await(f).getResourceList().size());
+    }
+    Assert.assertTrue(api.getMaxInFlight() <= 2);
+  }
+
+  @Test
+  public void testSpreadsRequestsOverNodes() throws Exception {
+    try (final MockSuiteApi other = new MockSuiteApi(20, 10, 10, 8)) {
+      final Client client = newClient(api.getUrl(), other.getUrl());
+      final long before = api.getRequests();
+      final long otherBefore = other.getRequests();
+      for (int i = 0; i < 10; ++i) {
+        client.getJson(RESOURCES, PageOfResources.class);
+      }
+      Assert.assertTrue(api.getRequests() > before);
+      Assert.assertTrue(other.getRequests() > otherBefore);
+    }
+  }
+
+  @Test
+  public void testFailsOverToReachableNode() throws Exception {
+    final int deadPort;
+    try (final ServerSocket socket = new ServerSocket(0)) {
+      deadPort = socket.getLocalPort();
+    }
+    final Client client = newClient("https://localhost:" + deadPort, api.getUrl());
+    for (int i = 0; i < 10; ++i) {
+      final PageOfResources page =
+          client.getJson(RESOURCES, PageOfResources.class, "resourceKind=VirtualMachine");
+      Assert.assertEquals(20, page.getResourceList().size());
+    }
+  }
+
+  /** Checks that a request waits for a permit until the given streams are closed. */
+  private static void assertWaits(final Client client, final InputStream... open)
+      throws Exception {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final Future<?> next =
+          executor.submit(
+              () -> {
+                client.getStream(RESOURCES).close();
+                return null;
+              });
+      try {
+        next.get(200, TimeUnit.MILLISECONDS);
+        Assert.fail("Expected the request to wait");
+      } catch (final TimeoutException e) {
+        // Expected
+      }
+      for (final InputStream is : open) {
+        is.close();
+      }
+      next.get(10, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static Client newClient(final String... urls) throws Exception {
+    return new Client(Arrays.asList(urls), MockSuiteApi.loadKeyStore(), false)
+        .login(MockSuiteApi.USERNAME, MockSuiteApi.PASSWORD);
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport;
+
+import java.io.File;
+import java.io.FileReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DaemonTest {
+  private static final long LOOKBACK = 3600000;
+
+  private static final long INTERVAL = 300000;
+
+  @Test
+  public void testOutputFile() {
+    // Noon UTC falls on the same date in every time zone.
+    final File f = Daemon.outputFile("out/data.csv", "defs/vms.yaml", 1617364800000L);
+    Assert.assertEquals("out", f.getParent());
+    Assert.assertTrue(f.getName().matches("data-vms-20210402T\\d{4}\\.csv"));
+    Assert.assertTrue(Daemon.outputFile("data", "vms.yaml", 0).getName().startsWith("data-vms-"));
+  }
+
+  @Test
+  public void testNextRunIsAligned() {
+    Assert.assertEquals(900000, Daemon.nextRun(1, 900000));
+    Assert.assertEquals(1800000, Daemon.nextRun(900000, 900000));
+  }
+
+  @Test
+  public void testRunsUntilStopped() throws Exception {
+    final File dir = Files.createTempDirectory("vrops-export-daemon").toFile();
+    try (final MockSuiteApi api = new MockSuiteApi(100, 10, 10, 8)) {
+      final Client client =
+          new Client(api.getUrl(), MockSuiteApi.loadKeyStore(), false)
+              .login(MockSuiteApi.USERNAME, MockSuiteApi.PASSWORD);
+      final Config conf = ConfigLoader.parse(new FileReader("src/test/resources/mock-export.yaml"));
+      final Exporter exporter = new Exporter(client, 4, conf, false, false, 1000, 1000);
+      exporter.setKeepAlive(true);
+      exporter.setIncremental("mock-export.yaml");
+      final Daemon daemon = new Daemon(client, LOOKBACK);
+      daemon.addJob(
+          new Daemon.Job(
+              "mock-export.yaml",
+              exporter,
+              conf,
+              200,
+              new File(dir, "out.csv").getPath(),
+              null,
+              null));
+      final Thread t = new Thread(daemon::run);
+      t.start();
+      final long deadline = System.currentTimeMillis() + 30000;
+      while (daemon.getCompletedRuns() == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50);
+      }
+
+      // Let it go around a few more times. Unless we cross a rollup boundary, there's nothing new
+      // to export, so there shouldn't be any more files.
+      Thread.sleep(1000);
+      daemon.stop();
+      t.join(30000);
+      Assert.assertFalse(t.isAlive());
+
+      final File[] files = dir.listFiles();
+      Assert.assertNotNull(files);
+      Assert.assertTrue(files.length >= 1);
+      Assert.assertEquals(files.length, daemon.getCompletedRuns());
+      int rows = 0;
+      for (final File f : files) {
+        final List<String> lines = Files.readAllLines(f.toPath(), StandardCharsets.UTF_8);
+        rows += lines.size() - 1;
+      }
+
+      // The first run gets the whole lookback, end points included. Later ones one sample each.
+      Assert.assertEquals(api.getNumVms() * (LOOKBACK / INTERVAL + files.length), rows);
+    } finally {
+      for (final File f : Arrays.asList(dir.listFiles())) {
+        Assert.assertTrue(f.delete());
+      }
+      Assert.assertTrue(dir.delete());
+    }
+  }
+}
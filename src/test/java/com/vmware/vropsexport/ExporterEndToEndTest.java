@@ -0,0 +1,515 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Runs complete exports against a {@link MockSuiteApi}. */
+public class ExporterEndToEndTest {
+  private static final Logger log = LogManager.getLogger(ExporterEndToEndTest.class);
+
+  private static final long INTERVAL = 300000;
+
+  private static final int SAMPLES = 12;
+
+  private static final long BEGIN = 1617321000000L;
+
+  private static final long END = BEGIN + (SAMPLES - 1) * INTERVAL;
+
+  // Columns in mock-export.yaml
+  private static final int RES_NAME = 1;
+
+  private static final int M0 = 3;
+
+  private static final int HOST_M0 = 7;
+
+  private static final int GUEST_OS = 8;
+
+  private static final int HOST_CPU = 9;
+
+  private static final int N_COLUMNS = 10;
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private MockSuiteApi api;
+
+  @After
+  public void shutdown() {
+    if (api != null) {
+      api.close();
+    }
+  }
+
+  @Test
+  public void testExport() throws Exception {
+    api = new MockSuiteApi(500, 25, 50, 8);
+    final String[] lines = export(4, 1000);
+    assertComplete(lines);
+
+    // Properties and parents should all come from bulk queries.
+    Assert.assertTrue(api.getPropertyQueries() > 0);
+    Assert.assertEquals(0, api.getPropertyLookups());
+    Assert.assertTrue(api.getRelationshipQueries() > 0);
+    Assert.assertEquals(0, api.getParentLookups());
+  }
+
+  @Test
+  public void testFallsBackWithoutBulkQueries() throws Exception {
+    startApi();
+    api.setBulkQueries(false);
+    final String[] lines = export(4, 1000);
+    assertComplete(lines);
+    Assert.assertTrue(api.getPropertyLookups() >= api.getNumVms());
+    Assert.assertTrue(api.getParentLookups() >= api.getNumVms());
+  }
+
+  @Test
+  public void testExportsAllPages() throws Exception {
+    api = new MockSuiteApi(500, 25, 10, 8);
+    final String[] lines = export(4, 1000, 64, null);
+    assertComplete(lines);
+  }
+
+  @Test
+  public void testSplitsChunksWhenServerDropsConnection() throws Exception {
+    startApi();
+    api.setMaxResourcesPerQuery(10);
+    final String[] lines = export(2, 1000);
+    Assert.assertTrue(api.getDroppedConnections() > 0);
+    assertComplete(lines);
+  }
+
+  @Test
+  public void testSplitsTimeRangeIntoWindows() throws Exception {
+    startApi();
+    final Exporter exporter = newExporter(4, 1000, 1000);
+    exporter.setWindow(3 * INTERVAL);
+    final String[] lines = run(exporter, END);
+    assertComplete(lines);
+    Assert.assertEquals(0, api.getDroppedConnections());
+    Assert.assertTrue(api.getMetricQueries() >= SAMPLES / 3);
+  }
+
+  @Test
+  public void testSplitsWindowsWhenServerDropsConnection() throws Exception {
+    startApi();
+    api.setMaxSamplesPerQuery(400);
+    final Exporter exporter = newExporter(2, 1000, 1000);
+    exporter.setWindow(6 * INTERVAL);
+    final String[] lines = run(exporter, END);
+    Assert.assertTrue(api.getDroppedConnections() > 0);
+    assertComplete(lines);
+  }
+
+  @Test
+  public void testWritesRowsInBatches() throws Exception {
+    startApi();
+    final Exporter exporter = newExporter(4, 1000, 1000);
+    exporter.setRowBatch(5);
+    final String[] lines = run(exporter, END);
+    assertComplete(lines);
+    assertRowsInOrder(lines);
+  }
+
+  @Test
+  public void testFinishesResourcesOnPostThreads() throws Exception {
+    startApi();
+    final Exporter exporter = newExporter(2, 1000, 1000);
+    exporter.setPostThreads(4);
+    final String[] lines = run(exporter, END);
+    assertComplete(lines);
+
+    // Batches written from post threads still arrive in order.
+    final Exporter batching = newExporter(2, 1000, 1000);
+    batching.setPostThreads(4);
+    batching.setRowBatch(5);
+    final String[] batched = run(batching, END);
+    assertData(batched, api.getNumVms());
+    assertRowsInOrder(batched);
+  }
+
+  @Test
+  public void testSkipsUnrequestedSeries() throws Exception {
+    startApi();
+    final Exporter exporter = newExporter(2, 1000, 1000);
+    run(exporter, END);
+    Assert.assertEquals(0, exporter.getSkippedSeries());
+
+    api.setIgnoreRequestedStats(true);
+    final Exporter skipping = newExporter(2, 1000, 1000);
+    final String[] lines = run(skipping, END);
+    assertComplete(lines);
+
+    // Each VM has six metrics we don't export.
+    Assert.assertTrue(skipping.getSkippedSeries() >= 6L * api.getNumVms());
+    Assert.assertTrue(skipping.getSkippedBytes() > 0);
+  }
+
+  @Test
+  public void testParsesSeriesWithKeyFirst() throws Exception {
+    startApi();
+    api.setStatKeyFirst(true);
+    final Exporter exporter = newExporter(2, 1000, 1000);
+    assertData(run(exporter, END), api.getNumVms());
+
+    api.setIgnoreRequestedStats(true);
+    final Exporter skipping = newExporter(2, 1000, 1000);
+    assertComplete(run(skipping, END));
+    Assert.assertTrue(skipping.getSkippedSeries() >= 6L * api.getNumVms());
+  }
+
+  @Test
+  public void testExportsWithTinyMemoryBudget() throws Exception {
+    startApi();
+    final Exporter exporter = newExporter(4, 1000, 1000);
+    exporter.setMemoryBudget(1);
+    final String[] lines = run(exporter, END);
+    assertComplete(lines);
+  }
+
+  @Test
+  public void testExportsWithFewRequestPermits() throws Exception {
+    startApi();
+    final Client client = newClient();
+    client.setMaxConcurrentRequests(2);
+    final Exporter exporter = newExporter(client, 8, 1000, 1000);
+    exporter.setVirtualThreads(VirtualThreads.isAvailable());
+    final String[] lines = run(exporter, END);
+    assertComplete(lines);
+  }
+
+  @Test
+  public void testChunksForRequestLimitRatherThanThreads() throws Exception {
+    startApi();
+    final Client client = newClient();
+    client.setMaxConcurrentRequests(2);
+    final Exporter exporter = newExporter(client, 64, 1000, 1000);
+    final long before = api.getMetricQueries();
+    assertComplete(run(exporter, END));
+
+    // Two requests at a time only need two chunks to keep busy, not one per thread.
+    Assert.assertTrue(api.getMetricQueries() - before <= 4);
+  }
+
+  @Test
+  public void testRemembersChunkSizeBetweenRuns() throws Exception {
+    final File stateDir = tmp.newFolder();
+    startApi();
+    api.setMaxResourcesPerQuery(10);
+    export(2, 1000, 1000, stateDir);
+    final long firstRun = api.getDroppedConnections();
+    Assert.assertTrue(firstRun > 0);
+    export(2, 1000, 1000, stateDir);
+    Assert.assertTrue(api.getDroppedConnections() - firstRun < firstRun);
+  }
+
+  @Test
+  public void testReusesMetadataBetweenRuns() throws Exception {
+    final File stateDir = tmp.newFolder();
+    startApi();
+    final Map<MetadataCache.Kind, Long> ttls = new EnumMap<>(MetadataCache.Kind.class);
+    export(4, 1000, 1000, stateDir, ttls);
+    final long propertyQueries = api.getPropertyQueries();
+    final long relationshipQueries = api.getRelationshipQueries();
+    Assert.assertTrue(propertyQueries > 0);
+    Assert.assertTrue(relationshipQueries > 0);
+
+    final String[] lines = export(4, 1000, 1000, stateDir, ttls);
+    assertData(lines, api.getNumVms());
+    Assert.assertEquals(propertyQueries, api.getPropertyQueries());
+    Assert.assertEquals(relationshipQueries, api.getRelationshipQueries());
+
+    // Once the metadata has expired, we have to ask again.
+    ttls.put(MetadataCache.Kind.PROPERTIES, 0L);
+    Thread.sleep(10);
+    export(4, 1000, 1000, stateDir, ttls);
+    Assert.assertTrue(api.getPropertyQueries() > propertyQueries);
+    Assert.assertEquals(relationshipQueries, api.getRelationshipQueries());
+  }
+
+  @Test
+  public void testIncrementalExport() throws Exception {
+    final File stateDir = tmp.newFolder();
+    startApi();
+    final String key = "src/test/resources/mock-export.yaml";
+    Exporter exporter = newExporter(4, 1000, 1000);
+    exporter.setStateDir(stateDir);
+    exporter.setIncremental(key);
+    String[] lines = run(exporter, END);
+    assertData(lines, api.getNumVms());
+    final long metricQueries = api.getMetricQueries();
+
+    // The checkpoints are written next to the state files and then moved into place.
+    for (final String name : stateDir.list()) {
+      Assert.assertFalse(name, name.endsWith(".tmp"));
+    }
+
+    // Nothing new, so there's nothing to ask for.
+    exporter = newExporter(4, 1000, 1000);
+    exporter.setStateDir(stateDir);
+    exporter.setIncremental(key);
+    lines = run(exporter, END);
+    Assert.assertEquals(1, lines.length);
+    Assert.assertEquals(metricQueries, api.getMetricQueries());
+
+    // Only the new samples should be exported.
+    exporter = newExporter(4, 1000, 1000);
+    exporter.setStateDir(stateDir);
+    exporter.setIncremental(key);
+    lines = run(exporter, END + 3 * INTERVAL);
+    Assert.assertEquals(1 + api.getNumVms() * 3, lines.length);
+    final Set<String> expected = new HashSet<>();
+    for (int s = SAMPLES; s < SAMPLES + 3; ++s) {
+      expected.add(Double.toString(MockSuiteApi.valueOf(0, 0, BEGIN + s * INTERVAL)));
+    }
+    final Set<String> actual = new HashSet<>();
+    for (int i = 1; i < lines.length; ++i) {
+      final String[] cols = lines[i].split(",");
+      if ("vm-000000".equals(unquote(cols[RES_NAME]))) {
+        actual.add(unquote(cols[M0]));
+      }
+    }
+    Assert.assertEquals(expected, actual);
+  }
+
+  @Test
+  public void testResumesExport() throws Exception {
+    final File stateDir = tmp.newFolder();
+    startApi();
+    final String[] full = export(4, 1000);
+
+    // Pretend an earlier attempt delivered the first 50 VMs before it died halfway through
+    // writing some more.
+    final File file = Journal.getFile(stateDir, "test");
+    Journal journal = Journal.open(file, BEGIN, END);
+    final StringBuilder committed = new StringBuilder(full[0]).append('\n');
+    for (int i = 1; i < full.length; ++i) {
+      final String name = unquote(full[i].split(",")[RES_NAME]);
+      if (Integer.parseInt(name.substring("vm-".length())) < 50) {
+        committed.append(full[i]).append('\n');
+      }
+    }
+    for (int i = 0; i < 50; ++i) {
+      journal.delivered(resourceId(i));
+    }
+    final byte[] prefix = committed.toString().getBytes(StandardCharsets.UTF_8);
+    journal.commit(prefix.length);
+    journal.delivered(resourceId(50));
+    journal.close();
+
+    journal = Journal.open(file, 0, 0);
+
+    final long samplesServed = api.getSamplesServed();
+    final Exporter exporter = newExporter(4, 1000, 1000);
+    exporter.setJournal(journal);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(prefix);
+    exporter.exportTo(out, journal.getBegin(), journal.getEnd(), null, null, true);
+    final String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+    Assert.assertEquals(full.length, lines.length);
+    assertData(lines, api.getNumVms());
+    Assert.assertTrue(api.getSamplesServed() - samplesServed < samplesServed);
+
+    // The export completed, so there's nothing left to resume.
+    Assert.assertFalse(file.exists());
+  }
+
+  @Test
+  public void testKeepsJournalWhenSinkFailsMidResource() throws Exception {
+    startApi();
+    final File file = Journal.getFile(tmp.getRoot(), "test");
+    final Exporter exporter = newExporter(4, 1000, 1000);
+    exporter.setRowBatch(5);
+    exporter.setJournal(Journal.open(file, BEGIN, END));
+
+    // Rows are flushed one at a time, so the output fails in the middle of some resource.
+    final OutputStream out =
+        new OutputStream() {
+          private int written;
+
+          @Override
+          public void write(final int b) throws IOException {
+            if (++written > 20000) {
+              throw new IOException("Disk full");
+            }
+          }
+        };
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final Future<?> export =
+          executor.submit(
+              () -> {
+                exporter.exportTo(out, BEGIN, END, null, null, true);
+                return null;
+              });
+      try {
+        export.get(60, TimeUnit.SECONDS);
+      } catch (final ExecutionException e) {
+        // Failing is fine, as long as we don't hang.
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    Assert.assertTrue(file.exists());
+  }
+
+  @Test
+  public void testThroughputWithLatency() throws Exception {
+    api = new MockSuiteApi(2000, 50, 100, 16);
+    api.setLatency(20);
+    final long start = System.currentTimeMillis();
+    final String[] lines = export(8, 1000);
+    final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+    Assert.assertEquals(1 + api.getNumVms() * SAMPLES, lines.length);
+    log.info(
+        String.format(
+            "Exported %d rows in %d ms (%.0f rows/s). %d requests, %d samples served",
+            lines.length - 1,
+            elapsed,
+            (lines.length - 1) * 1000.0 / elapsed,
+            api.getRequests(),
+            api.getSamplesServed()));
+  }
+
+  /** Starts the mock server most tests use. */
+  private void startApi() throws Exception {
+    api = new MockSuiteApi(200, 20, 10, 8);
+  }
+
+  /** Checks that the export holds every sample of every VM. */
+  private void assertComplete(final String[] lines) {
+    Assert.assertEquals(1 + api.getNumVms() * SAMPLES, lines.length);
+    assertData(lines, api.getNumVms());
+  }
+
+  private String[] export(final int threads, final int maxRows) throws Exception {
+    return export(threads, maxRows, 1000, null);
+  }
+
+  private String[] export(
+      final int threads, final int maxRows, final int pageSize, final File stateDir)
+      throws Exception {
+    return export(threads, maxRows, pageSize, stateDir, null);
+  }
+
+  private String[] export(
+      final int threads,
+      final int maxRows,
+      final int pageSize,
+      final File stateDir,
+      final Map<MetadataCache.Kind, Long> metadataTtls)
+      throws Exception {
+    final Exporter exporter = newExporter(threads, maxRows, pageSize);
+    exporter.setStateDir(stateDir);
+    exporter.setMetadataTtls(metadataTtls);
+    return run(exporter, END);
+  }
+
+  private Exporter newExporter(final int threads, final int maxRows, final int pageSize)
+      throws Exception {
+    return newExporter(newClient(), threads, maxRows, pageSize);
+  }
+
+  private Client newClient() throws Exception {
+    return new Client(api.getUrl(), MockSuiteApi.loadKeyStore(), false)
+        .login(MockSuiteApi.USERNAME, MockSuiteApi.PASSWORD);
+  }
+
+  private Exporter newExporter(
+      final Client client, final int threads, final int maxRows, final int pageSize)
+      throws Exception {
+    final Config conf = ConfigLoader.parse(new FileReader("src/test/resources/mock-export.yaml"));
+    return new Exporter(client, threads, conf, false, false, maxRows, pageSize);
+  }
+
+  /** Checks that the rows of each resource are in timestamp order. */
+  private static void assertRowsInOrder(final String[] lines) throws Exception {
+    final Map<String, Long> last = new HashMap<>();
+    final DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    for (int i = 1; i < lines.length; ++i) {
+      final String[] cols = lines[i].split(",");
+      final long t = df.parse(unquote(cols[0])).getTime();
+      final Long prev = last.put(unquote(cols[RES_NAME]), t);
+      Assert.assertTrue(prev == null || prev < t);
+    }
+  }
+
+  private static String[] run(final Exporter exporter, final long end) throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    exporter.exportTo(out, BEGIN, end, null, null, true);
+    return new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+  }
+
+  /**
+   * Checks that every VM got all its samples and properties, including the ones spliced in from its
+   * host.
+   */
+  private static void assertData(final String[] lines, final int nVms) {
+    final Map<String, Set<String>> m0 = new HashMap<>();
+    for (int i = 1; i < lines.length; ++i) {
+      final String[] cols = lines[i].split(",");
+      Assert.assertEquals(N_COLUMNS, cols.length);
+      Assert.assertNotEquals("\"\"", cols[HOST_M0]);
+      Assert.assertNotEquals("\"\"", cols[HOST_CPU]);
+      final int vm = Integer.parseInt(unquote(cols[RES_NAME]).substring("vm-".length()));
+      Assert.assertEquals("Mock OS " + (vm % 3), unquote(cols[GUEST_OS]));
+      m0.computeIfAbsent(unquote(cols[RES_NAME]), k -> new HashSet<>()).add(unquote(cols[M0]));
+    }
+    Assert.assertEquals(nVms, m0.size());
+    for (int i = 0; i < nVms; ++i) {
+      final Set<String> expected = new HashSet<>();
+      for (int s = 0; s < SAMPLES; ++s) {
+        expected.add(Double.toString(MockSuiteApi.valueOf(i, 0, BEGIN + s * INTERVAL)));
+      }
+      Assert.assertEquals(expected, m0.get(String.format("vm-%06d", i)));
+    }
+  }
+
+  private static String resourceId(final int vm) {
+    return UUID.nameUUIDFromBytes(String.format("vm-%06d", vm).getBytes()).toString();
+  }
+
+  private static String unquote(final String s) {
+    return s.substring(1, s.length() - 1);
+  }
+}
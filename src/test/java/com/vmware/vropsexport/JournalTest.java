@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JournalTest {
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testResumesCommittedResources() throws Exception {
+    final File file = Journal.getFile(tmp.getRoot(), "test");
+    Journal journal = Journal.open(file, 1000, 2000);
+    Assert.assertFalse(journal.isResumed());
+    journal.delivered("a");
+    journal.delivered("b");
+    journal.commit(100);
+    journal.delivered("c");
+    journal.close();
+
+    // The time range comes from the journal. Uncommitted resources don't count.
+    journal = Journal.open(file, 0, 0);
+    Assert.assertTrue(journal.isResumed());
+    Assert.assertEquals(1000, journal.getBegin());
+    Assert.assertEquals(2000, journal.getEnd());
+    Assert.assertEquals(2, journal.getDoneCount());
+    Assert.assertTrue(journal.isDone("a"));
+    Assert.assertFalse(journal.isDone("c"));
+    Assert.assertEquals(100, journal.getOutputLength());
+
+    journal.finish();
+    Assert.assertFalse(file.exists());
+    journal = Journal.open(file, 3000, 4000);
+    Assert.assertFalse(journal.isResumed());
+    Assert.assertEquals(3000, journal.getBegin());
+    journal.finish();
+  }
+
+  @Test
+  public void testIgnoresPartialLine() throws Exception {
+    final File file = Journal.getFile(tmp.getRoot(), "test");
+    Journal journal = Journal.open(file, 1000, 2000);
+    journal.delivered("a");
+    journal.commit(100);
+    journal.close();
+    append(file, "r ab");
+    journal = Journal.open(file, 0, 0);
+    journal.delivered("b");
+    journal.commit(200);
+    journal.close();
+    append(file, "c 12");
+
+    // Neither half written line counts, and the second one doesn't get joined to the next.
+    journal = Journal.open(file, 0, 0);
+    Assert.assertEquals(2, journal.getDoneCount());
+    Assert.assertTrue(journal.isDone("b"));
+    Assert.assertFalse(journal.isDone("ab"));
+    Assert.assertEquals(200, journal.getOutputLength());
+    journal.close();
+  }
+
+  @Test
+  public void testDropsUncommittedResourcesOnResume() throws Exception {
+    final File file = Journal.getFile(tmp.getRoot(), "test");
+    Journal journal = Journal.open(file, 1000, 2000);
+    journal.delivered("a");
+    journal.commit(100);
+    journal.close();
+
+    // A commit that went down after writing some of its resources.
+    append(file, "r x\nr y\n");
+    journal = Journal.open(file, 0, 0);
+    Assert.assertEquals(1, journal.getDoneCount());
+    journal.delivered("b");
+    journal.commit(200);
+    journal.close();
+
+    journal = Journal.open(file, 0, 0);
+    Assert.assertEquals(2, journal.getDoneCount());
+    Assert.assertTrue(journal.isDone("a"));
+    Assert.assertTrue(journal.isDone("b"));
+    Assert.assertFalse(journal.isDone("x"));
+    Assert.assertFalse(journal.isDone("y"));
+    Assert.assertEquals(200, journal.getOutputLength());
+    journal.close();
+  }
+
+  @Test
+  public void testIgnoresPartialHeader() throws Exception {
+    final File file = Journal.getFile(tmp.getRoot(), "test");
+    append(file, "window 1000 20");
+    final Journal journal = Journal.open(file, 3000, 4000);
+    Assert.assertFalse(journal.isResumed());
+    Assert.assertEquals(3000, journal.getBegin());
+    journal.finish();
+  }
+
+  private static void append(final File file, final String text) throws Exception {
+    try (final OutputStream out = new FileOutputStream(file, true)) {
+      out.write(text.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LRUCacheTest {
+  @Test
+  public void testHoldsFullCapacity() {
+    final LRUCache<Integer, String> cache = new LRUCache<>(10);
+    for (int i = 0; i < 10; ++i) {
+      cache.put(i, "v" + i);
+    }
+    Assert.assertEquals(10, cache.size());
+    Assert.assertEquals(0, cache.getEvictions());
+    for (int i = 0; i < 10; ++i) {
+      Assert.assertEquals("v" + i, cache.get(i));
+    }
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    final LRUCache<Integer, String> cache = new LRUCache<>(3);
+    cache.put(1, "a");
+    cache.put(2, "b");
+    cache.put(3, "c");
+    cache.get(1);
+    cache.put(4, "d");
+    Assert.assertNull(cache.get(2));
+    Assert.assertEquals("a", cache.get(1));
+    Assert.assertEquals("c", cache.get(3));
+    Assert.assertEquals("d", cache.get(4));
+    Assert.assertEquals(1, cache.getEvictions());
+    Assert.assertEquals(4, cache.getHits());
+    Assert.assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void testEvictsByWeight() {
+    final LRUCache<String, String> cache = new LRUCache<>(10, (k, v) -> v.length());
+    cache.put("a", "aaaa");
+    cache.put("b", "bbbb");
+    Assert.assertEquals(8, cache.getWeight());
+    cache.put("c", "cccc");
+    Assert.assertFalse(cache.containsKey("a"));
+    Assert.assertEquals(8, cache.getWeight());
+
+    // An entry heavier than the whole cache pushes everything else out, but stays itself.
+    cache.put("d", "dddddddddddd");
+    Assert.assertEquals(1, cache.size());
+    Assert.assertEquals("dddddddddddd", cache.get("d"));
+  }
+
+  @Test
+  public void testLargeCacheHoldsFullCapacity() {
+    final LRUCache<Integer, Integer> cache = new LRUCache<>(100000);
+    for (int i = 0; i < 10000; ++i) {
+      cache.put(i, i);
+    }
+    Assert.assertEquals(10000, cache.size());
+    Assert.assertEquals(0, cache.getEvictions());
+  }
+
+  @Test
+  public void testLoadsOnlyOnce() throws Exception {
+    final LRUCache<String, String> cache = new LRUCache<>(10);
+    final AtomicInteger loads = new AtomicInteger();
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final Future<String> first =
+          executor.submit(
+              () ->
+                  cache.get(
+                      "k",
+                      k -> {
+                        loads.incrementAndGet();
+                        started.countDown();
+                        Assert.assertTrue(release.await(10, TimeUnit.SECONDS));
+                        return "v";
+                      }));
+      Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+      final Future<String> second =
+          executor.submit(
+              () ->
+                  cache.get(
+                      "k",
+                      k -> {
+                        loads.incrementAndGet();
+                        return "other";
+                      }));
+      release.countDown();
+      Assert.assertEquals("v", first.get());
+      Assert.assertEquals("v", second.get());
+      Assert.assertEquals(1, loads.get());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testLoaderFailure() {
+    final LRUCache<String, String> cache = new LRUCache<>(10);
+    try {
+      cache.get(
+          "k",
+          k -> {
+            throw new IOException("Failed");
+          });
+      Assert.fail("Expected an exception");
+    } catch (final ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof IOException);
+    }
+    Assert.assertFalse(cache.containsKey("k"));
+  }
+
+  @Test
+  public void testNullsAreNotCached() throws ExecutionException {
+    final LRUCache<String, String> cache = new LRUCache<>(10);
+    Assert.assertNull(cache.get("k", k -> null));
+    Assert.assertFalse(cache.containsKey("k"));
+    Assert.assertEquals("v", cache.get("k", k -> "v"));
+  }
+}
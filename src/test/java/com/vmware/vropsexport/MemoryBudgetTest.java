@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MemoryBudgetTest {
+  @Test
+  public void testBlocksUntilReleased() throws Exception {
+    final MemoryBudget budget = new MemoryBudget(100);
+    budget.acquire(60);
+    final CountDownLatch started = new CountDownLatch(1);
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final Future<?> f =
+          executor.submit(
+              () -> {
+                started.countDown();
+                budget.acquire(60);
+                return null;
+              });
+      Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+      Thread.sleep(50);
+      Assert.assertFalse(f.isDone());
+      budget.release(60);
+      f.get(10, TimeUnit.SECONDS);
+      Assert.assertEquals(60, budget.getUsed());
+      Assert.assertEquals(1, budget.getWaits());
+      Assert.assertTrue(budget.getBlockedMillis() > 0);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testLetsOversizedItemThroughWhenEmpty() throws Exception {
+    final MemoryBudget budget = new MemoryBudget(100);
+    budget.acquire(500);
+    Assert.assertEquals(500, budget.getUsed());
+    Assert.assertEquals(500, budget.getPeak());
+    Assert.assertEquals(0, budget.getWaits());
+    budget.release(500);
+    budget.awaitAvailable();
+    Assert.assertEquals(0, budget.getUsed());
+  }
+}
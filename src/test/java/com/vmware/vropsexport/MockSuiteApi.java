@@ -0,0 +1,824 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+/**
+ * A fake vR Ops suite-api server for end-to-end and load testing. It serves a synthetic inventory
+ * of virtual machines and the hosts they run on. All data is derived from resource and stat key
+ * indexes, so every run returns exactly the same thing.
+ *
+ * <p>Faults can be injected into the metric queries. A dropped connection is closed before any
+ * response headers are sent, which is what a struggling vR Ops does and what the client reports as
+ * a NoHttpResponseException. A truncated response stops halfway through the payload.
+ */
+public class MockSuiteApi implements Closeable {
+  public static final String ADAPTER_KIND = "VMWARE";
+
+  public static final String VM_KIND = "VirtualMachine";
+
+  public static final String HOST_KIND = "HostSystem";
+
+  public static final String USERNAME = "admin";
+
+  public static final String PASSWORD = "secret";
+
+  private static final String KEYSTORE = "src/test/resources/mock-suite-api.jks";
+
+  private static final char[] KEYSTORE_PASSWORD = "changeit".toCharArray();
+
+  private static final String TOKEN = "mock-token";
+
+  private static final String API_BASE = "/suite-api/api/";
+
+  private static final int RELATIONSHIP_PAGE_SIZE = 1000;
+
+  private static final int DEFAULT_PAGE_SIZE = 1000;
+
+  private static final long LATEST_INTERVAL = 300000;
+
+  static {
+    // The server writes headers and body separately, so without this, every response waits for a
+    // delayed ACK from the client.
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+  }
+
+  private static class MockResource {
+    private final String id;
+
+    private final String name;
+
+    private final String kind;
+
+    private final int index;
+
+    private final MockResource parent;
+
+    private final List<MockResource> children = new ArrayList<>();
+
+    private MockResource(
+        final String name, final String kind, final int index, final MockResource parent) {
+      id = UUID.nameUUIDFromBytes(name.getBytes()).toString();
+      this.name = name;
+      this.kind = kind;
+      this.index = index;
+      this.parent = parent;
+      if (parent != null) {
+        parent.children.add(this);
+      }
+    }
+  }
+
+  private final ObjectMapper om = new ObjectMapper();
+
+  private final JsonFactory jf = new JsonFactory();
+
+  private final List<MockResource> vms = new ArrayList<>();
+
+  private final List<MockResource> hosts = new ArrayList<>();
+
+  private final Map<String, MockResource> resources = new HashMap<>();
+
+  private final int statKeys;
+
+  private final HttpsServer server;
+
+  private final ExecutorService executor;
+
+  private final Random random = new Random(4711);
+
+  private volatile long latency;
+
+  private volatile int maxResourcesPerQuery = Integer.MAX_VALUE;
+
+  private volatile long maxSamplesPerQuery = Long.MAX_VALUE;
+
+  private volatile double dropProbability;
+
+  private volatile double truncateProbability;
+
+  private volatile boolean bulkQueries = true;
+
+  private volatile boolean ignoreRequestedStats;
+
+  private volatile boolean statKeyFirst;
+
+  private final AtomicLong requests = new AtomicLong();
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+
+  private final AtomicLong metricQueries = new AtomicLong();
+
+  private final AtomicLong droppedConnections = new AtomicLong();
+
+  private final AtomicLong truncatedResponses = new AtomicLong();
+
+  private final AtomicLong samplesServed = new AtomicLong();
+
+  private final AtomicLong propertyLookups = new AtomicLong();
+
+  private final AtomicLong propertyQueries = new AtomicLong();
+
+  private final AtomicLong parentLookups = new AtomicLong();
+
+  private final AtomicLong relationshipQueries = new AtomicLong();
+
+  /**
+   * Creates and starts a server on a random port on the loopback interface.
+   *
+   * @param nVms Number of virtual machines
+   * @param vmsPerHost Number of virtual machines per host
+   * @param statKeys Number of stat keys for every resource
+   * @param threads Number of request handling threads
+   */
+  public MockSuiteApi(final int nVms, final int vmsPerHost, final int statKeys, final int threads)
+      throws IOException, GeneralSecurityException {
+    this.statKeys = statKeys;
+    MockResource host = null;
+    for (int i = 0; i < nVms; ++i) {
+      if (i % vmsPerHost == 0) {
+        final int n = hosts.size();
+        host = new MockResource(String.format("host-%05d", n), HOST_KIND, n, null);
+        hosts.add(host);
+        resources.put(host.id, host);
+      }
+      final MockResource vm = new MockResource(String.format("vm-%06d", i), VM_KIND, i, host);
+      vms.add(vm);
+      resources.put(vm.id, vm);
+    }
+
+    final KeyStore ks = loadKeyStore();
+    final KeyManagerFactory kmf =
+        KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    kmf.init(ks, KEYSTORE_PASSWORD);
+    final SSLContext ssl = SSLContext.getInstance("TLS");
+    ssl.init(kmf.getKeyManagers(), null, null);
+    server = HttpsServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 100);
+    server.setHttpsConfigurator(new HttpsConfigurator(ssl));
+    server.createContext(API_BASE, this::handle);
+    executor = Executors.newFixedThreadPool(threads);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /** The key store holding the server certificate. Use it as the client's trust store. */
+  public static KeyStore loadKeyStore() throws IOException, GeneralSecurityException {
+    final KeyStore ks = KeyStore.getInstance("JKS");
+    try (final InputStream in = new FileInputStream(KEYSTORE)) {
+      ks.load(in, KEYSTORE_PASSWORD);
+    }
+    return ks;
+  }
+
+  public static String statKey(final int n) {
+    return "mock|metric" + n;
+  }
+
+  /** The value every metric query returns for a resource, stat key and timestamp. */
+  public static double valueOf(final int resourceIndex, final int statKey, final long timestamp) {
+    return ((resourceIndex * 7919L + statKey * 104729L + timestamp / 1000) % 10000) / 100.0;
+  }
+
+  public String getUrl() {
+    return "https://localhost:" + server.getAddress().getPort();
+  }
+
+  public int getNumVms() {
+    return vms.size();
+  }
+
+  public int getNumHosts() {
+    return hosts.size();
+  }
+
+  /** Delays every response by the given number of milliseconds. */
+  public void setLatency(final long latency) {
+    this.latency = latency;
+  }
+
+  /** Drops the connection on metric queries for more than this number of resources. */
+  public void setMaxResourcesPerQuery(final int maxResourcesPerQuery) {
+    this.maxResourcesPerQuery = maxResourcesPerQuery;
+  }
+
+  /**
+   * Drops the connection on metric queries for more samples per stat key than this, counting one
+   * sample per resource and timestamp.
+   */
+  public void setMaxSamplesPerQuery(final long maxSamplesPerQuery) {
+    this.maxSamplesPerQuery = maxSamplesPerQuery;
+  }
+
+  /** Drops the connection on a random fraction of the metric queries. */
+
+  public void setDropProbability(final double dropProbability) {
+    this.dropProbability = dropProbability;
+  }
+
+  /** Cuts off a random fraction of the metric query responses halfway through. */
+  public void setTruncateProbability(final double truncateProbability) {
+    this.truncateProbability = truncateProbability;
+  }
+
+  /** Turns the bulk property and relationship queries off, like on an older server. */
+  public void setBulkQueries(final boolean bulkQueries) {
+    this.bulkQueries = bulkQueries;
+  }
+
+  /** Returns every stat key on metric queries, like a server that ignores the requested ones. */
+  public void setIgnoreRequestedStats(final boolean ignoreRequestedStats) {
+    this.ignoreRequestedStats = ignoreRequestedStats;
+  }
+
+  /** Writes the key of each series before its timestamps rather than after them. */
+  public void setStatKeyFirst(final boolean statKeyFirst) {
+    this.statKeyFirst = statKeyFirst;
+  }
+
+  public long getRequests() {
+    return requests.get();
+  }
+
+  /** Returns the largest number of requests that were waiting out the latency at the same time. */
+  public int getMaxInFlight() {
+    return maxInFlight.get();
+  }
+
+  public long getMetricQueries() {
+    return metricQueries.get();
+  }
+
+  public long getDroppedConnections() {
+    return droppedConnections.get();
+  }
+
+  public long getTruncatedResponses() {
+    return truncatedResponses.get();
+  }
+
+  public long getSamplesServed() {
+    return samplesServed.get();
+  }
+
+  /** Number of properties requests for a single resource. */
+  public long getPropertyLookups() {
+    return propertyLookups.get();
+  }
+
+  /** Number of bulk properties queries. */
+  public long getPropertyQueries() {
+    return propertyQueries.get();
+  }
+
+  /** Number of parent relationship requests for a single resource. */
+  public long getParentLookups() {
+    return parentLookups.get();
+  }
+
+  /** Number of bulk relationship queries. */
+  public long getRelationshipQueries() {
+    return relationshipQueries.get();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handle(final HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+    try {
+      if (latency > 0) {
+        // Only the latency counts as in flight. The end of a response may still be on its way out
+        // when the client has read it and sent the next request.
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try {
+          Thread.sleep(latency);
+        } finally {
+          inFlight.decrementAndGet();
+        }
+      }
+      final String path = exchange.getRequestURI().getPath().substring(API_BASE.length());
+      final String[] parts = path.split("/");
+      final Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+      final String method = exchange.getRequestMethod();
+
+      if ("POST".equals(method) && "auth/token/acquire".equals(path)) {
+        acquireToken(exchange);
+        return;
+      }
+      final String auth = exchange.getRequestHeaders().getFirst("Authorization");
+      if (!("vRealizeOpsToken " + TOKEN).equals(auth)) {
+        sendError(exchange, 401, "Not authenticated");
+        return;
+      }
+      if ("POST".equals(method) && "resources/stats/query".equals(path)) {
+        queryMetrics(exchange, false);
+      } else if ("POST".equals(method) && "resources/stats/latest/query".equals(path)) {
+        queryMetrics(exchange, true);
+      } else if (bulkQueries
+          && "POST".equals(method)
+          && "resources/properties/latest/query".equals(path)) {
+        queryProperties(exchange);
+      } else if (bulkQueries
+          && "POST".equals(method)
+          && "resources/bulk/relationships".equals(path)) {
+        queryRelationships(exchange);
+      } else if ("GET".equals(method) && "resources".equals(path)) {
+        listResources(exchange, query);
+      } else if ("GET".equals(method) && parts.length == 2 && "resources".equals(parts[0])) {
+        getResource(exchange, parts[1]);
+      } else if ("GET".equals(method) && parts.length == 3 && "resources".equals(parts[0])) {
+        switch (parts[2]) {
+          case "relationships":
+            getRelationships(exchange, parts[1], query);
+            break;
+          case "properties":
+            getProperties(exchange, parts[1]);
+            break;
+          case "statkeys":
+            getResourceStatKeys(exchange, parts[1]);
+            break;
+          default:
+            sendError(exchange, 404, "Not found");
+        }
+      } else if ("GET".equals(method)
+          && parts.length == 5
+          && "adapterkinds".equals(parts[0])
+          && "resourcekinds".equals(parts[2])
+          && "statkeys".equals(parts[4])) {
+        getStatKeys(exchange);
+      } else {
+        sendError(exchange, 404, "Not found");
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (final RuntimeException e) {
+      if (exchange.getResponseCode() == -1) {
+        sendError(exchange, 500, e.toString());
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void acquireToken(final HttpExchange exchange) throws IOException {
+    final Map<?, ?> rq = om.readValue(exchange.getRequestBody(), Map.class);
+    if (!USERNAME.equals(rq.get("username")) || !PASSWORD.equals(rq.get("password"))) {
+      sendError(exchange, 401, "Invalid credentials");
+      return;
+    }
+    final JsonGenerator g = startJson();
+    g.writeStartObject();
+    g.writeStringField("token", TOKEN);
+    g.writeNumberField("validity", System.currentTimeMillis() + 3600000);
+    g.writeEndObject();
+    sendJson(exchange, g);
+  }
+
+  private void listResources(final HttpExchange exchange, final Map<String, String> query)
+      throws IOException {
+    final String kind = query.get("resourceKind");
+    final String adapterKind = query.get("adapterKind");
+    final String name = query.get("name");
+    final List<MockResource> matches = new ArrayList<>();
+    if (adapterKind == null || ADAPTER_KIND.equalsIgnoreCase(adapterKind)) {
+      for (final MockResource r : kindList(kind)) {
+        if (name == null || r.name.contains(name)) {
+          matches.add(r);
+        }
+      }
+    }
+    sendPage(exchange, matches, query, DEFAULT_PAGE_SIZE);
+  }
+
+  private List<MockResource> kindList(final String kind) {
+    if (VM_KIND.equalsIgnoreCase(kind)) {
+      return vms;
+    }
+    if (HOST_KIND.equalsIgnoreCase(kind)) {
+      return hosts;
+    }
+    return Collections.emptyList();
+  }
+
+  private void getResource(final HttpExchange exchange, final String id) throws IOException {
+    final MockResource r = resources.get(id);
+    if (r == null) {
+      sendError(exchange, 404, "No such resource: " + id);
+      return;
+    }
+    final JsonGenerator g = startJson();
+    writeResource(g, r);
+    sendJson(exchange, g);
+  }
+
+  private void getRelationships(
+      final HttpExchange exchange, final String id, final Map<String, String> query)
+      throws IOException {
+    final MockResource r = resources.get(id);
+    if (r == null) {
+      sendError(exchange, 404, "No such resource: " + id);
+      return;
+    }
+    final List<MockResource> related;
+    if ("PARENT".equals(query.get("relationshipType"))) {
+      parentLookups.incrementAndGet();
+      related = r.parent != null ? Collections.singletonList(r.parent) : Collections.emptyList();
+    } else {
+      related = r.children;
+    }
+    sendPage(exchange, related, query, RELATIONSHIP_PAGE_SIZE);
+  }
+
+  /** Returns each related resource along with the requested resources it's related to. */
+  @SuppressWarnings("unchecked")
+  private void queryRelationships(final HttpExchange exchange) throws IOException {
+    relationshipQueries.incrementAndGet();
+    final Map<String, Object> rq = om.readValue(exchange.getRequestBody(), Map.class);
+    final List<String> ids = (List<String>) rq.get("resourceIds");
+    final boolean parent = "PARENT".equals(rq.get("relationshipType"));
+    final Map<MockResource, List<String>> relations = new LinkedHashMap<>();
+    for (final String id : ids) {
+      final MockResource r = resources.get(id);
+      if (r == null) {
+        continue;
+      }
+      final List<MockResource> related =
+          parent
+              ? (r.parent != null ? Collections.singletonList(r.parent) : Collections.emptyList())
+              : r.children;
+      for (final MockResource rel : related) {
+        relations.computeIfAbsent(rel, k -> new ArrayList<>()).add(r.id);
+      }
+    }
+    final JsonGenerator g = startJson();
+    g.writeStartObject();
+    g.writeArrayFieldStart("resourcesRelations");
+    for (final Map.Entry<MockResource, List<String>> e : relations.entrySet()) {
+      g.writeStartObject();
+      g.writeFieldName("resource");
+      writeResource(g, e.getKey());
+      g.writeArrayFieldStart("relatedResources");
+      for (final String id : e.getValue()) {
+        g.writeString(id);
+      }
+      g.writeEndArray();
+      g.writeStringField("relationshipType", parent ? "PARENT" : "CHILD");
+      g.writeEndObject();
+    }
+    g.writeEndArray();
+    g.writeEndObject();
+    sendJson(exchange, g);
+  }
+
+  private static Map<String, String> propertiesOf(final MockResource r) {
+    final Map<String, String> props = new LinkedHashMap<>();
+    if (VM_KIND.equals(r.kind)) {
+      props.put("config|guestFullName", "Mock OS " + (r.index % 3));
+      props.put("summary|parentHost", r.parent.name);
+    } else {
+      props.put("cpu|cpuModel", "Mock CPU " + (r.index % 2));
+    }
+    props.put("summary|tagJson", "none");
+    return props;
+  }
+
+  private void getProperties(final HttpExchange exchange, final String id) throws IOException {
+    propertyLookups.incrementAndGet();
+    final MockResource r = resources.get(id);
+    if (r == null) {
+      sendError(exchange, 404, "No such resource: " + id);
+      return;
+    }
+    final JsonGenerator g = startJson();
+    g.writeStartObject();
+    g.writeStringField("resourceId", r.id);
+    g.writeArrayFieldStart("property");
+    for (final Map.Entry<String, String> e : propertiesOf(r).entrySet()) {
+      writeProperty(g, e.getKey(), e.getValue());
+    }
+    g.writeEndArray();
+    g.writeEndObject();
+    sendJson(exchange, g);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void queryProperties(final HttpExchange exchange) throws IOException {
+    propertyQueries.incrementAndGet();
+    final Map<String, Object> rq = om.readValue(exchange.getRequestBody(), Map.class);
+    final List<String> ids = (List<String>) rq.get("resourceIds");
+    final List<String> keys = (List<String>) rq.get("propertyKeys");
+    final long now = System.currentTimeMillis();
+    final JsonGenerator g = startJson();
+    g.writeStartObject();
+    g.writeArrayFieldStart("values");
+    for (final String id : ids) {
+      final MockResource r = resources.get(id);
+      if (r == null) {
+        continue;
+      }
+      g.writeStartObject();
+      g.writeStringField("resourceId", r.id);
+      g.writeObjectFieldStart("property-contents");
+      g.writeArrayFieldStart("property-content");
+      for (final Map.Entry<String, String> e : propertiesOf(r).entrySet()) {
+        if (keys != null && !keys.contains(e.getKey())) {
+          continue;
+        }
+        g.writeStartObject();
+        g.writeStringField("statKey", e.getKey());
+        g.writeArrayFieldStart("timestamps");
+        g.writeNumber(now);
+        g.writeEndArray();
+        g.writeArrayFieldStart("values");
+        g.writeString(e.getValue());
+        g.writeEndArray();
+        g.writeEndObject();
+      }
+      g.writeEndArray();
+      g.writeEndObject();
+      g.writeEndObject();
+    }
+    g.writeEndArray();
+    g.writeEndObject();
+    sendJson(exchange, g);
+  }
+
+  private void getStatKeys(final HttpExchange exchange) throws IOException {
+    final JsonGenerator g = startJson();
+    g.writeStartObject();
+    g.writeArrayFieldStart("resourceTypeAttributes");
+    for (int i = 0; i < statKeys; ++i) {
+      g.writeStartObject();
+      g.writeStringField("key", statKey(i));
+      g.writeStringField("name", "Mock metric " + i);
+      g.writeEndObject();
+    }
+    g.writeEndArray();
+    g.writeEndObject();
+    sendJson(exchange, g);
+  }
+
+  private void getResourceStatKeys(final HttpExchange exchange, final String id)
+      throws IOException {
+    if (!resources.containsKey(id)) {
+      sendError(exchange, 404, "No such resource: " + id);
+      return;
+    }
+    final JsonGenerator g = startJson();
+    g.writeStartObject();
+    g.writeArrayFieldStart("stat-key");
+    for (int i = 0; i < statKeys; ++i) {
+      g.writeStartObject();
+      g.writeStringField("key", statKey(i));
+      g.writeEndObject();
+    }
+    g.writeEndArray();
+    g.writeEndObject();
+    sendJson(exchange, g);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void queryMetrics(final HttpExchange exchange, final boolean latest) throws IOException {
+    metricQueries.incrementAndGet();
+
+    // Read the whole request before deciding whether to drop the connection. Closing a socket
+    // with unread data makes it send a reset, which the client reports as a different error.
+    final Map<String, Object> rq = om.readValue(exchange.getRequestBody(), Map.class);
+    final List<String> ids = (List<String>) rq.get("resourceId");
+    final boolean drop;
+    final boolean truncate;
+    synchronized (random) {
+      drop = random.nextDouble() < dropProbability;
+      truncate = random.nextDouble() < truncateProbability;
+    }
+    // Work out which stats to return and at what times.
+    final List<String> requested = (List<String>) rq.get("stat");
+    final List<Integer> stats = new ArrayList<>();
+    for (int i = 0; i < statKeys; ++i) {
+      if (requested == null || ignoreRequestedStats || requested.contains(statKey(i))) {
+        stats.add(i);
+      }
+    }
+    final long[] timestamps;
+    if (latest) {
+      timestamps = new long[] {(System.currentTimeMillis() / LATEST_INTERVAL) * LATEST_INTERVAL};
+    } else {
+      final long interval = ((Number) rq.get("intervalQuantifier")).longValue() * 60000;
+      final long begin = ((Number) rq.get("begin")).longValue();
+      final long end = ((Number) rq.get("end")).longValue();
+      final long first = ((begin + interval - 1) / interval) * interval;
+      timestamps = new long[first <= end ? (int) ((end - first) / interval) + 1 : 0];
+      for (int i = 0; i < timestamps.length; ++i) {
+        timestamps[i] = first + i * interval;
+      }
+    }
+    if (drop
+        || ids.size() > maxResourcesPerQuery
+        || (long) ids.size() * timestamps.length > maxSamplesPerQuery) {
+      droppedConnections.incrementAndGet();
+      return; // Closing the exchange without sending headers drops the connection.
+    }
+
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    exchange.sendResponseHeaders(200, 0);
+    try (final OutputStream out = exchange.getResponseBody()) {
+      final JsonGenerator g = jf.createGenerator(out, JsonEncoding.UTF8);
+      g.writeStartObject();
+      g.writeArrayFieldStart("values");
+      int n = 0;
+      for (final String id : ids) {
+        if (truncate && n++ == ids.size() / 2) {
+          truncatedResponses.incrementAndGet();
+          g.flush();
+          return;
+        }
+        final MockResource r = resources.get(id);
+        if (r == null) {
+          continue;
+        }
+        g.writeStartObject();
+        g.writeStringField("resourceId", r.id);
+        g.writeObjectFieldStart("stat-list");
+        g.writeArrayFieldStart("stat");
+        for (final int stat : stats) {
+          g.writeStartObject();
+          if (statKeyFirst) {
+            writeStatKey(g, stat);
+          }
+          g.writeArrayFieldStart("timestamps");
+          for (final long ts : timestamps) {
+            g.writeNumber(ts);
+          }
+          g.writeEndArray();
+          if (!statKeyFirst) {
+            writeStatKey(g, stat);
+          }
+          g.writeObjectFieldStart("intervalUnit");
+          g.writeNumberField("quantifier", 1);
+          g.writeEndObject();
+          g.writeArrayFieldStart("data");
+          for (final long ts : timestamps) {
+            g.writeNumber(valueOf(r.index, stat, ts));
+          }
+          g.writeEndArray();
+          g.writeEndObject();
+        }
+        samplesServed.addAndGet((long) stats.size() * timestamps.length);
+        g.writeEndArray();
+        g.writeEndObject();
+        g.writeEndObject();
+      }
+      g.writeEndArray();
+      g.writeEndObject();
+      g.flush();
+    }
+  }
+
+  private void sendPage(
+      final HttpExchange exchange,
+      final List<MockResource> all,
+      final Map<String, String> query,
+      final int defaultPageSize)
+      throws IOException {
+    final int pageSize =
+        query.containsKey("pageSize") ? Integer.parseInt(query.get("pageSize")) : defaultPageSize;
+    final int page = query.containsKey("page") ? Integer.parseInt(query.get("page")) : 0;
+    final JsonGenerator g = startJson();
+    g.writeStartObject();
+    g.writeObjectFieldStart("pageInfo");
+    g.writeNumberField("totalCount", all.size());
+    g.writeNumberField("page", page);
+    g.writeNumberField("pageSize", pageSize);
+    g.writeEndObject();
+    g.writeArrayFieldStart("resourceList");
+    final long first = (long) page * pageSize;
+    for (long i = first; i < Math.min(first + pageSize, all.size()); ++i) {
+      writeResource(g, all.get((int) i));
+    }
+    g.writeEndArray();
+    g.writeEndObject();
+    sendJson(exchange, g);
+  }
+
+  private static void writeResource(final JsonGenerator g, final MockResource r)
+      throws IOException {
+    g.writeStartObject();
+    g.writeStringField("identifier", r.id);
+    g.writeObjectFieldStart("resourceKey");
+    g.writeStringField("name", r.name);
+    g.writeStringField("adapterKindKey", ADAPTER_KIND);
+    g.writeStringField("resourceKindKey", r.kind);
+    g.writeEndObject();
+    g.writeEndObject();
+  }
+
+  private static void writeProperty(final JsonGenerator g, final String name, final String value)
+      throws IOException {
+    g.writeStartObject();
+    g.writeStringField("name", name);
+    g.writeStringField("value", value);
+    g.writeEndObject();
+  }
+
+  private static void writeStatKey(final JsonGenerator g, final int stat) throws IOException {
+    g.writeObjectFieldStart("statKey");
+    g.writeStringField("key", statKey(stat));
+    g.writeEndObject();
+  }
+
+  private JsonGenerator startJson() throws IOException {
+    return jf.createGenerator(new ByteArrayOutputStream(), JsonEncoding.UTF8);
+  }
+
+  private static void sendJson(final HttpExchange exchange, final JsonGenerator g)
+      throws IOException {
+    g.close();
+    send(exchange, 200, ((ByteArrayOutputStream) g.getOutputTarget()).toByteArray());
+  }
+
+  private static void sendError(final HttpExchange exchange, final int status, final String msg)
+      throws IOException {
+    send(exchange, status, ("{\"message\":\"" + msg + "\"}").getBytes("UTF-8"));
+  }
+
+  private static void send(final HttpExchange exchange, final int status, final byte[] body)
+      throws IOException {
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, body.length);
+    try (final OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static Map<String, String> parseQuery(final String rawQuery)
+      throws UnsupportedEncodingException {
+    final Map<String, String> result = new HashMap<>();
+    if (rawQuery == null) {
+      return result;
+    }
+    for (final String pair : rawQuery.split("&")) {
+      final int p = pair.indexOf('=');
+      if (p == -1) {
+        result.put(URLDecoder.decode(pair, "UTF-8"), "");
+      } else {
+        result.put(
+            URLDecoder.decode(pair.substring(0, p), "UTF-8"),
+            URLDecoder.decode(pair.substring(p + 1), "UTF-8"));
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport;
+
+import com.vmware.vropsexport.exceptions.ExporterException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RowsetTest {
+  private static RowMetadata makeMetadata() throws ExporterException {
+    final Config conf = new Config();
+    conf.setResourceType("VirtualMachine");
+    conf.setFields(
+        new Config.Field[] {
+          new Config.Field("cpu", "cpu|demandmhz", Config.Field.Kind.METRIC),
+          new Config.Field("mem", "mem|consumed_average", Config.Field.Kind.METRIC),
+          new Config.Field("os", "config|guestFullName", Config.Field.Kind.PROPERTY)
+        });
+    return new RowMetadata(conf);
+  }
+
+  @Test
+  public void testBuildMergesTimestamps() throws ExporterException {
+    final RowsetBuilder builder = new RowsetBuilder("vm-1", makeMetadata());
+    builder.addSeries(0, new long[] {3000, 1000, 2000, 0}, new double[] {3, 1, 2, 0}, 3);
+    builder.addSeries(1, new long[] {2000, 4000}, new double[] {20, 40}, 2);
+    final Rowset rs = builder.build();
+
+    Assert.assertEquals(4, rs.size());
+    Assert.assertArrayEquals(
+        new long[] {1000, 2000, 3000, 4000},
+        rs.getRows().stream().mapToLong(Row::getTimestamp).toArray());
+    Assert.assertEquals(Double.valueOf(1), rs.getMetric(0, 0));
+    Assert.assertNull(rs.getMetric(0, 1));
+    Assert.assertEquals(Double.valueOf(2), rs.getMetric(1, 0));
+    Assert.assertEquals(Double.valueOf(20), rs.getMetric(1, 1));
+    Assert.assertNull(rs.getMetric(3, 0));
+    Assert.assertEquals(Double.valueOf(40), rs.getMetric(3, 1));
+    Assert.assertEquals(2, rs.indexOf(3000));
+    Assert.assertEquals(-1, rs.indexOf(3500));
+  }
+
+  @Test
+  public void testBuildsBatches() throws ExporterException {
+    final RowsetBuilder builder = new RowsetBuilder("vm-1", makeMetadata());
+    final long[] timestamps = {1000, 2000, 3000, 4000, 5000};
+    builder.addSeries(0, timestamps, new double[] {1, 2, 3, 4, 5}, 5);
+    builder.addSeries(1, timestamps, new double[] {10, 20, 30, 40}, 4);
+    builder.addSeries(1, new long[] {2500}, new double[] {25}, 1);
+
+    final Rowset first = builder.nextBatch(3);
+    Assert.assertArrayEquals(
+        new long[] {1000, 2000, 2500},
+        first.getRows().stream().mapToLong(Row::getTimestamp).toArray());
+    Assert.assertEquals(Double.valueOf(2), first.getMetric(1, 0));
+    Assert.assertNull(first.getMetric(2, 0));
+    Assert.assertEquals(Double.valueOf(25), first.getMetric(2, 1));
+
+    final Rowset second = builder.nextBatch(3);
+    Assert.assertArrayEquals(
+        new long[] {3000, 4000, 5000},
+        second.getRows().stream().mapToLong(Row::getTimestamp).toArray());
+    Assert.assertEquals(Double.valueOf(40), second.getMetric(1, 1));
+    Assert.assertNull(second.getMetric(2, 1));
+    Assert.assertEquals(Double.valueOf(5), second.getMetric(2, 0));
+    Assert.assertNull(builder.nextBatch(3));
+  }
+
+  @Test
+  public void testSharedTimestampsAfterMinTimestamp() throws ExporterException {
+    final long[] timestamps = {1000, 2000, 3000, 4000};
+    for (final int maxRows : new int[] {0, 2}) {
+      final RowsetBuilder builder = new RowsetBuilder("vm-1", makeMetadata());
+      builder.setMinTimestamp(2000);
+      builder.addSeries(0, timestamps, new double[] {1, 2, 3, 4}, 4);
+      builder.addSeries(1, timestamps, new double[] {10, 20, 30}, 3);
+      final Rowset rs = maxRows == 0 ? builder.build() : builder.nextBatch(maxRows);
+
+      Assert.assertEquals(2000, rs.getFirstTimestamp());
+      Assert.assertEquals(Double.valueOf(2), rs.getMetric(0, 0));
+      Assert.assertEquals(Double.valueOf(20), rs.getMetric(0, 1));
+      Assert.assertEquals(Double.valueOf(30), rs.getMetric(1, 1));
+      if (maxRows != 0) {
+        final Rowset second = builder.nextBatch(maxRows);
+        Assert.assertEquals(Double.valueOf(4), second.getMetric(0, 0));
+        Assert.assertNull(second.getMetric(0, 1));
+        Assert.assertNull(builder.nextBatch(maxRows));
+      } else {
+        Assert.assertEquals(3, rs.size());
+        Assert.assertNull(rs.getMetric(2, 1));
+      }
+    }
+  }
+
+  @Test
+  public void testDictionaryEncodedProperties() {
+    final Rowset rs = new Rowset("vm-1", new long[] {1000, 2000, 3000}, 1, 1);
+    Assert.assertNull(rs.getProp(0, 0));
+    rs.setPropForAllRows(0, "Linux");
+    rs.setProp(1, 0, "Linux");
+    Assert.assertEquals("Linux", rs.getProp(2, 0));
+    rs.setProp(1, 0, "Windows");
+    Assert.assertEquals("Linux", rs.getProp(0, 0));
+    Assert.assertEquals("Windows", rs.getProp(1, 0));
+    Assert.assertEquals("Linux", rs.getProp(2, 0));
+    rs.setProp(2, 0, null);
+    Assert.assertNull(rs.getProp(2, 0));
+  }
+
+  @Test
+  public void testMerge() {
+    final Rowset rs = new Rowset("vm-1", new long[] {1000, 2000}, 2, 1);
+    rs.setMetric(0, 0, 1.0);
+    rs.setMetric(1, 1, 2.0);
+    rs.setProp(1, 0, "x");
+    final Row target = new Row(2000, 2, 1);
+    for (final Row r : rs.getRows()) {
+      target.merge(r);
+    }
+    Assert.assertEquals(Double.valueOf(1.0), target.getMetric(0));
+    Assert.assertEquals(Double.valueOf(2.0), target.getMetric(1));
+    Assert.assertEquals("x", target.getProp(0));
+  }
+
+  @Test
+  public void testPrimitiveAccess() {
+    final Rowset rs = new Rowset("vm-1", new long[] {1000, 2000}, 3, 0);
+    rs.setMetric(0, 0, 1.5);
+    rs.setMetric(1, 2, 0.0);
+    Assert.assertTrue(rs.hasMetric(0, 0));
+    Assert.assertEquals(1.5, rs.getMetricValue(0, 0), 0);
+    Assert.assertFalse(rs.hasMetric(1, 0));
+    Assert.assertFalse(rs.hasMetric(0, 1));
+    Assert.assertTrue(rs.hasMetric(1, 2));
+
+    final Row target = new Row(2000, 3, 0);
+    target.setMetric(0, 9.0);
+    rs.getRow(1).copyDefinedMetricsTo(target);
+    Assert.assertEquals(9.0, target.getMetricValue(0), 0);
+    Assert.assertFalse(target.hasMetric(1));
+    Assert.assertEquals(0.0, target.getMetricValue(2), 0);
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StageTest {
+  @Test
+  public void testSubmitBlocksWhenQueueIsFull() throws Exception {
+    final Stage stage = new Stage("test", 1, 1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final ExecutorService submitter = Executors.newSingleThreadExecutor();
+    try {
+      // One task keeps the only thread busy and another one fills the queue.
+      stage.submit(release::await);
+      stage.submit(() -> {});
+      final Future<?> third = submitter.submit(() -> stage.submit(() -> {}));
+      try {
+        third.get(200, TimeUnit.MILLISECONDS);
+        Assert.fail("Expected the submitter to wait");
+      } catch (final TimeoutException e) {
+        // Expected
+      }
+      release.countDown();
+      third.get(10, TimeUnit.SECONDS);
+      stage.drain();
+      Assert.assertEquals(3, stage.getCompleted());
+    } finally {
+      submitter.shutdownNow();
+      stage.shutdown();
+    }
+  }
+
+  @Test
+  public void testDrainWaitsForTasksSubmittedByTasks() throws Exception {
+    final Stage first = new Stage("first", 2, 10);
+    final Stage second = new Stage("second", 2, 10);
+    final AtomicBoolean done = new AtomicBoolean();
+    try {
+      first.submit(
+          () -> {
+            Thread.sleep(50);
+            first.submit(
+                () ->
+                    second.submit(
+                        () -> {
+                          Thread.sleep(50);
+                          done.set(true);
+                        }));
+          });
+
+      // Draining in pipeline order sees everything through.
+      first.drain();
+      second.drain();
+      Assert.assertTrue(done.get());
+      Assert.assertEquals(2, first.getCompleted());
+    } finally {
+      first.shutdown();
+      second.shutdown();
+    }
+  }
+
+  @Test
+  public void testCountsFailedTasks() throws Exception {
+    final Stage stage = new Stage("test", 1, 1);
+    try {
+      stage.submit(
+          () -> {
+            throw new IllegalStateException("Expected");
+          });
+      stage.drain();
+      Assert.assertEquals(1, stage.getFailed());
+      Assert.assertEquals(1, stage.getCompleted());
+    } finally {
+      stage.shutdown();
+    }
+  }
+
+  @Test
+  public void testRejectsTasksAfterShutdown() throws Exception {
+    final Stage stage = new Stage("test", 1, 1);
+    stage.shutdown();
+    try {
+      stage.submit(() -> {});
+      Assert.fail("Expected the task to be rejected");
+    } catch (final RejectedExecutionException e) {
+      // Expected
+    }
+
+    // A rejected task doesn't count as in flight.
+    stage.drain();
+  }
+}
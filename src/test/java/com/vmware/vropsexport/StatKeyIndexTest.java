@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017-2021 VMware, Inc. All Rights Reserved.
+ *
+ * SPDX-License-Identifier:	Apache-2.0
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vmware.vropsexport;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StatKeyIndexTest {
+  @Test
+  public void testLooksUpKeys() {
+    final Map<String, Integer> metrics = new HashMap<>();
+    for (int i = 0; i < 100; ++i) {
+      metrics.put("cpu|core" + i + "|usage", i);
+    }
+    final StatKeyIndex index = new StatKeyIndex(metrics);
+    for (int i = 0; i < 100; ++i) {
+      Assert.assertEquals(i, index.lookup("cpu|core" + i + "|usage"));
+      Assert.assertEquals("cpu|core" + i + "|usage", index.getKey(i));
+    }
+    Assert.assertEquals(-1, index.lookup("cpu|core100|usage"));
+    Assert.assertEquals(-1, index.lookup(""));
+  }
+
+  @Test
+  public void testLooksUpKeysInBuffer() {
+    final Map<String, Integer> metrics = new HashMap<>();
+    metrics.put("mem|usage", 0);
+    metrics.put("mem|usage_average", 1);
+    final StatKeyIndex index = new StatKeyIndex(metrics);
+    final char[] buf = "xx mem|usage_average yy".toCharArray();
+    Assert.assertEquals(1, index.lookup(buf, 3, 17));
+    Assert.assertEquals(0, index.lookup(buf, 3, 9));
+    Assert.assertEquals(-1, index.lookup(buf, 3, 10));
+  }
+
+  @Test
+  public void testEmptyIndex() {
+    final StatKeyIndex index = new StatKeyIndex(new HashMap<>());
+    Assert.assertEquals(-1, index.lookup("cpu|usage"));
+  }
+}